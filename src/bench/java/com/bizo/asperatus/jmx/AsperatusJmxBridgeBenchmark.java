@@ -0,0 +1,97 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.model.Unit;
+
+/**
+ * Measures AsperatusJmxBridge.monitor replacing one set of configurations with another, ie cancelling every scheduled
+ * runnable and scheduling the new ones, with both kinds of MetricScheduler. Periods are long enough that no runnable
+ * runs during the benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsperatusJmxBridgeBenchmark {
+  private static final Runnable NOOP = new Runnable() {
+    @Override
+    public void run() {
+      // never runs
+    }
+  };
+
+  @Param({ "100", "10000" })
+  public int configs;
+
+  @Param({ "executor", "bucket" })
+  public String scheduler;
+
+  private AsperatusJmxBridge bridge;
+  private List<MetricConfiguration> first;
+  private List<MetricConfiguration> second;
+  private boolean flip;
+
+  @Setup
+  public void setUp() {
+    final MetricRunnableFactory factory = new MetricRunnableFactory() {
+      @Override
+      public Runnable get(final MetricConfiguration config) {
+        return NOOP;
+      }
+    };
+    final MetricScheduler metricScheduler =
+      "executor".equals(scheduler)
+        ? new ExecutorMetricScheduler(Executors.newSingleThreadScheduledExecutor())
+        : new PeriodBucketScheduler(Executors.newSingleThreadScheduledExecutor());
+    bridge = new AsperatusJmxBridge(factory, metricScheduler);
+    first = configurations("first");
+    second = configurations("second");
+  }
+
+  private List<MetricConfiguration> configurations(final String prefix) {
+    final List<MetricConfiguration> list = new ArrayList<MetricConfiguration>(configs);
+    for (int i = 0; i < configs; i++) {
+      // a handful of distinct periods, as a real configuration would have
+      list.add(new MetricConfiguration(
+        "bench:type=" + prefix + ",name=" + i,
+        "Value",
+        null,
+        prefix + i,
+        Unit.Count,
+        3600 + i % 4 * 60,
+        null));
+    }
+    return list;
+  }
+
+  @Benchmark
+  public void monitor() {
+    flip = !flip;
+    bridge.monitor(flip ? first : second);
+  }
+
+  @TearDown
+  public void tearDown() {
+    bridge.shutdown();
+  }
+}
@@ -0,0 +1,154 @@
+package com.bizo.asperatus.jmx;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.jmx.publish.MetricPublisher;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Measures a single MetricRunnable.run, ie one getAttribute and one publish, for a numeric and a CompositeData
+ * attribute. The "platform" server reads real JVM MBeans; the "synthetic" server reads an MXBean whose attributes cost
+ * nothing to compute, so that only the bridge and the MBeanServer are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricRunnableBenchmark {
+  public interface SyntheticMXBean {
+    long getCount();
+
+    Usage getUsage();
+  }
+
+  /** Mapped to CompositeData by the MXBean framework, as MemoryUsage is. */
+  public static final class Usage {
+    public long getUsed() {
+      return 1024;
+    }
+
+    public long getMax() {
+      return 4096;
+    }
+  }
+
+  public static final class Synthetic implements SyntheticMXBean {
+    private final Usage usage = new Usage();
+
+    @Override
+    public long getCount() {
+      return 42;
+    }
+
+    @Override
+    public Usage getUsage() {
+      return usage;
+    }
+  }
+
+  /** Keeps the published values live without any of the cost of a real publisher. */
+  static final class SummingPublisher implements MetricPublisher {
+    double sum;
+
+    @Override
+    public int register(final String metricName, final Unit unit, final List<Dimension> dimensions) {
+      return 0;
+    }
+
+    @Override
+    public void publish(final int metricId, final double value) {
+      sum += value;
+    }
+
+    @Override
+    public void release(final int metricId) {
+      // nothing is registered
+    }
+  }
+
+  @Param({ "platform", "synthetic" })
+  public String server;
+
+  private final SummingPublisher publisher = new SummingPublisher();
+  private MetricRunnable numeric;
+  private MetricRunnable composite;
+
+  @Setup
+  public void setUp() throws Exception {
+    final MBeanServer mBeanServer;
+    final MetricConfiguration numericConfig;
+    final MetricConfiguration compositeConfig;
+    if ("platform".equals(server)) {
+      mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      numericConfig = config("java.lang:type=Threading", "ThreadCount", null);
+      compositeConfig = config("java.lang:type=Memory", "HeapMemoryUsage", "used");
+    } else {
+      mBeanServer = MBeanServerFactory.newMBeanServer();
+      mBeanServer.registerMBean(new Synthetic(), new ObjectName("bench:type=Synthetic"));
+      numericConfig = config("bench:type=Synthetic", "Count", null);
+      compositeConfig = config("bench:type=Synthetic", "Usage", "used");
+    }
+
+    final List<Dimension> dimensions = ImmutableList.of(new Dimension("bench", "bench"));
+    final ErrorHandler handler = new LoggingErrorHandler(MetricRunnableBenchmark.class, Level.SEVERE);
+    numeric =
+      new MetricRunnable(
+        numericConfig,
+        MetricRunnable.objectName(numericConfig),
+        mBeanServer,
+        publisher,
+        dimensions,
+        handler);
+    composite =
+      new MetricRunnable(
+        compositeConfig,
+        MetricRunnable.objectName(compositeConfig),
+        mBeanServer,
+        publisher,
+        dimensions,
+        handler);
+  }
+
+  private static MetricConfiguration config(
+      final String objectName,
+      final String attribute,
+      final String compositeDataKey) {
+    return new MetricConfiguration(objectName, attribute, compositeDataKey, attribute, Unit.Count, 60, null);
+  }
+
+  @Benchmark
+  public double numeric() {
+    numeric.run();
+    return publisher.sum;
+  }
+
+  @Benchmark
+  public double composite() {
+    composite.run();
+    return publisher.sum;
+  }
+}
@@ -0,0 +1,93 @@
+package com.bizo.asperatus.jmx.configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Measures MetricConfigurationParser on a JSON array of the given number of configurations, collecting them into a
+ * list and iterating over them one at a time, against loading the same configurations from a BinaryConfigurationCache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricConfigurationParserBenchmark {
+  @Param({ "10", "1000", "100000" })
+  public int entries;
+
+  private String json;
+  private byte[] jsonBytes;
+  private File cacheDirectory;
+  private BinaryConfigurationCache cache;
+
+  @Setup
+  public void setUp() throws IOException {
+    final StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < entries; i++) {
+      if (i > 0) {
+        builder.append(",\n");
+      }
+      builder
+        .append("{\"objectName\" : \"bench:type=Pool,name=pool-")
+        .append(i)
+        .append("\", \"attribute\" : \"Usage\", \"compositeDataKey\" : \"used\", \"metricName\" : \"PoolUsage")
+        .append(i)
+        .append("\", \"unit\" : \"Bytes\", \"frequency\" : 60, \"comment\" : \"pool ")
+        .append(i)
+        .append("\"}");
+    }
+    json = builder.append("]").toString();
+    jsonBytes = json.getBytes(Charsets.UTF_8);
+
+    cacheDirectory = File.createTempFile("config-cache", "");
+    cacheDirectory.delete();
+    cache = new BinaryConfigurationCache(cacheDirectory);
+    cache.get(jsonBytes);
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (final File file : cacheDirectory.listFiles()) {
+      file.delete();
+    }
+    cacheDirectory.delete();
+  }
+
+  @Benchmark
+  public List<MetricConfiguration> parse() {
+    return new MetricConfigurationParser(json).get();
+  }
+
+  @Benchmark
+  public int iterate() {
+    int count = 0;
+    for (final MetricConfiguration config : new MetricConfigurationParser(json)) {
+      count += config.getFrequency();
+    }
+    return count;
+  }
+
+  @Benchmark
+  public List<MetricConfiguration> cached() {
+    return cache.get(jsonBytes);
+  }
+}
@@ -1,38 +1,105 @@
 package com.bizo.asperatus.jmx;
 
+import static java.util.logging.Level.WARNING;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.bizo.asperatus.jmx.configuration.ConfigurationListener;
 import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.jmx.publish.AsyncMetricPublisher;
+import com.bizo.asperatus.jmx.publish.MetricSink;
 import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimaps;
 
 /**
  * This class handles scheduling the pulling of metrics from JMX and pushing to Asperatus.
+ * 
+ * As a ConfigurationListener, a bridge may be added to a WatchingConfigurationSupplier to monitor its configurations
+ * as they change.
  */
-public class AsperatusJmxBridge {
+public class AsperatusJmxBridge implements ConfigurationListener {
   private final MetricRunnableFactory factory;
-  private final AtomicReference<Collection<ScheduledFuture<?>>> currentlyRunning =
-    new AtomicReference<Collection<ScheduledFuture<?>>>(ImmutableList.<ScheduledFuture<?>> of());
-  private final ScheduledExecutorService executor;
-  private final boolean ownsExecutor;
+  /** The runnables currently scheduled, keyed by the configurations each one reads. Guarded by this. */
+  private Map<ImmutableSet<MetricConfiguration>, Monitored> currentlyRunning =
+    new HashMap<ImmutableSet<MetricConfiguration>, Monitored>();
+  private final MetricScheduler scheduler;
+  private final boolean ownsScheduler;
+  private final AsyncMetricPublisher ownedPublisher;
+  private volatile PhaseStrategy phaseStrategy = PhaseStrategy.HASH;
+  private volatile int phaseSlots = PhaseStrategy.DEFAULT_SLOTS;
+  private volatile Bulkheads bulkheads = null;
+  private final BridgeStatistics statistics = new BridgeStatistics();
+  private MBeanServer statisticsServer = null;
+  private ObjectName statisticsName = null;
 
   /**
-   * Creates a new brige from the platform MBeanServer to the given tracker.
+   * Creates a new brige from the platform MBeanServer to the given tracker. Configurations with the same frequency
+   * share a single scheduled task on a PeriodBucketScheduler, and samples reach the tracker through an
+   * AsyncMetricPublisher so that tracking never stalls polling. The bridge's statistics are recorded and registered
+   * with the platform MBeanServer as "com.bizo.asperatus.jmx:type=AsperatusJmxBridge,id=N"; if that fails, the error
+   * is logged and the bridge runs without them.
    * 
    * @param tracker
    *          the Asperatus tracker that will receive metrics.
    */
   public AsperatusJmxBridge(final MetricTracker tracker) {
-    this(new MetricRunnableFactoryImpl(tracker), null);
+    this(new MetricRunnableFactoryImpl(tracker), new AsyncMetricPublisher(tracker));
+  }
+
+  /**
+   * Creates a new bridge from the platform MBeanServer to the given sink, eg a FanOutSink feeding several backends
+   * from one read, in the same way as a bridge to a tracker.
+   * 
+   * @param sink
+   *          the sink that will receive metrics.
+   */
+  public AsperatusJmxBridge(final MetricSink sink) {
+    this(new MetricRunnableFactoryImpl(null), new AsyncMetricPublisher(sink));
+  }
+
+  private AsperatusJmxBridge(final MetricRunnableFactoryImpl factory, final AsyncMetricPublisher publisher) {
+    this(factory, publisher, new PeriodBucketScheduler(defaultExecutor()));
+  }
+
+  private AsperatusJmxBridge(
+      final MetricRunnableFactoryImpl factory,
+      final AsyncMetricPublisher publisher,
+      final PeriodBucketScheduler scheduler) {
+    this(factory, scheduler, true, publisher);
+    factory.setPublisher(publisher);
+    factory.setStatistics(statistics);
+    scheduler.setStatistics(statistics);
+    publisher.setPushLatency(statistics.pushLatency());
+    final String name = "com.bizo.asperatus.jmx:type=AsperatusJmxBridge,id=" + bridgeIdGenerator.incrementAndGet();
+    try {
+      registerStatistics(ManagementFactory.getPlatformMBeanServer(), new ObjectName(name));
+    } catch (final JMException e) {
+      // the statistics are still recorded, and may be registered later with registerStatistics
+      final ErrorHandler errorHandler = new LoggingErrorHandler(AsperatusJmxBridge.class, WARNING);
+      ErrorCode.STATISTICS_NOT_REGISTERED.report(statistics.countErrors(errorHandler), name, e.getClass(), e);
+    }
   }
 
   /**
-   * Creates a new bridge based on the provided MetricRunnableFactory and ScheduledExecutorService.
+   * Creates a new bridge based on the provided MetricRunnableFactory and ScheduledExecutorService. Each configuration
+   * is scheduled as its own fixed-rate task on the executor.
    * 
    * @param factory
    *          the factory that will produce the runnables that pull and push data.
@@ -40,22 +107,43 @@ public class AsperatusJmxBridge {
    *          the scheduled executor service on which the runnables will be run.
    */
   public AsperatusJmxBridge(final MetricRunnableFactory factory, final ScheduledExecutorService executor) {
+    this(
+      factory,
+      new ExecutorMetricScheduler(executor != null ? executor : defaultExecutor()),
+      executor == null,
+      null);
+  }
+
+  /**
+   * Creates a new bridge based on the provided MetricRunnableFactory and MetricScheduler.
+   * 
+   * @param factory
+   *          the factory that will produce the runnables that pull and push data.
+   * @param scheduler
+   *          the scheduler that will periodically run the runnables. The scheduler is not shut down with the bridge.
+   */
+  public AsperatusJmxBridge(final MetricRunnableFactory factory, final MetricScheduler scheduler) {
+    this(factory, scheduler, false, null);
+  }
+
+  private AsperatusJmxBridge(
+      final MetricRunnableFactory factory,
+      final MetricScheduler scheduler,
+      final boolean ownsScheduler,
+      final AsyncMetricPublisher ownedPublisher) {
     this.factory = factory;
-    if (executor != null) {
-      this.executor = executor;
-      ownsExecutor = false;
-    } else {
-      this.executor = defaultExecutor();
-      ownsExecutor = true;
-    }
+    this.scheduler = Preconditions.checkNotNull(scheduler);
+    this.ownsScheduler = ownsScheduler;
+    this.ownedPublisher = ownedPublisher;
   }
 
   private static final AtomicInteger sequenceNumGenerator = new AtomicInteger(0);
+  private static final AtomicInteger bridgeIdGenerator = new AtomicInteger(0);
 
   /**
    * Constructs a default single-threaded scheduled executor service.
    */
-  private static final ScheduledExecutorService defaultExecutor() {
+  static final ScheduledExecutorService defaultExecutor() {
     final ThreadFactory threadFactory = new ThreadFactory() {
       private static final String DEFAULT_THREAD_PREFIX = "asperatus-jmx-";
 
@@ -72,28 +160,145 @@ public class AsperatusJmxBridge {
   }
 
   /**
-   * Sets the given futures as the currently running ones and cancels any previously running futures.
+   * Sets how configurations without an explicit phaseMillis are spread across their periods by later calls to monitor.
+   * The default is PhaseStrategy.HASH.
    */
-  private void rotateFutures(final Collection<ScheduledFuture<?>> newFutures) {
-    final Collection<ScheduledFuture<?>> previousFutures = currentlyRunning.getAndSet(newFutures);
-    for (final ScheduledFuture<?> future : previousFutures) {
-      future.cancel(false);
-    }
+  public void setPhaseStrategy(final PhaseStrategy phaseStrategy) {
+    this.phaseStrategy = Preconditions.checkNotNull(phaseStrategy);
+  }
+
+  /**
+   * Sets how many phases each period is divided into by later calls to monitor. The phase chosen by the PhaseStrategy
+   * is rounded down to one of them, so configurations sharing a period share at most this many scheduled tasks on a
+   * PeriodBucketScheduler. The default is PhaseStrategy.DEFAULT_SLOTS.
+   */
+  public void setPhaseSlots(final int phaseSlots) {
+    Preconditions.checkArgument(phaseSlots > 0, "phaseSlots must be positive");
+    this.phaseSlots = phaseSlots;
   }
 
   /**
-   * Starts monitoring the given configurations. Any previously monitored configurations will be cancelled.
+   * Sets the bulkheads that the runnables created by later calls to monitor hand their reads to, so that a hung MBean
+   * cannot stall the scheduler, or null to read on the scheduler's thread. The default is null. The bulkheads are not
+   * closed when the bridge is shut down.
    */
-  public void monitor(final Collection<MetricConfiguration> configurations) {
+  public void setBulkheads(final Bulkheads bulkheads) {
+    this.bulkheads = bulkheads;
+  }
+
+  /**
+   * Returns the statistics of this bridge. The number of active futures is always recorded; read and push times,
+   * scheduling lag and errors are recorded by the factory, scheduler and publisher it has been given to.
+   */
+  public BridgeStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Registers the statistics of this bridge as an MXBean, eg so that they can be configured as metrics of the bridge
+   * itself. The MBean is unregistered when the bridge is shut down.
+   * 
+   * @return the name the MBean was registered under
+   * @throws JMException
+   *           if the MBean could not be registered, eg because the name is taken
+   */
+  public synchronized ObjectName registerStatistics(final MBeanServer server, final ObjectName name)
+      throws JMException {
+    Preconditions.checkState(statisticsName == null, "Statistics are already registered as %s", statisticsName);
+    statisticsName = server.registerMBean(statistics, name).getObjectName();
+    statisticsServer = server;
+    return statisticsName;
+  }
+
+  /**
+   * Starts monitoring the given configurations in place of the ones monitored now. Only the difference is applied:
+   * runnables whose configurations are unchanged keep running undisturbed, with their phase and any per-metric state,
+   * runnables whose configurations were removed are cancelled, and runnables are created only for added ones. Equal
+   * configurations, by MetricConfiguration.equals, are monitored once.
+   * 
+   * If the factory is a BatchMetricRunnableFactory, configurations sharing an objectName, period and phase are
+   * scheduled as a single runnable so that their attributes are read together. Adding or removing a configuration
+   * of such a batch replaces the whole batch.
+   * 
+   * Each new runnable first runs at its phase, as chosen by the PhaseStrategy, or after one period if its phase is 0.
+   * 
+   * If the factory throws, eg MetricConfigurationException for an invalid objectName, the runnables already created
+   * for this call are cancelled and the configurations monitored before keep running as they were.
+   */
+  public synchronized void monitor(final Collection<MetricConfiguration> configurations) {
     Preconditions.checkNotNull(configurations);
-    final Collection<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>(configurations.size());
-    for (final MetricConfiguration config : configurations) {
-      final Runnable command = factory.get(config);
-      final int freq = config.getFrequency();
-      final ScheduledFuture<?> future = executor.scheduleAtFixedRate(command, freq, freq, TimeUnit.SECONDS);
-      futures.add(future);
+    final List<ImmutableSet<MetricConfiguration>> groups = new ArrayList<ImmutableSet<MetricConfiguration>>();
+    if (factory instanceof BatchMetricRunnableFactory) {
+      for (final Collection<MetricConfiguration> batch : Multimaps.index(configurations, BatchKey.FOR_CONFIG)
+        .asMap()
+        .values()) {
+        groups.add(ImmutableSet.copyOf(batch));
+      }
+    } else {
+      for (final MetricConfiguration config : configurations) {
+        groups.add(ImmutableSet.of(config));
+      }
+    }
+
+    // phases are chosen among all of the configurations, but only applied to new runnables
+    final List<MetricConfiguration> scheduledConfigs = new ArrayList<MetricConfiguration>(groups.size());
+    for (final ImmutableSet<MetricConfiguration> group : groups) {
+      scheduledConfigs.add(group.iterator().next());
+    }
+    final long[] phases = phaseStrategy.phases(scheduledConfigs, phaseSlots);
+
+    // the current runnables are left alone until every new one has been created, so a failure changes nothing
+    final Map<ImmutableSet<MetricConfiguration>, Monitored> running =
+      new HashMap<ImmutableSet<MetricConfiguration>, Monitored>(groups.size() * 4 / 3 + 1);
+    final List<Monitored> created = new ArrayList<Monitored>();
+    try {
+      for (int i = 0; i < groups.size(); i++) {
+        final ImmutableSet<MetricConfiguration> group = groups.get(i);
+        if (running.containsKey(group)) {
+          continue;
+        }
+        Monitored monitored = currentlyRunning.get(group);
+        if (monitored == null) {
+          Runnable command =
+            factory instanceof BatchMetricRunnableFactory
+              ? ((BatchMetricRunnableFactory) factory).getBatch(group.asList())
+              : factory.get(scheduledConfigs.get(i));
+          final Bulkheads bulkheads = this.bulkheads;
+          if (bulkheads != null) {
+            command = bulkheads.guard(command, scheduledConfigs.get(i).getObjectName());
+          }
+          monitored = schedule(command, scheduledConfigs.get(i).getPeriodMillis(), phases[i]);
+          created.add(monitored);
+        }
+        running.put(group, monitored);
+      }
+    } catch (final RuntimeException e) {
+      for (final Monitored monitored : created) {
+        monitored.cancel();
+      }
+      throw e;
+    }
+
+    for (final Map.Entry<ImmutableSet<MetricConfiguration>, Monitored> entry : currentlyRunning.entrySet()) {
+      if (!running.containsKey(entry.getKey())) {
+        entry.getValue().cancel();
+      }
     }
-    rotateFutures(futures);
+    currentlyRunning = running;
+    statistics.setActiveFutures(running.size());
+  }
+
+  /** Cancels every currently running runnable. */
+  private void cancelAll() {
+    for (final Monitored monitored : currentlyRunning.values()) {
+      monitored.cancel();
+    }
+    currentlyRunning.clear();
+  }
+
+  private Monitored schedule(final Runnable command, final long periodMillis, final long phaseMillis) {
+    final long initialDelay = phaseMillis > 0 ? phaseMillis : periodMillis;
+    return new Monitored(command, scheduler.schedule(command, initialDelay, periodMillis, TimeUnit.MILLISECONDS));
   }
 
   /** Alias for monitor(configurations). */
@@ -101,14 +306,96 @@ public class AsperatusJmxBridge {
     monitor(configurations);
   }
 
+  /** Monitors the changed configurations in place of the current ones. */
+  @Override
+  public void configurationChanged(final List<MetricConfiguration> configurations) {
+    monitor(configurations);
+  }
+
   /**
    * Stops monitoring the current configurations and shuts down any threads managed by this bridge.
    */
   public void shutdown() {
-    rotateFutures(ImmutableList.<ScheduledFuture<?>> of());
-    if (ownsExecutor) {
-      executor.shutdown();
+    synchronized (this) {
+      cancelAll();
+      statistics.setActiveFutures(0);
+    }
+    if (ownsScheduler) {
+      scheduler.shutdown();
+    }
+    if (ownedPublisher != null) {
+      ownedPublisher.close();
     }
+    unregisterStatistics();
   }
 
+  private synchronized void unregisterStatistics() {
+    if (statisticsName != null) {
+      try {
+        statisticsServer.unregisterMBean(statisticsName);
+      } catch (final JMException e) {
+        // already unregistered
+      }
+      statisticsName = null;
+      statisticsServer = null;
+    }
+  }
+
+  /** A scheduled runnable. Runnables that are Closeable, eg PatternMetricRunnables, are closed when cancelled. */
+  private static final class Monitored {
+    private final Runnable command;
+    private final Future<?> future;
+
+    Monitored(final Runnable command, final Future<?> future) {
+      this.command = command;
+      this.future = future;
+    }
+
+    void cancel() {
+      future.cancel(false);
+      if (command instanceof Closeable) {
+        try {
+          ((Closeable) command).close();
+        } catch (final IOException e) {
+          // nothing more can be done for a runnable that is going away
+        }
+      }
+    }
+  }
+
+  /** Identifies configurations that can be read with a single getAttributes call. */
+  private static final class BatchKey {
+    static final Function<MetricConfiguration, BatchKey> FOR_CONFIG = new Function<MetricConfiguration, BatchKey>() {
+      @Override
+      public BatchKey apply(final MetricConfiguration config) {
+        return new BatchKey(config.getObjectName(), config.getPeriodMillis(), config.getPhaseMillis());
+      }
+    };
+
+    private final String objectName;
+    private final long periodMillis;
+    private final Long phaseMillis;
+
+    BatchKey(final String objectName, final long periodMillis, final Long phaseMillis) {
+      this.objectName = objectName;
+      this.periodMillis = periodMillis;
+      this.phaseMillis = phaseMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(objectName, periodMillis, phaseMillis);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof BatchKey)) {
+        return false;
+      }
+      final BatchKey other = (BatchKey) obj;
+      return periodMillis == other.periodMillis
+        && Objects.equal(phaseMillis, other.phaseMillis)
+        && Objects.equal(objectName, other.objectName);
+    }
+  }
 }
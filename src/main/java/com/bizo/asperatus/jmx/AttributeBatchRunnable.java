@@ -0,0 +1,180 @@
+package com.bizo.asperatus.jmx;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This runnable pulls the attributes of several MetricRunnables that share an MBean with a single
+ * MBeanServer.getAttributes call and hands each value to the runnables that requested it. An attribute requested by
+ * several runnables (eg with different composite data keys) is only read once.
+ * 
+ * A batch created by a MetricRunnableFactoryImpl may have a CircuitBreaker that skips reads of an MBean that keeps
+ * failing; closing the batch closes its breaker and its members.
+ */
+public class AttributeBatchRunnable implements Runnable, Closeable {
+  private final MBeanServerConnection mBeanServer;
+  private final ObjectName jmxName;
+  private final String[] attributes;
+  private final MetricRunnable[][] consumers;
+  private final boolean[] seen;
+  private final CircuitBreaker breaker;
+  private final BridgeStatistics statistics;
+
+  /**
+   * Creates a new AttributeBatchRunnable.
+   * 
+   * @param server
+   *          the MBeanServer, or connection to a remote MBeanServer, containing data
+   * @param members
+   *          the runnables whose attributes will be read; all must share the same ObjectName
+   */
+  public AttributeBatchRunnable(final MBeanServerConnection server, final Collection<MetricRunnable> members) {
+    this(server, members, null, null);
+  }
+
+  /**
+   * Creates a new AttributeBatchRunnable whose reads are guarded by the given breaker and recorded in the given
+   * statistics, either of which may be null.
+   */
+  AttributeBatchRunnable(
+      final MBeanServerConnection server,
+      final Collection<MetricRunnable> members,
+      final CircuitBreaker breaker,
+      final BridgeStatistics statistics) {
+    Preconditions.checkArgument(!members.isEmpty(), "A batch requires at least one member");
+    mBeanServer = server;
+    jmxName = members.iterator().next().getObjectName();
+
+    final Map<String, List<MetricRunnable>> byAttribute = new LinkedHashMap<String, List<MetricRunnable>>();
+    for (final MetricRunnable member : members) {
+      Preconditions.checkArgument(
+        jmxName.equals(member.getObjectName()),
+        "Batched metrics must share an ObjectName, got %s and %s",
+        jmxName,
+        member.getObjectName());
+      final String attribute = member.getConfig().getAttribute();
+      List<MetricRunnable> list = byAttribute.get(attribute);
+      if (list == null) {
+        list = new ArrayList<MetricRunnable>();
+        byAttribute.put(attribute, list);
+      }
+      list.add(member);
+    }
+
+    attributes = byAttribute.keySet().toArray(new String[byAttribute.size()]);
+    consumers = new MetricRunnable[attributes.length][];
+    for (int i = 0; i < attributes.length; i++) {
+      final List<MetricRunnable> list = byAttribute.get(attributes[i]);
+      consumers[i] = list.toArray(new MetricRunnable[list.size()]);
+    }
+    seen = new boolean[attributes.length];
+    this.breaker = breaker;
+    this.statistics = statistics;
+  }
+
+  @Override
+  public void run() {
+    if (breaker != null && !breaker.allowRequest()) {
+      return;
+    }
+    final long start = statistics != null ? System.nanoTime() : 0;
+    final AttributeList values;
+    try {
+      values = mBeanServer.getAttributes(jmxName, attributes);
+    } catch (final Exception e) {
+      if (breaker == null || breaker.recordFailure(e)) {
+        for (final MetricRunnable[] list : consumers) {
+          for (final MetricRunnable member : list) {
+            member.readFailed(e);
+          }
+        }
+      }
+      return;
+    }
+    if (breaker != null) {
+      breaker.recordSuccess();
+    }
+    if (statistics != null) {
+      final long elapsed = System.nanoTime() - start;
+      statistics.recordRead(elapsed);
+      for (final MetricRunnable[] list : consumers) {
+        for (final MetricRunnable member : list) {
+          member.recordReadLatency(elapsed);
+        }
+      }
+    }
+
+    Arrays.fill(seen, false);
+    for (final Object item : values) {
+      final Attribute attribute = (Attribute) item;
+      final int index = indexOf(attribute.getName());
+      if (index >= 0 && !seen[index]) {
+        seen[index] = true;
+        for (final MetricRunnable member : consumers[index]) {
+          member.accept(attribute.getValue());
+        }
+      }
+    }
+
+    // getAttributes silently omits attributes it could not read, so report those individually
+    for (int i = 0; i < attributes.length; i++) {
+      if (!seen[i]) {
+        final Exception e = new AttributeNotFoundException("No value returned for attribute " + attributes[i]);
+        for (final MetricRunnable member : consumers[i]) {
+          member.readFailed(e);
+        }
+      }
+    }
+  }
+
+  /** Closes this batch's CircuitBreaker, if it has one, and its members. */
+  @Override
+  public void close() {
+    if (breaker != null) {
+      breaker.close();
+    }
+    for (final MetricRunnable[] list : consumers) {
+      for (final MetricRunnable member : list) {
+        member.close();
+      }
+    }
+  }
+
+  /** The CircuitBreaker guarding reads by this batch, or null if it has none. */
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  /** The ObjectName shared by all members of this batch. */
+  public ObjectName getObjectName() {
+    return jmxName;
+  }
+
+  /** The distinct attribute names read by each run of this batch. */
+  public List<String> getAttributes() {
+    return Arrays.asList(attributes.clone());
+  }
+
+  private int indexOf(final String attribute) {
+    // batches are small, so a linear scan beats hashing here
+    for (int i = 0; i < attributes.length; i++) {
+      if (attributes[i].equals(attribute)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,264 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.TabularData;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfigurationException;
+
+/**
+ * A path from an attribute value to the number within it, compiled once into a chain of steps so that nothing is
+ * parsed when a value is read. A path is a sequence of steps, eg {@code memoryUsageAfterGc["G1 Old Gen"].used}:
+ * 
+ * <ul>
+ * <li>{@code name} or {@code .name} : the item of a CompositeData, or the entry of a Map, with that key</li>
+ * <li>{@code [n]} : the element of an array or List at that index, or the row of a TabularData indexed by that
+ * number</li>
+ * <li>{@code ["text"]} : the row of a TabularData indexed by that string, or the item or entry with that key; quotes
+ * and backslashes in the text are escaped with a backslash</li>
+ * </ul>
+ * 
+ * A TabularData row of the form MXBeans use for a Map, ie with exactly the items "key" and "value", stands for its
+ * value, so that {@code ["G1 Old Gen"]} on such a table steps straight to the MemoryUsage.
+ */
+public final class AttributePath {
+  private final String path;
+  private final Step[] steps;
+
+  private AttributePath(final String path, final Step[] steps) {
+    this.path = path;
+    this.steps = steps;
+  }
+
+  /** Returns the path of a single composite data key. */
+  public static AttributePath key(final String compositeDataKey) {
+    return new AttributePath(compositeDataKey, new Step[] { new KeyStep(compositeDataKey) });
+  }
+
+  /**
+   * Compiles a path.
+   * 
+   * @throws MetricConfigurationException
+   *           if the path is malformed
+   */
+  public static AttributePath compile(final String path) {
+    final List<Step> steps = new ArrayList<Step>();
+    int i = 0;
+    while (i < path.length()) {
+      final char c = path.charAt(i);
+      if (c == '[') {
+        i = index(path, i + 1, steps);
+      } else {
+        if (c == '.') {
+          if (steps.isEmpty()) {
+            throw invalid(path, i, "a path cannot start with '.'");
+          }
+          i++;
+        }
+        final int start = i;
+        while (i < path.length() && path.charAt(i) != '.' && path.charAt(i) != '[') {
+          i++;
+        }
+        if (i == start) {
+          throw invalid(path, i, "expected a key");
+        }
+        steps.add(new KeyStep(path.substring(start, i)));
+      }
+    }
+    if (steps.isEmpty()) {
+      throw invalid(path, 0, "a path needs at least one step");
+    }
+    return new AttributePath(path, steps.toArray(new Step[steps.size()]));
+  }
+
+  /** Parses the rest of a bracketed step starting at i, and returns the position after its closing bracket. */
+  private static int index(final String path, int i, final List<Step> steps) {
+    if (i < path.length() && path.charAt(i) == '"') {
+      final StringBuilder key = new StringBuilder();
+      i++;
+      while (i < path.length() && path.charAt(i) != '"') {
+        if (path.charAt(i) == '\\' && i + 1 < path.length()) {
+          i++;
+        }
+        key.append(path.charAt(i++));
+      }
+      if (i + 1 >= path.length() || path.charAt(i + 1) != ']') {
+        throw invalid(path, i, "expected '\"]'");
+      }
+      steps.add(new LookupStep(key.toString()));
+      return i + 2;
+    }
+    final int start = i;
+    while (i < path.length() && Character.isDigit(path.charAt(i))) {
+      i++;
+    }
+    if (i == start || i >= path.length() || path.charAt(i) != ']') {
+      throw invalid(path, i, "expected a quoted key or an index followed by ']'");
+    }
+    try {
+      steps.add(new IndexStep(Integer.parseInt(path.substring(start, i))));
+    } catch (final NumberFormatException e) {
+      throw invalid(path, start, "index is too large");
+    }
+    return i + 1;
+  }
+
+  private static MetricConfigurationException invalid(final String path, final int position, final String reason) {
+    return new MetricConfigurationException("Invalid path " + path + " at position " + position + ": " + reason);
+  }
+
+  /**
+   * Follows this path from an attribute value.
+   * 
+   * @throws Mismatch
+   *           if a step met a value it cannot navigate
+   */
+  Object extract(final Object value) throws Mismatch {
+    Object current = value;
+    for (final Step step : steps) {
+      current = step.extract(current);
+    }
+    return current;
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+
+  /** Thrown when a step cannot navigate the value it was given; carries the error to report and the value. */
+  static final class Mismatch extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final ErrorCode code;
+    private final transient Object value;
+
+    Mismatch(final ErrorCode code, final Object value) {
+      this.code = code;
+      this.value = value;
+    }
+
+    ErrorCode getCode() {
+      return code;
+    }
+
+    Object getValue() {
+      return value;
+    }
+
+    /** Mismatches are reported by code and type, so the stack trace is not worth filling in on every read. */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private abstract static class Step {
+    abstract Object extract(Object value) throws Mismatch;
+  }
+
+  private static final class KeyStep extends Step {
+    private final String key;
+
+    KeyStep(final String key) {
+      this.key = key;
+    }
+
+    @Override
+    Object extract(final Object value) throws Mismatch {
+      if (value instanceof CompositeData) {
+        return ((CompositeData) value).get(key);
+      }
+      if (value instanceof Map) {
+        return ((Map<?, ?>) value).get(key);
+      }
+      throw new Mismatch(ErrorCode.NOT_COMPOSITE_DATA, value);
+    }
+  }
+
+  private static final class IndexStep extends Step {
+    private final int index;
+
+    IndexStep(final int index) {
+      this.index = index;
+    }
+
+    @Override
+    Object extract(final Object value) throws Mismatch {
+      if (value instanceof Object[]) {
+        final Object[] array = (Object[]) value;
+        if (index < array.length) {
+          return array[index];
+        }
+      } else if (value instanceof long[]) {
+        final long[] array = (long[]) value;
+        if (index < array.length) {
+          return array[index];
+        }
+      } else if (value instanceof int[]) {
+        final int[] array = (int[]) value;
+        if (index < array.length) {
+          return array[index];
+        }
+      } else if (value instanceof double[]) {
+        final double[] array = (double[]) value;
+        if (index < array.length) {
+          return array[index];
+        }
+      } else if (value instanceof List) {
+        final List<?> list = (List<?>) value;
+        if (index < list.size()) {
+          return list.get(index);
+        }
+      } else if (value instanceof TabularData) {
+        final TabularData table = (TabularData) value;
+        final CompositeData row = table.get(new Object[] { index });
+        if (row != null) {
+          return unwrap(row);
+        }
+      }
+      throw new Mismatch(ErrorCode.PATH_NOT_FOUND, value);
+    }
+  }
+
+  private static final class LookupStep extends Step {
+    private final String key;
+    private final Object[] tableKey;
+
+    LookupStep(final String key) {
+      this.key = key;
+      tableKey = new Object[] { key };
+    }
+
+    @Override
+    Object extract(final Object value) throws Mismatch {
+      if (value instanceof TabularData) {
+        final CompositeData row = ((TabularData) value).get(tableKey);
+        if (row == null) {
+          throw new Mismatch(ErrorCode.PATH_NOT_FOUND, value);
+        }
+        return unwrap(row);
+      }
+      if (value instanceof CompositeData) {
+        return ((CompositeData) value).get(key);
+      }
+      if (value instanceof Map) {
+        return ((Map<?, ?>) value).get(key);
+      }
+      throw new Mismatch(ErrorCode.PATH_NOT_FOUND, value);
+    }
+  }
+
+  /** Returns the value of a row MXBeans use for a Map entry, or else the row itself. */
+  private static Object unwrap(final CompositeData row) {
+    final CompositeType type = row.getCompositeType();
+    if (type.keySet().size() == 2 && type.containsKey("key") && type.containsKey("value")) {
+      return row.get("value");
+    }
+    return row;
+  }
+}
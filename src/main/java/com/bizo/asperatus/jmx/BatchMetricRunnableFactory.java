@@ -0,0 +1,20 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.Collection;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+
+/**
+ * This interface describes a MetricRunnableFactory that can also combine several configurations sharing an MBean into
+ * a single runnable that reads all of their attributes at once.
+ */
+public interface BatchMetricRunnableFactory extends MetricRunnableFactory {
+
+  /**
+   * Creates a runnable that pulls all of the given configurations together.
+   * 
+   * @param configs
+   *          one or more configurations with the same objectName
+   */
+  Runnable getBatch(final Collection<MetricConfiguration> configs);
+}
@@ -0,0 +1,146 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * This class records how much time an AsperatusJmxBridge spends reading and pushing metrics, how far behind its
+ * schedule it runs, and the errors it reports. Durations are recorded in striped LatencyHistograms, so recording adds
+ * no contention between polling threads.
+ * 
+ * A bridge created with a MetricTracker records everything and registers these statistics as an MBean. Otherwise,
+ * pass getStatistics() of the bridge to MetricRunnableFactoryImpl.setStatistics, PeriodBucketScheduler.setStatistics
+ * and AsyncMetricPublisher.setPushLatency as required.
+ */
+public final class BridgeStatistics implements BridgeStatisticsMXBean {
+  private final LatencyHistogram readLatency = new LatencyHistogram();
+  /** The histogram of each metric name, and how many runnables record in it. Guarded by itself. */
+  private final Map<String, MetricLatency> readLatencyByMetric = new HashMap<String, MetricLatency>();
+  private final LatencyHistogram pushLatency = new LatencyHistogram();
+  private final LatencyHistogram schedulingLag = new LatencyHistogram();
+  private final AtomicLong lateTicks = new AtomicLong();
+  private final AtomicLongArray errorCounts = new AtomicLongArray(ErrorCode.values().length);
+  private final AtomicInteger activeFutures = new AtomicInteger();
+
+  /**
+   * Returns the histogram of read times of the given metric, creating it if needed. Reads recorded in it should also
+   * be recorded with recordRead. Each call must be matched by a call to releaseReadLatency once the caller stops
+   * recording, eg when its runnable is closed.
+   */
+  LatencyHistogram readLatency(final String metricName) {
+    synchronized (readLatencyByMetric) {
+      MetricLatency latency = readLatencyByMetric.get(metricName);
+      if (latency == null) {
+        latency = new MetricLatency();
+        readLatencyByMetric.put(metricName, latency);
+      }
+      latency.references++;
+      return latency.histogram;
+    }
+  }
+
+  /** Removes the histogram of read times of the given metric once nothing records in it. */
+  void releaseReadLatency(final String metricName) {
+    synchronized (readLatencyByMetric) {
+      final MetricLatency latency = readLatencyByMetric.get(metricName);
+      if (latency != null && --latency.references == 0) {
+        readLatencyByMetric.remove(metricName);
+      }
+    }
+  }
+
+  /** Records the time taken by a successful read. */
+  void recordRead(final long nanos) {
+    readLatency.record(nanos);
+  }
+
+  /** The histogram of times taken to hand values to the tracker. */
+  public LatencyHistogram pushLatency() {
+    return pushLatency;
+  }
+
+  /** Records how late a tick started, and whether it was at least a full period late. */
+  void recordLag(final long lagNanos, final long periodNanos) {
+    schedulingLag.record(lagNanos);
+    if (lagNanos >= periodNanos) {
+      lateTicks.incrementAndGet();
+    }
+  }
+
+  void setActiveFutures(final int count) {
+    activeFutures.set(count);
+  }
+
+  /**
+   * Returns an ErrorHandler that counts each error by its ErrorCode before passing it to the given handler.
+   */
+  public StructuredErrorHandler countErrors(final ErrorHandler delegate) {
+    return new StructuredErrorHandler() {
+      @Override
+      public void handleError(final ErrorCode code, final String source, final Class<?> type, final Throwable cause) {
+        errorCounts.incrementAndGet(code.ordinal());
+        code.report(delegate, source, type, cause);
+      }
+
+      @Override
+      public void handleError(final String message, final Throwable cause) {
+        delegate.handleError(message, cause);
+      }
+    };
+  }
+
+  @Override
+  public LatencySnapshot getReadLatency() {
+    return readLatency.snapshot();
+  }
+
+  @Override
+  public Map<String, LatencySnapshot> getReadLatencyByMetric() {
+    final ImmutableMap.Builder<String, LatencySnapshot> snapshots = ImmutableMap.builder();
+    synchronized (readLatencyByMetric) {
+      for (final Map.Entry<String, MetricLatency> entry : readLatencyByMetric.entrySet()) {
+        snapshots.put(entry.getKey(), entry.getValue().histogram.snapshot());
+      }
+    }
+    return snapshots.build();
+  }
+
+  @Override
+  public LatencySnapshot getPushLatency() {
+    return pushLatency.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getSchedulingLag() {
+    return schedulingLag.snapshot();
+  }
+
+  @Override
+  public long getLateTicks() {
+    return lateTicks.get();
+  }
+
+  @Override
+  public Map<String, Long> getErrorCounts() {
+    final ImmutableMap.Builder<String, Long> counts = ImmutableMap.builder();
+    for (final ErrorCode code : ErrorCode.values()) {
+      counts.put(code.name(), errorCounts.get(code.ordinal()));
+    }
+    return counts.build();
+  }
+
+  @Override
+  public int getActiveFutures() {
+    return activeFutures.get();
+  }
+
+  private static final class MetricLatency {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    int references = 0;
+  }
+}
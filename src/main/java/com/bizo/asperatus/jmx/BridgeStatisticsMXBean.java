@@ -0,0 +1,34 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.Map;
+
+/**
+ * The management interface of an AsperatusJmxBridge's own statistics. Its attributes may themselves be configured as
+ * metrics, eg the "p99Nanos" key of "ReadLatency", so that the bridge publishes its own health.
+ */
+public interface BridgeStatisticsMXBean {
+
+  /** The time taken by every successful read of an attribute, or of a batch of attributes. */
+  LatencySnapshot getReadLatency();
+
+  /** The time taken by successful reads, by metric name. */
+  Map<String, LatencySnapshot> getReadLatencyByMetric();
+
+  /**
+   * The time taken to hand each value to the MetricTracker, or with an AsyncMetricPublisher each batch to its
+   * MetricSink.
+   */
+  LatencySnapshot getPushLatency();
+
+  /** How late each tick of a PeriodBucketScheduler started, relative to when it was scheduled. */
+  LatencySnapshot getSchedulingLag();
+
+  /** The number of ticks that started at least a full period late, ie that were missed and run back to back. */
+  long getLateTicks();
+
+  /** The number of errors reported, by ErrorCode. */
+  Map<String, Long> getErrorCounts();
+
+  /** The number of runnables currently scheduled. */
+  int getActiveFutures();
+}
@@ -0,0 +1,259 @@
+package com.bizo.asperatus.jmx;
+
+import static java.util.logging.Level.WARNING;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Isolates reads into bulkheads, so that an MBean whose reads block, eg on a lock or a hung remote connection, cannot
+ * stall the reads of other MBeans. Each bulkhead, one per ObjectName domain or per MBean, has its own small pool of
+ * threads. A scheduled command guarded by {@link #guard} only hands its read to its bulkhead, so the scheduler's
+ * thread never waits on a read and the rest of a tick finishes on time.
+ *
+ * Each read has a deadline from when it was handed over. A read still running at its deadline is interrupted,
+ * abandoned and reported as READ_TIMED_OUT; one still waiting behind other reads of its bulkhead is withdrawn and
+ * reported the same way. Until a command's read has finished or been withdrawn, its later ticks are skipped, so a
+ * hung MBean occupies at most one thread per command and never queues up reads.
+ *
+ * Bulkheads are given to a bridge with AsperatusJmxBridge.setBulkheads, and are not closed with it.
+ */
+public class Bulkheads implements Closeable {
+  /** What reads share a bulkhead. */
+  public enum Isolation {
+    /** Reads of MBeans in the same ObjectName domain, eg "java.lang", share a bulkhead. */
+    DOMAIN,
+
+    /** Each MBean, or ObjectName pattern, has its own bulkhead. */
+    MBEAN
+  }
+
+  private static final AtomicInteger sequenceNumGenerator = new AtomicInteger(0);
+
+  private final Isolation isolation;
+  private final int threads;
+  private final long deadlineNanos;
+  private final ErrorHandler errorHandler;
+  private final Ticker ticker;
+  /** The pool of each bulkhead, by its key. Guarded by itself. */
+  private final Map<String, ThreadPoolExecutor> bulkheads = new HashMap<String, ThreadPoolExecutor>();
+  private final List<Guarded> guards = new CopyOnWriteArrayList<Guarded>();
+  private final ScheduledExecutorService watchdog;
+
+  /**
+   * Creates new bulkheads that report reads missing their deadline to a logging error handler.
+   *
+   * @param isolation
+   *          what reads share a bulkhead
+   * @param threads
+   *          the most threads each bulkhead may use
+   * @param deadline
+   *          how long a read may take from being handed to its bulkhead
+   */
+  public Bulkheads(final Isolation isolation, final int threads, final long deadline, final TimeUnit unit) {
+    this(isolation, threads, deadline, unit, new LoggingErrorHandler(Bulkheads.class, WARNING));
+  }
+
+  public Bulkheads(
+      final Isolation isolation,
+      final int threads,
+      final long deadline,
+      final TimeUnit unit,
+      final ErrorHandler errorHandler) {
+    this(isolation, threads, deadline, unit, errorHandler, Ticker.systemTicker());
+    final long checkNanos = Math.max(deadlineNanos / 4, TimeUnit.MILLISECONDS.toNanos(1));
+    watchdog.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        checkDeadlines();
+      }
+    }, checkNanos, checkNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** Creates new bulkheads whose deadlines are only checked by calls to {@link #checkDeadlines}. */
+  Bulkheads(
+      final Isolation isolation,
+      final int threads,
+      final long deadline,
+      final TimeUnit unit,
+      final ErrorHandler errorHandler,
+      final Ticker ticker) {
+    Preconditions.checkArgument(threads > 0, "A bulkhead needs at least one thread");
+    Preconditions.checkArgument(deadline > 0, "The deadline must be positive");
+    this.isolation = Preconditions.checkNotNull(isolation);
+    this.threads = threads;
+    deadlineNanos = unit.toNanos(deadline);
+    this.errorHandler = Preconditions.checkNotNull(errorHandler);
+    this.ticker = ticker;
+    watchdog = Executors.newSingleThreadScheduledExecutor(threadFactory("watchdog"));
+  }
+
+  /**
+   * Returns a command that hands each run of the given one to the bulkhead for the given ObjectName. Closing the
+   * returned command stops guarding it and closes the given one if it is Closeable.
+   *
+   * @param objectName
+   *          the ObjectName, or pattern, the command reads
+   */
+  public Runnable guard(final Runnable command, final String objectName) {
+    final String key;
+    if (isolation == Isolation.DOMAIN) {
+      final int colon = objectName.indexOf(':');
+      key = colon >= 0 ? objectName.substring(0, colon) : objectName;
+    } else {
+      key = objectName;
+    }
+    final Guarded guarded = new Guarded(command, objectName, bulkhead(key));
+    guards.add(guarded);
+    return guarded;
+  }
+
+  private ThreadPoolExecutor bulkhead(final String key) {
+    synchronized (bulkheads) {
+      ThreadPoolExecutor executor = bulkheads.get(key);
+      if (executor == null) {
+        // the queue holds at most one read per guarded command, since a command's ticks are skipped while it waits
+        executor =
+          new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+            threadFactory(key));
+        executor.allowCoreThreadTimeOut(true);
+        bulkheads.put(key, executor);
+      }
+      return executor;
+    }
+  }
+
+  private static ThreadFactory threadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread t =
+          new Thread(r, "asperatus-jmx-bulkhead-" + name + "-" + sequenceNumGenerator.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /** Abandons and reports every read that has missed its deadline. */
+  void checkDeadlines() {
+    final long now = ticker.read();
+    for (final Guarded guarded : guards) {
+      guarded.checkDeadline(now);
+    }
+  }
+
+  /** Stops the watchdog and every bulkhead, interrupting the reads still running. */
+  @Override
+  public void close() {
+    watchdog.shutdownNow();
+    synchronized (bulkheads) {
+      for (final ThreadPoolExecutor executor : bulkheads.values()) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /** A command whose runs are handed to a bulkhead, with at most one read pending at a time. */
+  private final class Guarded implements Runnable, Closeable {
+    private final Runnable command;
+    private final String source;
+    private final ThreadPoolExecutor executor;
+    private final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        read();
+      }
+    };
+    // all guarded by this
+    private boolean pending;
+    private long submittedNanos;
+    private Thread reader;
+    private boolean abandoned;
+
+    Guarded(final Runnable command, final String source, final ThreadPoolExecutor executor) {
+      this.command = command;
+      this.source = source;
+      this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (pending) {
+          // the last read has not finished or been withdrawn; the watchdog reports it once it is overdue
+          return;
+        }
+        pending = true;
+        submittedNanos = ticker.read();
+      }
+      try {
+        executor.execute(task);
+      } catch (final RejectedExecutionException e) {
+        // the bulkheads were closed
+        synchronized (this) {
+          pending = false;
+        }
+      }
+    }
+
+    private void read() {
+      synchronized (this) {
+        reader = Thread.currentThread();
+      }
+      try {
+        command.run();
+      } finally {
+        synchronized (this) {
+          reader = null;
+          pending = false;
+          abandoned = false;
+          // clear an interrupt meant for this read, under the lock so that none can arrive after
+          Thread.interrupted();
+        }
+      }
+    }
+
+    void checkDeadline(final long now) {
+      synchronized (this) {
+        if (!pending || abandoned || now - submittedNanos < deadlineNanos) {
+          return;
+        }
+        if (reader == null) {
+          if (!executor.remove(task)) {
+            // it is just starting, so check it again next time
+            return;
+          }
+          pending = false;
+        } else {
+          abandoned = true;
+          reader.interrupt();
+        }
+      }
+      ErrorCode.READ_TIMED_OUT.report(errorHandler, source, null, null);
+    }
+
+    @Override
+    public void close() throws IOException {
+      guards.remove(this);
+      if (command instanceof Closeable) {
+        ((Closeable) command).close();
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package com.bizo.asperatus.jmx;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * This class tracks the health of reads from one MBean so that an MBean that keeps failing, eg because it is not
+ * registered yet, is not read and reported on every period.
+ * 
+ * After a failure the breaker backs off, allowing one probe read after a delay that doubles with each consecutive
+ * failure. After openThreshold consecutive failures it opens, and only probes at the maximum delay. Only the first
+ * failure and the opening are reported; a successful read makes it healthy again.
+ * 
+ * When a read fails because the MBean is not registered, the breaker listens for the MBean's registration and becomes
+ * healthy as soon as it appears, so the next period reads it without waiting out the backoff.
+ */
+public final class CircuitBreaker implements Closeable {
+  /** The health of an MBean. */
+  public enum State {
+    /** Every read is attempted. */
+    HEALTHY,
+    /** Reads have failed recently; only probes are attempted, at increasing intervals. */
+    BACKING_OFF,
+    /** Reads have failed too many times in a row; only probes are attempted, at the maximum interval. */
+    OPEN
+  }
+
+  private final ObjectName jmxName;
+  private final MBeanServerConnection mBeanServer;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final int openThreshold;
+  private final Ticker ticker;
+  private final NotificationListener listener = new NotificationListener() {
+    @Override
+    public void handleNotification(final Notification notification, final Object handback) {
+      if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        rearm();
+      }
+    }
+  };
+
+  private volatile State state = State.HEALTHY;
+  private int failures = 0;
+  private long retryAtNanos;
+  private boolean listening = false;
+
+  /**
+   * Creates a new breaker.
+   * 
+   * @param jmxName
+   *          the MBean whose reads are tracked
+   * @param server
+   *          the MBeanServer, or connection to a remote MBeanServer, containing the MBean
+   * @param initialBackoffNanos
+   *          the delay before the first probe after a failure
+   * @param maxBackoffNanos
+   *          the longest delay between probes
+   * @param openThreshold
+   *          the number of consecutive failures after which the breaker opens
+   */
+  CircuitBreaker(
+      final ObjectName jmxName,
+      final MBeanServerConnection server,
+      final long initialBackoffNanos,
+      final long maxBackoffNanos,
+      final int openThreshold,
+      final Ticker ticker) {
+    Preconditions.checkArgument(initialBackoffNanos > 0, "initial backoff must be positive");
+    Preconditions.checkArgument(openThreshold > 0, "open threshold must be positive");
+    this.jmxName = jmxName;
+    mBeanServer = server;
+    this.initialBackoffNanos = initialBackoffNanos;
+    this.maxBackoffNanos = Math.max(initialBackoffNanos, maxBackoffNanos);
+    this.openThreshold = openThreshold;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Whether a read should be attempted now. While backing off or open, this allows a single probe once the backoff
+   * has elapsed.
+   */
+  boolean allowRequest() {
+    if (state == State.HEALTHY) {
+      return true;
+    }
+    synchronized (this) {
+      final long now = ticker.read();
+      if (state == State.HEALTHY || now - retryAtNanos >= 0) {
+        // push the next probe out so an overlapping run does not probe too
+        retryAtNanos = now + backoffNanos();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /** Records a successful read, making the breaker healthy. */
+  void recordSuccess() {
+    if (state == State.HEALTHY) {
+      return;
+    }
+    synchronized (this) {
+      state = State.HEALTHY;
+      failures = 0;
+      stopListening();
+    }
+  }
+
+  /**
+   * Records a failed read.
+   * 
+   * @return whether the failure should be reported, ie it is the first failure since the breaker was healthy or the
+   *         one that opened it
+   */
+  synchronized boolean recordFailure(final Exception e) {
+    failures++;
+    final State previous = state;
+    state = failures >= openThreshold ? State.OPEN : State.BACKING_OFF;
+    retryAtNanos = ticker.read() + backoffNanos();
+    if (e instanceof InstanceNotFoundException) {
+      startListening();
+    }
+    return previous == State.HEALTHY || (previous != State.OPEN && state == State.OPEN);
+  }
+
+  /** The current health of the MBean. */
+  public State getState() {
+    return state;
+  }
+
+  /** The number of consecutive failed reads. */
+  public synchronized int getFailures() {
+    return failures;
+  }
+
+  /** The MBean whose reads are tracked. */
+  public ObjectName getObjectName() {
+    return jmxName;
+  }
+
+  /** Stops listening for the MBean's registration. */
+  @Override
+  public synchronized void close() {
+    stopListening();
+  }
+
+  private long backoffNanos() {
+    // failures is at least one here, and the shift is capped well before it overflows
+    final int doublings = Math.min(failures - 1, 30);
+    final long backoff = initialBackoffNanos << doublings;
+    return state == State.OPEN || backoff <= 0 || backoff > maxBackoffNanos ? maxBackoffNanos : backoff;
+  }
+
+  private synchronized void rearm() {
+    state = State.HEALTHY;
+    failures = 0;
+    retryAtNanos = ticker.read();
+    // the MBean is back, so there is nothing left to wait for
+    stopListening();
+  }
+
+  private void startListening() {
+    if (listening) {
+      return;
+    }
+    final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+    filter.enableObjectName(jmxName);
+    try {
+      mBeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+      listening = true;
+    } catch (final InstanceNotFoundException e) {
+      // the server has no delegate, so fall back to probing
+    } catch (final IOException e) {
+      // the connection failed; the next failure will try again
+    }
+  }
+
+  private void stopListening() {
+    if (!listening) {
+      return;
+    }
+    listening = false;
+    try {
+      mBeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener);
+    } catch (final InstanceNotFoundException e) {
+      // the server is gone, so there is nothing left to listen to
+    } catch (final ListenerNotFoundException e) {
+      // already removed
+    } catch (final IOException e) {
+      // the connection is gone, and the listener with it
+    }
+  }
+}
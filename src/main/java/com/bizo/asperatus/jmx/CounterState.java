@@ -0,0 +1,63 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.concurrent.TimeUnit;
+
+import com.bizo.asperatus.jmx.configuration.MetricMode;
+
+/**
+ * Remembers the previous sample of a monotonic counter so that it can be sent as a delta or a per-second rate.
+ * 
+ * Nothing is produced for the first sample, which only establishes the baseline. A sample lower than its predecessor
+ * means the counter was reset (eg its JVM restarted), so the counter is assumed to have started again from zero and
+ * the sample itself is the increase.
+ * 
+ * Instances are not thread-safe; each one belongs to a single runnable, which never runs concurrently with itself.
+ */
+final class CounterState {
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final MetricMode mode;
+  private boolean primed = false;
+  private double lastValue;
+  private long lastNanos;
+  private double result;
+
+  CounterState(final MetricMode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Records a sample.
+   * 
+   * @param value
+   *          the counter's value
+   * @param nanos
+   *          when the sample was taken, from System.nanoTime
+   * @return true if a delta or rate is available from result()
+   */
+  boolean update(final double value, final long nanos) {
+    final boolean hasResult;
+    if (!primed) {
+      hasResult = false;
+    } else {
+      final double increase = value >= lastValue ? value - lastValue : value;
+      final long elapsed = nanos - lastNanos;
+      if (mode == MetricMode.RATE) {
+        hasResult = elapsed > 0;
+        result = hasResult ? increase * NANOS_PER_SECOND / elapsed : 0;
+      } else {
+        hasResult = true;
+        result = increase;
+      }
+    }
+    primed = true;
+    lastValue = value;
+    lastNanos = nanos;
+    return hasResult;
+  }
+
+  /** The delta or rate computed by the last update that returned true. */
+  double result() {
+    return result;
+  }
+}
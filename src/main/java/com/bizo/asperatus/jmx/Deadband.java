@@ -0,0 +1,72 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.concurrent.TimeUnit;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+
+/**
+ * Suppresses samples that are within an absolute or relative threshold of the last value published, while still
+ * publishing at least once per heartbeat interval so that a flat metric does not disappear.
+ * 
+ * Instances are not thread-safe; each one belongs to a single runnable, which never runs concurrently with itself.
+ */
+final class Deadband {
+  private final double absolute;
+  private final double relative;
+  private final long heartbeatNanos;
+  private boolean published = false;
+  private double lastValue;
+  private long lastNanos;
+
+  /**
+   * Creates a new deadband.
+   * 
+   * @param absolute
+   *          the largest change that is suppressed, or NaN
+   * @param relative
+   *          the largest change that is suppressed as a fraction of the last value published, or NaN
+   * @param heartbeatNanos
+   *          the longest time without publishing, or 0 for no limit
+   */
+  Deadband(final double absolute, final double relative, final long heartbeatNanos) {
+    this.absolute = absolute;
+    this.relative = relative;
+    this.heartbeatNanos = heartbeatNanos;
+  }
+
+  /** Returns the deadband configured for the given metric, or null if it has none. */
+  static Deadband forConfig(final MetricConfiguration config) {
+    if (config.getDeadband() == null && config.getDeadbandPercent() == null) {
+      return null;
+    }
+    return new Deadband(
+      config.getDeadband() != null ? config.getDeadband() : Double.NaN,
+      config.getDeadbandPercent() != null ? config.getDeadbandPercent() / 100 : Double.NaN,
+      TimeUnit.SECONDS.toNanos(config.getHeartbeat()));
+  }
+
+  /**
+   * Decides whether to publish a sample, remembering it as the last published value if so.
+   * 
+   * @param value
+   *          the sample
+   * @param nanos
+   *          when the sample was taken, from System.nanoTime
+   */
+  boolean shouldPublish(final double value, final long nanos) {
+    if (published && !heartbeatDue(nanos)) {
+      final double change = Math.abs(value - lastValue);
+      if (change <= absolute || change <= relative * Math.abs(lastValue)) {
+        return false;
+      }
+    }
+    published = true;
+    lastValue = value;
+    lastNanos = nanos;
+    return true;
+  }
+
+  private boolean heartbeatDue(final long nanos) {
+    return heartbeatNanos > 0 && nanos - lastNanos >= heartbeatNanos;
+  }
+}
@@ -0,0 +1,153 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * This ErrorHandler decorator passes on only the first occurrence, per interval, of each structured error, identified
+ * by its code, source and type. Repeats are counted, and once the interval has passed each repeated error is summarized
+ * to the delegate in a single message, eg "READ_FAILED for HeapMemoryUsage occurred 240 times in 60s:
+ * javax.management.InstanceNotFoundException".
+ * 
+ * Summaries are sent by the first error reported after the interval has passed, or by calling flush. Unstructured
+ * errors are passed on unchanged.
+ */
+public class DeduplicatingErrorHandler implements StructuredErrorHandler {
+  private static final String NO_SOURCE = "";
+
+  private final ErrorHandler delegate;
+  private final long intervalNanos;
+  private final Ticker ticker;
+  private final ConcurrentMap<String, SourceErrors> sources = new ConcurrentHashMap<String, SourceErrors>();
+  private final AtomicLong windowStartNanos;
+
+  /**
+   * Creates a new handler.
+   * 
+   * @param delegate
+   *          the handler that receives the first occurrence of each error and the summaries of repeats
+   * @param interval
+   *          how often repeats are summarized
+   * @param unit
+   *          the unit of interval
+   */
+  public DeduplicatingErrorHandler(final ErrorHandler delegate, final long interval, final TimeUnit unit) {
+    this(delegate, interval, unit, Ticker.systemTicker());
+  }
+
+  DeduplicatingErrorHandler(final ErrorHandler delegate, final long interval, final TimeUnit unit, final Ticker ticker) {
+    Preconditions.checkArgument(interval > 0, "interval must be positive");
+    this.delegate = Preconditions.checkNotNull(delegate);
+    intervalNanos = unit.toNanos(interval);
+    this.ticker = ticker;
+    windowStartNanos = new AtomicLong(ticker.read());
+  }
+
+  @Override
+  public void handleError(final ErrorCode code, final String source, final Class<?> type, final Throwable cause) {
+    final long now = ticker.read();
+    final long windowStart = windowStartNanos.get();
+    if (now - windowStart >= intervalNanos && windowStartNanos.compareAndSet(windowStart, now)) {
+      summarize(now - windowStart);
+    }
+
+    final String key = source != null ? source : NO_SOURCE;
+    SourceErrors errors = sources.get(key);
+    if (errors == null) {
+      final SourceErrors created = new SourceErrors();
+      errors = sources.putIfAbsent(key, created);
+      if (errors == null) {
+        errors = created;
+      }
+    }
+    if (errors.record(code, type)) {
+      code.report(delegate, source, type, cause);
+    }
+  }
+
+  @Override
+  public void handleError(final String message, final Throwable cause) {
+    delegate.handleError(message, cause);
+  }
+
+  /**
+   * Summarizes the errors repeated since the last summary, and starts a new interval.
+   */
+  public void flush() {
+    final long now = ticker.read();
+    summarize(now - windowStartNanos.getAndSet(now));
+  }
+
+  private void summarize(final long elapsedNanos) {
+    final long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(elapsedNanos);
+    for (final Map.Entry<String, SourceErrors> entry : sources.entrySet()) {
+      final String source = NO_SOURCE.equals(entry.getKey()) ? null : entry.getKey();
+      final SourceErrors errors = entry.getValue();
+      final boolean idle;
+      synchronized (errors) {
+        idle = errors.size == 0;
+        for (int i = 0; i < errors.size; i++) {
+          final Counted counted = errors.counted[i];
+          if (counted.count > 1) {
+            delegate.handleError(String.format(
+              "%s for %s occurred %d times in %ds: %s",
+              counted.code,
+              source,
+              counted.count,
+              elapsedSeconds,
+              counted.type != null ? counted.type.getName() : "null"), null);
+          }
+          errors.counted[i] = null;
+        }
+        // the next occurrence of each error is passed on in full
+        errors.size = 0;
+      }
+      if (idle) {
+        // a source with no errors for a whole interval is forgotten
+        sources.remove(entry.getKey(), errors);
+      }
+    }
+  }
+
+  /** The errors of one source. A source rarely has more than a couple of distinct errors, so they are scanned. */
+  private static final class SourceErrors {
+    private Counted[] counted = new Counted[2];
+    private int size = 0;
+
+    /** Counts an occurrence of the given error, returning whether it is the first in this interval. */
+    synchronized boolean record(final ErrorCode code, final Class<?> type) {
+      for (int i = 0; i < size; i++) {
+        final Counted existing = counted[i];
+        if (existing.code == code && existing.type == type) {
+          existing.count++;
+          return false;
+        }
+      }
+      if (size == counted.length) {
+        final Counted[] grown = new Counted[size * 2];
+        System.arraycopy(counted, 0, grown, 0, size);
+        counted = grown;
+      }
+      counted[size++] = new Counted(code, type);
+      return true;
+    }
+  }
+
+  /** The number of times one error occurred in the current interval. */
+  private static final class Counted {
+    private final ErrorCode code;
+    private final Class<?> type;
+    private long count = 1;
+
+    Counted(final ErrorCode code, final Class<?> type) {
+      this.code = code;
+      this.type = type;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.bizo.asperatus.jmx;
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Identifies the kinds of error reported to an ErrorHandler, so that a StructuredErrorHandler can act on an error
+ * without a message having been formatted for it.
+ */
+public enum ErrorCode {
+  /** The attribute of a metric could not be read or pushed. The source is the metric name. */
+  READ_FAILED("Error while getting data for metric %1$s"),
+
+  /** The attribute of a metric was not a Number. The source is the metric name and the type that of the value. */
+  NOT_A_NUMBER("Metric %1$s returned a %2$s, required a " + Number.class),
+
+  /** The attribute of a metric was not CompositeData. The source is the metric name and the type that of the value. */
+  NOT_COMPOSITE_DATA("Metric %1$s returned a %2$s, required a " + CompositeData.class),
+
+  /**
+   * The path of a metric met a value it could not navigate, eg an index beyond the end of an array or a missing
+   * TabularData row. The source is the metric name and the type that of the value.
+   */
+  PATH_NOT_FOUND("Metric %1$s could not follow its path into a %2$s"),
+
+  /** An ObjectName pattern could not be resolved. The source is the pattern. */
+  PATTERN_UNRESOLVED("Could not resolve pattern %1$s"),
+
+  /**
+   * A read handed to a bulkhead missed its deadline, and was abandoned or withdrawn. The source is the ObjectName, or
+   * pattern, it reads.
+   */
+  READ_TIMED_OUT("Read of %1$s missed its deadline"),
+
+  /** A scheduled command threw an exception. There is no source. */
+  COMMAND_FAILED("Scheduled command threw an exception"),
+
+  /** A sample could not be handed to the tracker or a MetricSink. The source is the metric name, if known. */
+  PUBLISH_FAILED("Error while publishing metric %1$s"),
+
+  /** A sample could not be appended to, or replayed from, a SampleSpool. The source is the metric name, if known. */
+  SPOOL_FAILED("Error while spooling metric %1$s"),
+
+  /** Changed configurations could not be read, so the last good ones were kept. The source is the file. */
+  CONFIGURATION_REJECTED("Rejected changed configuration in %1$s"),
+
+  /** A listener threw an exception while applying changed configurations. The source is the file. */
+  CONFIGURATION_LISTENER_FAILED("Error while applying changed configuration in %1$s"),
+
+  /** A configuration cache file could not be read or written, so the JSON was parsed. The source is the file. */
+  CONFIGURATION_CACHE_FAILED("Could not use configuration cache %1$s"),
+
+  /** The statistics of a bridge could not be registered as an MBean. The source is the ObjectName. */
+  STATISTICS_NOT_REGISTERED("Could not register bridge statistics as %1$s");
+
+  private final String template;
+
+  private ErrorCode(final String template) {
+    this.template = template;
+  }
+
+  /**
+   * Formats the message an unstructured ErrorHandler receives for this error.
+   * 
+   * @param source
+   *          the metric name, pattern, or other source of the error; possibly null
+   * @param type
+   *          the class of the exception or offending value; possibly null
+   */
+  public String format(final String source, final Class<?> type) {
+    return String.format(template, source, type != null ? type.getName() : "null");
+  }
+
+  /**
+   * Reports this error to the given handler, without formatting a message if the handler is a
+   * StructuredErrorHandler.
+   */
+  public void report(final ErrorHandler handler, final String source, final Class<?> type, final Throwable cause) {
+    if (handler instanceof StructuredErrorHandler) {
+      ((StructuredErrorHandler) handler).handleError(this, source, type, cause);
+    } else {
+      handler.handleError(format(source, type), cause);
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This scheduler gives every command its own fixed-rate task on a ScheduledExecutorService.
+ */
+public class ExecutorMetricScheduler implements MetricScheduler {
+  private final ScheduledExecutorService executor;
+
+  public ExecutorMetricScheduler(final ScheduledExecutorService executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public Future<?> schedule(final Runnable command, final long initialDelay, final long period, final TimeUnit unit) {
+    return executor.scheduleAtFixedRate(command, initialDelay, period, unit);
+  }
+
+  @Override
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,86 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with power-of-two buckets, recorded without contention: each thread records into one of
+ * several stripes, chosen by its id, and the stripes are only summed when a snapshot is taken. Percentiles are
+ * accurate to within a factor of two.
+ */
+public final class LatencyHistogram {
+  /** Bucket i holds durations of fewer than 2^i nanoseconds that did not fit in bucket i - 1. */
+  private static final int BUCKETS = 64;
+  private static final int TOTAL = BUCKETS;
+  private static final int MAX = BUCKETS + 1;
+  /** Slots per stripe, padded so that the hot slots of adjacent stripes do not share a cache line. */
+  private static final int STRIDE = BUCKETS + 2 + 8;
+
+  private final int mask;
+  private final AtomicLongArray slots;
+
+  public LatencyHistogram() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  LatencyHistogram(final int concurrency) {
+    int stripes = 1;
+    while (stripes < concurrency) {
+      stripes <<= 1;
+    }
+    mask = stripes - 1;
+    slots = new AtomicLongArray(stripes * STRIDE);
+  }
+
+  /** Records one duration, in nanoseconds. Negative durations are recorded as 0. */
+  public void record(final long nanos) {
+    final long duration = Math.max(nanos, 0);
+    final int base = ((int) Thread.currentThread().getId() & mask) * STRIDE;
+    slots.incrementAndGet(base + BUCKETS - Long.numberOfLeadingZeros(duration));
+    slots.addAndGet(base + TOTAL, duration);
+    long max = slots.get(base + MAX);
+    while (duration > max && !slots.compareAndSet(base + MAX, max, duration)) {
+      max = slots.get(base + MAX);
+    }
+  }
+
+  /** Returns the count, total, maximum and percentiles of the durations recorded so far. */
+  public LatencySnapshot snapshot() {
+    final long[] counts = new long[BUCKETS];
+    long count = 0;
+    long total = 0;
+    long max = 0;
+    for (int base = 0; base < slots.length(); base += STRIDE) {
+      for (int i = 0; i < BUCKETS; i++) {
+        final long bucketCount = slots.get(base + i);
+        counts[i] += bucketCount;
+        count += bucketCount;
+      }
+      total += slots.get(base + TOTAL);
+      max = Math.max(max, slots.get(base + MAX));
+    }
+    return new LatencySnapshot(
+      count,
+      total,
+      max,
+      percentile(counts, count, max, 0.5),
+      percentile(counts, count, max, 0.9),
+      percentile(counts, count, max, 0.99));
+  }
+
+  /** Returns the upper bound of the bucket holding the given percentile, or the maximum if that is lower. */
+  private static long percentile(final long[] counts, final long count, final long max, final double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(count * fraction);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        final long upper = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+        return Math.min(upper, max);
+      }
+    }
+    return max;
+  }
+}
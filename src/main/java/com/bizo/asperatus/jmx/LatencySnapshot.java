@@ -0,0 +1,74 @@
+package com.bizo.asperatus.jmx;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A point-in-time summary of a LatencyHistogram, exposed through JMX as CompositeData. All durations are in
+ * nanoseconds.
+ */
+public final class LatencySnapshot {
+  private final long count;
+  private final long totalNanos;
+  private final long maxNanos;
+  private final long p50Nanos;
+  private final long p90Nanos;
+  private final long p99Nanos;
+
+  @ConstructorProperties({ "count", "totalNanos", "maxNanos", "p50Nanos", "p90Nanos", "p99Nanos" })
+  public LatencySnapshot(
+      final long count,
+      final long totalNanos,
+      final long maxNanos,
+      final long p50Nanos,
+      final long p90Nanos,
+      final long p99Nanos) {
+    this.count = count;
+    this.totalNanos = totalNanos;
+    this.maxNanos = maxNanos;
+    this.p50Nanos = p50Nanos;
+    this.p90Nanos = p90Nanos;
+    this.p99Nanos = p99Nanos;
+  }
+
+  /** The number of durations recorded. */
+  public long getCount() {
+    return count;
+  }
+
+  /** The sum of the durations recorded. */
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  /** The longest duration recorded. */
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /** The median duration, to within a factor of two. */
+  public long getP50Nanos() {
+    return p50Nanos;
+  }
+
+  /** The 90th percentile duration, to within a factor of two. */
+  public long getP90Nanos() {
+    return p90Nanos;
+  }
+
+  /** The 99th percentile duration, to within a factor of two. */
+  public long getP99Nanos() {
+    return p99Nanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+      "LatencySnapshot[count=%d, totalNanos=%d, maxNanos=%d, p50Nanos=%d, p90Nanos=%d, p99Nanos=%d]",
+      count,
+      totalNanos,
+      maxNanos,
+      p50Nanos,
+      p90Nanos,
+      p99Nanos);
+  }
+}
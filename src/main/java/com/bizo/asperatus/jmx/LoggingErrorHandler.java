@@ -5,9 +5,9 @@ import java.util.logging.Logger;
 
 /**
  * This simple implementation of an ErrorHandler simply logs errors to the given java.util.logging.Logger at the
- * specified fixed logging level.
+ * specified fixed logging level. Structured errors are only formatted if the logger will log them.
  */
-public class LoggingErrorHandler implements ErrorHandler {
+public class LoggingErrorHandler implements StructuredErrorHandler {
   private final Logger logger;
   private final Level level;
 
@@ -21,6 +21,13 @@ public class LoggingErrorHandler implements ErrorHandler {
     this.level = level;
   }
 
+  @Override
+  public void handleError(final ErrorCode code, final String source, final Class<?> type, final Throwable cause) {
+    if (logger.isLoggable(level)) {
+      handleError(code.format(source, type), cause);
+    }
+  }
+
   @Override
   public void handleError(final String message, final Throwable cause) {
     if (cause != null) {
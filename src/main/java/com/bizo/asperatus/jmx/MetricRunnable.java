@@ -1,27 +1,64 @@
 package com.bizo.asperatus.jmx;
 
+import static com.bizo.asperatus.jmx.configuration.MetricConfiguration.ALL_KEYS;
+
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
 
 import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
 import com.bizo.asperatus.jmx.configuration.MetricConfigurationException;
+import com.bizo.asperatus.jmx.configuration.MetricMode;
+import com.bizo.asperatus.jmx.configuration.ValueConversion;
+import com.bizo.asperatus.jmx.publish.MetricPublisher;
 import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
 import com.bizo.asperatus.tracker.MetricTracker;
 
 /**
  * This runnable executes a single pull of data from JMX and pushes the information to Asperatus.
+ * 
+ * A configuration that fans out (see MetricConfiguration.isFanOut) reads its attribute once and hands the value to a
+ * runnable per composite data key, each sending its own metric with its own mode, deadband and statistics. With the
+ * "*" key, those runnables are created for every numeric key when a value of a new CompositeType is first read.
+ * 
+ * A runnable created by a MetricRunnableFactoryImpl may have a CircuitBreaker that skips reads of an MBean that keeps
+ * failing; closing the runnable closes its breaker. Closing a runnable that sends to a MetricPublisher also releases
+ * the metrics it registered, so it must not be run again.
  */
-public class MetricRunnable implements Runnable {
-  private final MBeanServer mBeanServer;
+public class MetricRunnable implements Runnable, Closeable {
+  private final MBeanServerConnection mBeanServer;
   private final ObjectName jmxName;
   private final MetricTracker tracker;
+  private final MetricPublisher publisher;
+  private final int metricId;
   private final List<Dimension> dimensions;
   private final MetricConfiguration config;
+  private final AttributePath path;
+  private volatile ValueConverter converter;
   private final ErrorHandler errorHandler;
+  private final PublishCounters counters;
+  private final CounterState counter;
+  private final Deadband deadband;
+  private final StatisticAccumulator accumulator;
+  private final String[] statisticNames;
+  private final Unit[] statisticUnits;
+  private final int[] statisticIds;
+  private final CircuitBreaker breaker;
+  private final BridgeStatistics statistics;
+  private final LatencyHistogram readLatency;
+  private volatile MetricRunnable[] outputs;
+  private volatile CompositeType outputType;
+  /** Guarded by this, so that no sample is published once close has released the metrics. */
+  private boolean closed = false;
 
   /**
    * Creates a new MetricRunnable.
@@ -29,7 +66,7 @@ public class MetricRunnable implements Runnable {
    * @param config
    *          the configuration to pull
    * @param server
-   *          the MBeanServer containing data
+   *          the MBeanServer, or connection to a remote MBeanServer, containing data
    * @param tracker
    *          the Asperatus tracker that will receive data
    * @param dimensions
@@ -39,18 +76,147 @@ public class MetricRunnable implements Runnable {
    */
   public MetricRunnable(
       final MetricConfiguration config,
-      final MBeanServer server,
+      final MBeanServerConnection server,
       final MetricTracker tracker,
       final List<Dimension> dimensions,
       final ErrorHandler errorHandler) {
+    this(config, objectName(config), server, tracker, dimensions, errorHandler);
+  }
+
+  /**
+   * Creates a new MetricRunnable that reads from the given MBean instead of the one named by the configuration, eg
+   * an MBean matching a configured ObjectName pattern.
+   * 
+   * @param config
+   *          the configuration to pull
+   * @param jmxName
+   *          the concrete name of the MBean to read
+   * @param server
+   *          the MBeanServer, or connection to a remote MBeanServer, containing data
+   * @param tracker
+   *          the Asperatus tracker that will receive data
+   * @param dimensions
+   *          the dimensions to send to Asperatus
+   * @param errorHandler
+   *          the handler that processes error notifications
+   */
+  public MetricRunnable(
+      final MetricConfiguration config,
+      final ObjectName jmxName,
+      final MBeanServerConnection server,
+      final MetricTracker tracker,
+      final List<Dimension> dimensions,
+      final ErrorHandler errorHandler) {
+    this(config, jmxName, server, tracker, null, dimensions, errorHandler, new PublishCounters(), null, null);
+  }
+
+  /**
+   * Creates a new MetricRunnable that hands its samples to a MetricPublisher rather than calling a tracker directly.
+   * 
+   * @param config
+   *          the configuration to pull
+   * @param jmxName
+   *          the concrete name of the MBean to read
+   * @param server
+   *          the MBeanServer, or connection to a remote MBeanServer, containing data
+   * @param publisher
+   *          the publisher that will receive data
+   * @param dimensions
+   *          the dimensions to send to Asperatus
+   * @param errorHandler
+   *          the handler that processes error notifications
+   */
+  public MetricRunnable(
+      final MetricConfiguration config,
+      final ObjectName jmxName,
+      final MBeanServerConnection server,
+      final MetricPublisher publisher,
+      final List<Dimension> dimensions,
+      final ErrorHandler errorHandler) {
+    this(config, jmxName, server, null, publisher, dimensions, errorHandler, new PublishCounters(), null, null);
+  }
+
+  /**
+   * Creates a new MetricRunnable sending to exactly one of tracker and publisher, sharing counters with other runnables
+   * created by the same factory. The breaker may be null, eg for members of an AttributeBatchRunnable, which has its
+   * own, and the statistics may be null if they are not recorded.
+   */
+  MetricRunnable(
+      final MetricConfiguration config,
+      final ObjectName jmxName,
+      final MBeanServerConnection server,
+      final MetricTracker tracker,
+      final MetricPublisher publisher,
+      final List<Dimension> dimensions,
+      final ErrorHandler errorHandler,
+      final PublishCounters counters,
+      final CircuitBreaker breaker,
+      final BridgeStatistics statistics) {
     mBeanServer = server;
+    this.jmxName = jmxName;
     this.tracker = tracker;
+    this.publisher = publisher;
+    final boolean fanOut = config.isFanOut();
+    metricId =
+      publisher != null && !fanOut ? publisher.register(config.getMetricName(), config.getUnit(), dimensions) : -1;
     this.dimensions = dimensions;
     this.config = config;
+    if (config.getPath() != null) {
+      path = AttributePath.compile(config.getPath());
+    } else if (config.getCompositeDataKey() != null && !fanOut) {
+      path = AttributePath.key(config.getCompositeDataKey());
+    } else {
+      path = null;
+    }
+    converter = ValueConverter.forConfig(config);
     this.errorHandler = errorHandler;
+    this.counters = counters;
+    this.breaker = breaker;
+    this.statistics = statistics;
+    readLatency = statistics != null ? statistics.readLatency(config.getMetricName()) : null;
+    counter = config.getMode() == MetricMode.RAW || fanOut ? null : new CounterState(config.getMode());
 
+    if (config.getPublishFrequency() > 0 && !fanOut) {
+      // a window closes with the first sample at least half a sampling period short of the publish frequency
+      final long periodNanos = TimeUnit.MILLISECONDS.toNanos(config.getPeriodMillis());
+      final long windowNanos = TimeUnit.SECONDS.toNanos(config.getPublishFrequency()) - periodNanos / 2;
+      accumulator = new StatisticAccumulator(windowNanos);
+      deadband = null;
+      final String[] suffixes = StatisticAccumulator.STATISTIC_SUFFIXES;
+      statisticNames = new String[suffixes.length];
+      statisticUnits = new Unit[suffixes.length];
+      statisticIds = new int[suffixes.length];
+      for (int i = 0; i < suffixes.length; i++) {
+        statisticNames[i] = config.getMetricName() + suffixes[i];
+        statisticUnits[i] = i == suffixes.length - 1 ? Unit.Count : config.getUnit();
+        statisticIds[i] = publisher != null ? publisher.register(statisticNames[i], statisticUnits[i], dimensions) : -1;
+      }
+    } else {
+      accumulator = null;
+      deadband = fanOut ? null : Deadband.forConfig(config);
+      statisticNames = null;
+      statisticUnits = null;
+      statisticIds = null;
+    }
+
+    if (config.getCompositeDataKeys() != null) {
+      final List<MetricRunnable> list = new ArrayList<MetricRunnable>();
+      for (final Map.Entry<String, String> entry : config.getCompositeDataKeys().entrySet()) {
+        list.add(output(entry.getKey(), entry.getValue()));
+      }
+      outputs = list.toArray(new MetricRunnable[list.size()]);
+    }
+  }
+
+  /**
+   * Parses the objectName of a configuration.
+   * 
+   * @throws MetricConfigurationException
+   *           if the name is malformed
+   */
+  static ObjectName objectName(final MetricConfiguration config) {
     try {
-      jmxName = new ObjectName(config.getObjectName());
+      return config.getJmxName();
     } catch (final MalformedObjectNameException moan) {
       throw new MetricConfigurationException(moan);
     }
@@ -58,38 +224,278 @@ public class MetricRunnable implements Runnable {
 
   @Override
   public void run() {
+    if (breaker != null && !breaker.allowRequest()) {
+      return;
+    }
+    final long start = statistics != null ? System.nanoTime() : 0;
+    final Object result;
     try {
-      final Object result = mBeanServer.getAttribute(jmxName, config.getAttribute());
-      if (config.getCompositeDataKey() != null) {
-        if (result instanceof CompositeData) {
-          final CompositeData cData = (CompositeData) result;
-          final Object compositeDataValue = cData.get(config.getCompositeDataKey());
-          if (compositeDataValue != null && compositeDataValue instanceof Number) {
-            track((Number) compositeDataValue);
-          } else {
-            typeError(compositeDataValue, Number.class);
-          }
-        } else {
-          typeError(result, CompositeData.class);
+      result = mBeanServer.getAttribute(jmxName, config.getAttribute());
+    } catch (final Exception e) {
+      if (breaker == null || breaker.recordFailure(e)) {
+        readFailed(e);
+      }
+      return;
+    }
+    if (statistics != null) {
+      final long elapsed = System.nanoTime() - start;
+      statistics.recordRead(elapsed);
+      recordReadLatency(elapsed);
+    }
+    if (breaker != null) {
+      breaker.recordSuccess();
+    }
+    accept(result);
+  }
+
+  /**
+   * Closes this runnable's CircuitBreaker, if it has one, releases the metrics it registered with a publisher, and
+   * stops recording its read times in the statistics.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (breaker != null) {
+      breaker.close();
+    }
+    if (readLatency != null) {
+      statistics.releaseReadLatency(config.getMetricName());
+    }
+    if (publisher != null) {
+      if (metricId >= 0) {
+        publisher.release(metricId);
+      }
+      if (statisticIds != null) {
+        for (final int id : statisticIds) {
+          publisher.release(id);
         }
-      } else if (result instanceof Number) {
-        track((Number) result);
+      }
+    }
+    final MetricRunnable[] targets = outputs;
+    if (targets != null) {
+      for (final MetricRunnable output : targets) {
+        output.close();
+      }
+    }
+  }
+
+  /** The CircuitBreaker guarding reads by this runnable, or null if it has none. */
+  public CircuitBreaker getCircuitBreaker() {
+    return breaker;
+  }
+
+  /** The configuration pulled by this runnable. */
+  public MetricConfiguration getConfig() {
+    return config;
+  }
+
+  /** The JMX name of the MBean read by this runnable. */
+  public ObjectName getObjectName() {
+    return jmxName;
+  }
+
+  /**
+   * Pushes an attribute value that was read on behalf of this runnable, eg by an {@link AttributeBatchRunnable}.
+   */
+  void accept(final Object result) {
+    if (config.isFanOut()) {
+      fanOut(result);
+      return;
+    }
+    try {
+      final Object value = path != null ? path.extract(result) : result;
+      // Numbers are taken as they are unless a configured conversion, eg TIMESTAMP, applies to them too
+      final ValueConversion configured = config.getValueConversion();
+      if (value instanceof Number && (configured == null || configured == ValueConversion.NUMBER)) {
+        track((Number) value, ((Number) value).doubleValue());
+        return;
+      }
+      ValueConverter valueConverter = converter;
+      if (valueConverter == null) {
+        // chosen once, from the first value that needs one
+        valueConverter = ValueConverter.infer(value, config.getEnumValues());
+        converter = valueConverter;
+      }
+      final double converted = valueConverter != null ? valueConverter.convert(value) : Double.NaN;
+      if (Double.isNaN(converted)) {
+        typeError(ErrorCode.NOT_A_NUMBER, value);
       } else {
-        typeError(result, Number.class);
+        track(null, converted);
       }
+    } catch (final AttributePath.Mismatch m) {
+      typeError(m.getCode(), m.getValue());
     } catch (final Exception e) {
-      errorHandler.handleError("Error while getting data for metric " + config.getMetricName(), e);
+      readFailed(e);
     }
   }
 
-  private void track(final Number value) {
-    tracker.track(config.getMetricName(), value, config.getUnit(), dimensions);
+  /** Hands a value read once to the runnable for each of its composite data keys. */
+  private void fanOut(final Object result) {
+    MetricRunnable[] targets = outputs;
+    if (ALL_KEYS.equals(config.getCompositeDataKey())) {
+      if (!(result instanceof CompositeData)) {
+        typeError(ErrorCode.NOT_COMPOSITE_DATA, result);
+        return;
+      }
+      final CompositeData data = (CompositeData) result;
+      final CompositeType type = data.getCompositeType();
+      if (targets == null || (type != outputType && !type.equals(outputType))) {
+        targets = outputsFor(data);
+      }
+    }
+    for (final MetricRunnable output : targets) {
+      output.accept(result);
+    }
+  }
+
+  /**
+   * Creates a runnable for each numeric key of the given value, named metricName.key, and closes the runnables for the
+   * previous CompositeType.
+   */
+  private MetricRunnable[] outputsFor(final CompositeData data) {
+    final List<MetricRunnable> list = new ArrayList<MetricRunnable>();
+    for (final String key : data.getCompositeType().keySet()) {
+      if (data.get(key) instanceof Number) {
+        list.add(output(key, config.getMetricName() + "." + key));
+      }
+    }
+    final MetricRunnable[] targets = list.toArray(new MetricRunnable[list.size()]);
+    final MetricRunnable[] previous = outputs;
+    outputType = data.getCompositeType();
+    outputs = targets;
+    if (previous != null) {
+      // after the new runnables registered, so that metrics of keys the types share keep their ids
+      for (final MetricRunnable output : previous) {
+        output.close();
+      }
+    }
+    return targets;
+  }
+
+  /** Creates the runnable sending the value of one composite data key as the given metric. */
+  private MetricRunnable output(final String key, final String metricName) {
+    final MetricConfiguration outputConfig =
+      MetricConfiguration.builder(config).compositeDataKey(key).compositeDataKeys(null).metricName(metricName).build();
+    return new MetricRunnable(
+      outputConfig,
+      jmxName,
+      mBeanServer,
+      tracker,
+      publisher,
+      dimensions,
+      errorHandler,
+      counters,
+      null,
+      statistics);
+  }
+
+  /** Records the time taken to read the attribute for this runnable, eg by an {@link AttributeBatchRunnable}. */
+  void recordReadLatency(final long nanos) {
+    if (readLatency != null) {
+      readLatency.record(nanos);
+    }
+    final MetricRunnable[] targets = outputs;
+    if (targets != null) {
+      for (final MetricRunnable output : targets) {
+        output.recordReadLatency(nanos);
+      }
+    }
+  }
+
+  /** Reports that the attribute for this runnable could not be read or pushed. */
+  void readFailed(final Exception e) {
+    ErrorCode.READ_FAILED.report(errorHandler, config.getMetricName(), e.getClass(), e);
+  }
+
+  /**
+   * Sends a value, or applies it to the counter or statistics first.
+   * 
+   * @param original
+   *          the Number read, passed on to the tracker as it is when the value is sent unchanged; or null if the value
+   *          was converted from something else
+   * @param value
+   *          the value as a double
+   */
+  private void track(final Number original, final double value) {
+    if (counter == null && accumulator == null) {
+      if (deadband == null || shouldPublish(value, System.nanoTime())) {
+        if (publisher != null) {
+          publishUnlessClosed(metricId, value);
+        } else {
+          push(config.getMetricName(), original != null ? original : value, config.getUnit());
+        }
+        counters.recordSent();
+      }
+      return;
+    }
+
+    final long nanos = System.nanoTime();
+    double sample = value;
+    if (counter != null) {
+      if (!counter.update(sample, nanos)) {
+        return;
+      }
+      sample = counter.result();
+    }
+    if (accumulator != null) {
+      if (accumulator.windowElapsed(nanos)) {
+        sendStatistics();
+        accumulator.reset();
+      }
+      accumulator.add(sample, nanos);
+    } else if (shouldPublish(sample, nanos)) {
+      send(metricId, config.getMetricName(), config.getUnit(), sample);
+    }
+  }
+
+  private boolean shouldPublish(final double value, final long nanos) {
+    if (deadband == null || deadband.shouldPublish(value, nanos)) {
+      return true;
+    }
+    counters.recordSuppressed();
+    return false;
+  }
+
+  private void sendStatistics() {
+    send(statisticIds[0], statisticNames[0], statisticUnits[0], accumulator.getMin());
+    send(statisticIds[1], statisticNames[1], statisticUnits[1], accumulator.getMax());
+    send(statisticIds[2], statisticNames[2], statisticUnits[2], accumulator.getSum());
+    send(statisticIds[3], statisticNames[3], statisticUnits[3], accumulator.getCount());
+  }
+
+  private void send(final int id, final String name, final Unit unit, final double value) {
+    if (publisher != null) {
+      publishUnlessClosed(id, value);
+    } else {
+      push(name, value, unit);
+    }
+    counters.recordSent();
+  }
+
+  /**
+   * Publishes a sample unless this runnable is closed. Holding the lock that close takes means close waits for a
+   * sample being published before it releases the id, so a run overlapping close never publishes to a released id.
+   */
+  private synchronized void publishUnlessClosed(final int id, final double value) {
+    if (!closed) {
+      publisher.publish(id, value);
+    }
+  }
+
+  private void push(final String name, final Number value, final Unit unit) {
+    if (statistics == null) {
+      tracker.track(name, value, unit, dimensions);
+      return;
+    }
+    final long start = System.nanoTime();
+    tracker.track(name, value, unit, dimensions);
+    statistics.pushLatency().record(System.nanoTime() - start);
   }
 
-  private void typeError(final Object result, final Class<?> expectedType) {
-    final String actualType = result != null ? result.getClass().getName() : "null";
-    errorHandler.handleError(
-      String.format("Metric %s returned a %s, required a %s", config.getMetricName(), actualType, expectedType),
-      null);
+  private void typeError(final ErrorCode code, final Object result) {
+    code.report(errorHandler, config.getMetricName(), result != null ? result.getClass() : null, null);
   }
 }
@@ -3,41 +3,202 @@ package com.bizo.asperatus.jmx;
 import static java.util.logging.Level.WARNING;
 
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
 
 import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.jmx.publish.MetricPublisher;
 import com.bizo.asperatus.logging.error.MachineInfo;
 import com.bizo.asperatus.model.Dimension;
 import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 /**
  * This class allows setting a common MBeanServer, Dimensions, and ErrorHandler and constructing new MetricRunnables
  * from MetricConfigurations.
+ * 
+ * Configurations whose objectName is a pattern produce a PatternMetricRunnable. Each MBean matching the pattern is
+ * tracked with an additional "ObjectName" dimension holding its canonical name, so every match is its own metric,
+ * unless the configuration has keyDimensions to tell the matches apart.
+ * 
+ * Besides the common dimensions, a configuration may add static dimensions and dimensions taken from the key
+ * properties of the MBean it reads. The combined list is built once per MBean, when its runnable is created, and
+ * interned, so metrics with the same dimensions share one list and nothing is built per sample.
+ * 
+ * Reads of an explicitly named MBean are guarded by a CircuitBreaker, so an MBean that keeps failing is probed with
+ * exponential backoff rather than read and reported every period. MBeans matching a pattern have no breaker, as they
+ * stop being read as soon as they are unregistered.
  */
-public final class MetricRunnableFactoryImpl implements MetricRunnableFactory {
-  private MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+public final class MetricRunnableFactoryImpl implements BatchMetricRunnableFactory {
+  /** The dimension identifying which MBean matched an ObjectName pattern. */
+  public static final String OBJECT_NAME_DIMENSION = "ObjectName";
+
+  private MBeanServerConnection mBeanServer = ManagementFactory.getPlatformMBeanServer();
   private final MetricTracker tracker;
+  private MetricPublisher publisher = null;
   private List<Dimension> dimensions = MachineInfo.defaultDimensions;
-  private ErrorHandler errorHandler = new LoggingErrorHandler(MetricRunnable.class, WARNING);
+  private ErrorHandler errorHandler =
+    new DeduplicatingErrorHandler(new LoggingErrorHandler(MetricRunnable.class, WARNING), 1, TimeUnit.MINUTES);
+  private final PublishCounters publishCounters = new PublishCounters();
+  private final Interner<List<Dimension>> dimensionLists = Interners.newWeakInterner();
+  private int openThreshold = 8;
+  private long maxBackoffNanos = TimeUnit.MINUTES.toNanos(15);
+  private BridgeStatistics statistics = null;
 
   public MetricRunnableFactoryImpl(final MetricTracker tracker) {
     this.tracker = tracker;
   }
 
   @Override
-  public MetricRunnable get(final MetricConfiguration config) {
-    return new MetricRunnable(config, mBeanServer, tracker, dimensions, errorHandler);
+  public Runnable get(final MetricConfiguration config) {
+    return getBatch(ImmutableList.of(config));
+  }
+
+  @Override
+  public Runnable getBatch(final Collection<MetricConfiguration> configs) {
+    final ObjectName jmxName = MetricRunnable.objectName(configs.iterator().next());
+    if (jmxName.isPattern()) {
+      final List<MetricConfiguration> members = ImmutableList.copyOf(configs);
+      final List<Dimension> baseDimensions = dimensions;
+      return new PatternMetricRunnable(jmxName, mBeanServer, new Function<ObjectName, Runnable>() {
+        @Override
+        public Runnable apply(final ObjectName match) {
+          return forMBean(members, match, baseDimensions, true);
+        }
+      }, errorHandler());
+    }
+    return forMBean(configs, jmxName, dimensions, false);
+  }
+
+  /**
+   * @param matched
+   *          whether the MBean matched a pattern, in which case it has no CircuitBreaker
+   */
+  private Runnable forMBean(
+      final Collection<MetricConfiguration> configs,
+      final ObjectName jmxName,
+      final List<Dimension> baseDimensions,
+      final boolean matched) {
+    final CircuitBreaker breaker;
+    if (!matched && openThreshold > 0) {
+      final long periodNanos = TimeUnit.MILLISECONDS.toNanos(configs.iterator().next().getPeriodMillis());
+      breaker =
+        new CircuitBreaker(jmxName, mBeanServer, periodNanos, maxBackoffNanos, openThreshold, Ticker.systemTicker());
+    } else {
+      breaker = null;
+    }
+
+    final List<MetricRunnable> members = new ArrayList<MetricRunnable>(configs.size());
+    for (final MetricConfiguration config : configs) {
+      members.add(new MetricRunnable(
+        config,
+        jmxName,
+        mBeanServer,
+        publisher != null ? null : tracker,
+        publisher,
+        dimensionsFor(config, jmxName, baseDimensions, matched),
+        errorHandler(),
+        publishCounters,
+        configs.size() == 1 ? breaker : null,
+        statistics));
+    }
+    if (members.size() == 1) {
+      return members.get(0);
+    }
+    return new AttributeBatchRunnable(mBeanServer, members, breaker, statistics);
+  }
+
+  /**
+   * Returns the dimensions of a metric of the given MBean: the common ones, the MBean's canonical name if it matched a
+   * pattern and the configuration has no keyDimensions, and the configuration's static and key property dimensions.
+   */
+  private List<Dimension> dimensionsFor(
+      final MetricConfiguration config,
+      final ObjectName jmxName,
+      final List<Dimension> baseDimensions,
+      final boolean matched) {
+    final Map<String, String> keyDimensions = config.getKeyDimensions();
+    if (!matched && config.getDimensions() == null && keyDimensions == null) {
+      return baseDimensions;
+    }
+    final ImmutableList.Builder<Dimension> builder = ImmutableList.<Dimension> builder().addAll(baseDimensions);
+    if (matched && keyDimensions == null) {
+      builder.add(new Dimension(OBJECT_NAME_DIMENSION, jmxName.getCanonicalName()));
+    }
+    if (config.getDimensions() != null) {
+      for (final Map.Entry<String, String> entry : config.getDimensions().entrySet()) {
+        builder.add(new Dimension(entry.getKey(), entry.getValue()));
+      }
+    }
+    if (keyDimensions != null) {
+      for (final Map.Entry<String, String> entry : keyDimensions.entrySet()) {
+        final String value = jmxName.getKeyProperty(entry.getValue());
+        if (value != null) {
+          builder.add(new Dimension(entry.getKey(), value.startsWith("\"") ? ObjectName.unquote(value) : value));
+        }
+      }
+    }
+    return dimensionLists.intern(builder.build());
+  }
+
+  /** The error handler given to new runnables, which counts errors in the statistics if they are recorded. */
+  private ErrorHandler errorHandler() {
+    return statistics != null ? statistics.countErrors(errorHandler) : errorHandler;
   }
 
   /**
-   * Sets the MBeanServer from which data will be pulled. Defaults to the PlatformMBeanServer.
+   * Returns the counts of samples sent and suppressed by every runnable created by this factory.
    */
-  public void setMBeanServer(final MBeanServer mBeanServer) {
+  public PublishCounters getPublishCounters() {
+    return publishCounters;
+  }
+
+  /**
+   * Sets when the CircuitBreaker of each MBean opens. A breaker backs off exponentially from one period after a failed
+   * read, and opens after openThreshold consecutive failures, after which it probes every maxBackoff. Defaults to 8
+   * failures and 15 minutes. An openThreshold of 0 disables the breakers.
+   */
+  public void setCircuitBreaker(final int openThreshold, final long maxBackoff, final TimeUnit unit) {
+    Preconditions.checkArgument(openThreshold >= 0, "openThreshold must not be negative");
+    this.openThreshold = openThreshold;
+    maxBackoffNanos = unit.toNanos(maxBackoff);
+  }
+
+  /**
+   * Sets the statistics in which runnables created by this factory record their read and push times and their errors.
+   * Defaults to null, which records nothing.
+   */
+  public void setStatistics(final BridgeStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Sets the MBeanServer from which data will be pulled. This may be a connection to a remote MBeanServer. Defaults to
+   * the PlatformMBeanServer.
+   */
+  public void setMBeanServer(final MBeanServerConnection mBeanServer) {
     this.mBeanServer = mBeanServer;
   }
 
+  /**
+   * Sets a publisher that will receive samples in place of the tracker, eg an AsyncMetricPublisher that keeps slow
+   * tracking off the polling thread. Defaults to null, which tracks samples directly on the polling thread.
+   */
+  public void setPublisher(final MetricPublisher publisher) {
+    this.publisher = publisher;
+  }
+
   /**
    * Sets the dimensions to send to Asperatus. Defaults to MachineInfo.dimensions.
    */
@@ -46,7 +207,8 @@ public final class MetricRunnableFactoryImpl implements MetricRunnableFactory {
   }
 
   /**
-   * Sets the ErrorHandler that will receive exceptions. Defaults to a WARNING-level logging handler.
+   * Sets the ErrorHandler that will receive exceptions. Defaults to a WARNING-level logging handler that logs each
+   * distinct error once a minute, with a count of its repeats.
    */
   public void setErrorHandler(final ErrorHandler errorHandler) {
     this.errorHandler = errorHandler;
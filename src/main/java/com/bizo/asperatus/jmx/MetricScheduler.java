@@ -0,0 +1,30 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This interface describes something that periodically runs the runnables produced by a MetricRunnableFactory.
+ */
+public interface MetricScheduler {
+
+  /**
+   * Runs the command periodically until the returned future is cancelled.
+   * 
+   * @param command
+   *          the runnable to run
+   * @param initialDelay
+   *          the delay before the first run
+   * @param period
+   *          the time between successive runs
+   * @param unit
+   *          the unit of initialDelay and period
+   * @return a future that may be cancelled to stop running the command
+   */
+  Future<?> schedule(final Runnable command, final long initialDelay, final long period, final TimeUnit unit);
+
+  /**
+   * Stops running all commands and releases any threads held by this scheduler.
+   */
+  void shutdown();
+}
@@ -0,0 +1,202 @@
+package com.bizo.asperatus.jmx;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+/**
+ * This runnable pulls data from every MBean matching an ObjectName pattern. The pattern is resolved with queryNames
+ * once, and the set of matching MBeans is then kept current by listening for registration notifications from the
+ * MBeanServerDelegate, so a run never queries the MBeanServer for names.
+ * 
+ * Each matching MBean gets its own runnable, created once when the MBean is first matched, and closed, if it is
+ * Closeable, when the MBean stops matching. If the pattern cannot be
+ * resolved, eg because a remote MBeanServer is unreachable, resolution is retried on the next run. If the listener is
+ * told that notifications were lost, as a JmxConnectionPool does after reconnecting, the next run queries the pattern
+ * again so that MBeans registered or unregistered in the meantime are noticed.
+ */
+public class PatternMetricRunnable implements Runnable, Closeable {
+  private final MBeanServerConnection mBeanServer;
+  private final ObjectName pattern;
+  private final Function<ObjectName, Runnable> runnableFactory;
+  private final ErrorHandler errorHandler;
+  private final ConcurrentMap<ObjectName, Runnable> matches = new ConcurrentHashMap<ObjectName, Runnable>();
+  private final NotificationListener listener = new NotificationListener() {
+    @Override
+    public void handleNotification(final Notification notification, final Object handback) {
+      if (JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType())) {
+        stale = true;
+        return;
+      }
+      final ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+      if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        matched(name);
+      } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        close(matches.remove(name));
+      }
+    }
+  };
+  private volatile boolean resolved = false;
+  /** Whether registration notifications may have been lost, eg while reconnecting, so the pattern must be queried. */
+  private volatile boolean stale = false;
+  private volatile boolean closed = false;
+
+  /**
+   * Creates a new PatternMetricRunnable and resolves its pattern.
+   * 
+   * @param pattern
+   *          the ObjectName pattern to match
+   * @param server
+   *          the MBeanServer, or connection to a remote MBeanServer, containing data
+   * @param runnableFactory
+   *          creates the runnable that pulls data from a single matching MBean
+   * @param errorHandler
+   *          the handler that processes error notifications
+   */
+  public PatternMetricRunnable(
+      final ObjectName pattern,
+      final MBeanServerConnection server,
+      final Function<ObjectName, Runnable> runnableFactory,
+      final ErrorHandler errorHandler) {
+    Preconditions.checkArgument(pattern.isPattern(), "%s is not an ObjectName pattern", pattern);
+    this.pattern = pattern;
+    mBeanServer = server;
+    this.runnableFactory = runnableFactory;
+    this.errorHandler = errorHandler;
+    resolve();
+  }
+
+  private synchronized void resolve() {
+    if (resolved || closed) {
+      return;
+    }
+    // start listening before querying so that no registration can slip between the two
+    final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+    filter.enableAllObjectNames();
+    boolean listening = false;
+    try {
+      mBeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+      listening = true;
+      for (final ObjectName name : mBeanServer.queryNames(pattern, null)) {
+        matched(name);
+      }
+      resolved = true;
+    } catch (final InstanceNotFoundException e) {
+      ErrorCode.PATTERN_UNRESOLVED.report(errorHandler, pattern.getCanonicalName(), e.getClass(), e);
+    } catch (final IOException e) {
+      ErrorCode.PATTERN_UNRESOLVED.report(errorHandler, pattern.getCanonicalName(), e.getClass(), e);
+    } finally {
+      if (!resolved && listening) {
+        // the next attempt adds it again
+        removeListener();
+      }
+    }
+  }
+
+  private void removeListener() {
+    try {
+      mBeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener);
+    } catch (final InstanceNotFoundException e) {
+      // the server is gone, so there is nothing left to listen to
+    } catch (final ListenerNotFoundException e) {
+      // already removed
+    } catch (final IOException e) {
+      // the connection is gone, and the listener with it
+    }
+  }
+
+  private void matched(final ObjectName name) {
+    if (!closed && pattern.apply(name) && !matches.containsKey(name)) {
+      final Runnable runnable = runnableFactory.apply(name);
+      if (matches.putIfAbsent(name, runnable) != null) {
+        // matched concurrently by a notification and a query
+        close(runnable);
+      }
+    }
+  }
+
+  private static void close(final Runnable runnable) {
+    if (runnable instanceof Closeable) {
+      try {
+        ((Closeable) runnable).close();
+      } catch (final IOException e) {
+        // nothing more can be done for a runnable that is going away
+      }
+    }
+  }
+
+  /** Queries the pattern again, replacing the matches of MBeans registered or unregistered unnoticed. */
+  private synchronized void refresh() {
+    if (!stale || closed) {
+      return;
+    }
+    // cleared first, so that notifications lost during the query cause another
+    stale = false;
+    try {
+      final Set<ObjectName> names = mBeanServer.queryNames(pattern, null);
+      for (final ObjectName name : matches.keySet()) {
+        if (!names.contains(name)) {
+          close(matches.remove(name));
+        }
+      }
+      for (final ObjectName name : names) {
+        matched(name);
+      }
+    } catch (final IOException e) {
+      stale = true;
+      ErrorCode.PATTERN_UNRESOLVED.report(errorHandler, pattern.getCanonicalName(), e.getClass(), e);
+    }
+  }
+
+  @Override
+  public void run() {
+    if (!resolved) {
+      resolve();
+    } else if (stale) {
+      refresh();
+    }
+    for (final Runnable runnable : matches.values()) {
+      runnable.run();
+    }
+  }
+
+  /** The pattern matched by this runnable. */
+  public ObjectName getPattern() {
+    return pattern;
+  }
+
+  /** The number of MBeans currently matching the pattern. */
+  public int getMatchCount() {
+    return matches.size();
+  }
+
+  /**
+   * Stops listening for registration notifications, and closes the runnable of each match.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (resolved) {
+      removeListener();
+    }
+    for (final ObjectName name : matches.keySet()) {
+      close(matches.remove(name));
+    }
+  }
+}
@@ -0,0 +1,301 @@
+package com.bizo.asperatus.jmx;
+
+import static java.util.logging.Level.WARNING;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * This scheduler coalesces all commands with the same period and phase into a single bucket. Each bucket is one
+ * fixed-rate task on the underlying executor that runs every command in the bucket, so the executor holds one task per
+ * distinct period and phase rather than one per command.
+ * 
+ * The phase of a command is its initial delay modulo its period, measured from the time the scheduler was created, so
+ * commands given different phases run at different points of their period no matter when they were scheduled. A
+ * command joining an existing bucket first runs on that bucket's next tick.
+ */
+public class PeriodBucketScheduler implements MetricScheduler {
+  private final ScheduledExecutorService executor;
+  private final ErrorHandler errorHandler;
+  private final Map<BucketKey, Bucket> buckets = new ConcurrentHashMap<BucketKey, Bucket>();
+  private final Ticker ticker;
+  private final long originNanos;
+  private volatile BridgeStatistics statistics = null;
+
+  public PeriodBucketScheduler(final ScheduledExecutorService executor) {
+    this(executor, new LoggingErrorHandler(PeriodBucketScheduler.class, WARNING));
+  }
+
+  /**
+   * Creates a new scheduler.
+   * 
+   * @param executor
+   *          the executor that runs the buckets
+   * @param errorHandler
+   *          receives any exception thrown by a scheduled command
+   */
+  public PeriodBucketScheduler(final ScheduledExecutorService executor, final ErrorHandler errorHandler) {
+    this(executor, errorHandler, Ticker.systemTicker());
+  }
+
+  PeriodBucketScheduler(final ScheduledExecutorService executor, final ErrorHandler errorHandler, final Ticker ticker) {
+    this.executor = executor;
+    this.errorHandler = errorHandler;
+    this.ticker = ticker;
+    originNanos = ticker.read();
+  }
+
+  @Override
+  public synchronized Future<?> schedule(
+      final Runnable command,
+      final long initialDelay,
+      final long period,
+      final TimeUnit unit) {
+    Preconditions.checkArgument(period > 0, "period must be positive");
+    final long periodMillis = unit.toMillis(period);
+    Preconditions.checkArgument(periodMillis > 0, "period must be at least one millisecond");
+    final long phaseMillis = unit.toMillis(initialDelay) % periodMillis;
+    final BucketKey key = new BucketKey(periodMillis, phaseMillis);
+    Bucket bucket = buckets.get(key);
+    if (bucket == null) {
+      bucket = new Bucket(key);
+      final long delay = delayUntil(key);
+      bucket.firstTickNanos = ticker.read() + TimeUnit.MILLISECONDS.toNanos(delay);
+      bucket.future = executor.scheduleAtFixedRate(bucket, delay, periodMillis, TimeUnit.MILLISECONDS);
+      buckets.put(key, bucket);
+    }
+    final Task task = new Task(command, bucket);
+    bucket.tasks.add(task);
+    return task;
+  }
+
+  /** Returns the delay, in milliseconds, until the next time the given phase comes around, or a full period if now. */
+  private long delayUntil(final BucketKey key) {
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(ticker.read() - originNanos);
+    final long delay = (key.phaseMillis - elapsedMillis % key.periodMillis + key.periodMillis) % key.periodMillis;
+    return delay > 0 ? delay : key.periodMillis;
+  }
+
+  private synchronized void remove(final Task task) {
+    final Bucket bucket = task.bucket;
+    bucket.tasks.remove(task);
+    if (bucket.tasks.isEmpty() && buckets.get(bucket.key) == bucket) {
+      buckets.remove(bucket.key);
+      bucket.future.cancel(false);
+    }
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    for (final Bucket bucket : buckets.values()) {
+      bucket.future.cancel(false);
+    }
+    buckets.clear();
+    executor.shutdown();
+  }
+
+  /**
+   * Sets the statistics in which each tick records how late it started. Defaults to null, which records nothing.
+   */
+  public void setStatistics(final BridgeStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Returns a snapshot of the size and tick timings of every bucket.
+   */
+  public List<BucketStatistics> getStatistics() {
+    final List<BucketStatistics> stats = new ArrayList<BucketStatistics>(buckets.size());
+    for (final Bucket bucket : buckets.values()) {
+      stats.add(new BucketStatistics(
+        bucket.key.periodMillis,
+        bucket.key.phaseMillis,
+        bucket.tasks.size(),
+        bucket.ticks.get(),
+        bucket.lastTickNanos.get(),
+        bucket.maxTickNanos.get(),
+        bucket.totalTickNanos.get()));
+    }
+    return ImmutableList.copyOf(stats);
+  }
+
+  /** Identifies the bucket of a period and phase. */
+  private static final class BucketKey {
+    private final long periodMillis;
+    private final long phaseMillis;
+
+    BucketKey(final long periodMillis, final long phaseMillis) {
+      this.periodMillis = periodMillis;
+      this.phaseMillis = phaseMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(periodMillis, phaseMillis);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof BucketKey)) {
+        return false;
+      }
+      final BucketKey other = (BucketKey) obj;
+      return periodMillis == other.periodMillis && phaseMillis == other.phaseMillis;
+    }
+  }
+
+  /** All of the commands sharing one period and phase. */
+  private final class Bucket implements Runnable {
+    private final BucketKey key;
+    private final List<Task> tasks = new CopyOnWriteArrayList<Task>();
+    private final AtomicLong ticks = new AtomicLong();
+    private final AtomicLong lastTickNanos = new AtomicLong();
+    private final AtomicLong maxTickNanos = new AtomicLong();
+    private final AtomicLong totalTickNanos = new AtomicLong();
+    private ScheduledFuture<?> future;
+    private long firstTickNanos;
+
+    Bucket(final BucketKey key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      final BridgeStatistics stats = statistics;
+      if (stats != null) {
+        final long periodNanos = TimeUnit.MILLISECONDS.toNanos(key.periodMillis);
+        stats.recordLag(ticker.read() - (firstTickNanos + ticks.get() * periodNanos), periodNanos);
+      }
+      final long start = System.nanoTime();
+      for (final Task task : tasks) {
+        if (!task.isCancelled()) {
+          try {
+            task.command.run();
+          } catch (final RuntimeException e) {
+            // never let one command stop the rest of the bucket from running
+            ErrorCode.COMMAND_FAILED.report(errorHandler, null, e.getClass(), e);
+          }
+        }
+      }
+      final long elapsed = System.nanoTime() - start;
+      ticks.incrementAndGet();
+      lastTickNanos.set(elapsed);
+      totalTickNanos.addAndGet(elapsed);
+      long max = maxTickNanos.get();
+      while (elapsed > max && !maxTickNanos.compareAndSet(max, elapsed)) {
+        max = maxTickNanos.get();
+      }
+    }
+  }
+
+  /** The future handed back for a single scheduled command. */
+  private final class Task extends AbstractFuture<Void> {
+    private final Runnable command;
+    private final Bucket bucket;
+
+    Task(final Runnable command, final Bucket bucket) {
+      this.command = command;
+      this.bucket = bucket;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      if (super.cancel(mayInterruptIfRunning)) {
+        remove(this);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A snapshot of one bucket's size and the time taken by its ticks.
+   */
+  public static final class BucketStatistics {
+    private final long periodMillis;
+    private final long phaseMillis;
+    private final int size;
+    private final long ticks;
+    private final long lastTickNanos;
+    private final long maxTickNanos;
+    private final long totalTickNanos;
+
+    BucketStatistics(
+        final long periodMillis,
+        final long phaseMillis,
+        final int size,
+        final long ticks,
+        final long lastTickNanos,
+        final long maxTickNanos,
+        final long totalTickNanos) {
+      this.periodMillis = periodMillis;
+      this.phaseMillis = phaseMillis;
+      this.size = size;
+      this.ticks = ticks;
+      this.lastTickNanos = lastTickNanos;
+      this.maxTickNanos = maxTickNanos;
+      this.totalTickNanos = totalTickNanos;
+    }
+
+    /** The period shared by every command in the bucket, in milliseconds. */
+    public long getPeriodMillis() {
+      return periodMillis;
+    }
+
+    /** The offset into each period at which the bucket runs, in milliseconds since the scheduler was created. */
+    public long getPhaseMillis() {
+      return phaseMillis;
+    }
+
+    /** The number of commands in the bucket. */
+    public int getSize() {
+      return size;
+    }
+
+    /** The number of times the bucket has run. */
+    public long getTicks() {
+      return ticks;
+    }
+
+    /** How long the most recent tick took, in nanoseconds. */
+    public long getLastTickNanos() {
+      return lastTickNanos;
+    }
+
+    /** How long the slowest tick took, in nanoseconds. */
+    public long getMaxTickNanos() {
+      return maxTickNanos;
+    }
+
+    /** The total time spent running ticks, in nanoseconds. */
+    public long getTotalTickNanos() {
+      return totalTickNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+        "BucketStatistics[periodMillis=%d, phaseMillis=%d, size=%d, ticks=%d, lastTickNanos=%d, maxTickNanos=%d]",
+        periodMillis,
+        phaseMillis,
+        size,
+        ticks,
+        lastTickNanos,
+        maxTickNanos);
+    }
+  }
+}
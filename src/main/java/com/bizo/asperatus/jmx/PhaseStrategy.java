@@ -0,0 +1,97 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+
+/**
+ * Chooses how far into its period each configuration is polled, so that configurations sharing a period do not all
+ * poll at the same instant. A configuration with an explicit phaseMillis always keeps it.
+ * 
+ * The phases chosen are rounded down to one of a few slots per period, so that a PeriodBucketScheduler keeps at most
+ * that many buckets per period however many configurations there are.
+ */
+public enum PhaseStrategy {
+  /** Every configuration is polled at the start of its period. */
+  NONE {
+    @Override
+    long phase(final MetricConfiguration config, final int index, final int count) {
+      return 0;
+    }
+  },
+
+  /**
+   * Each configuration is polled at an offset derived from a hash of its objectName and attribute, so a configuration
+   * keeps the same phase across calls to monitor.
+   */
+  HASH {
+    @Override
+    long phase(final MetricConfiguration config, final int index, final int count) {
+      int hash = 31 * hashCode(config.getObjectName()) + hashCode(config.getAttribute());
+      // spread the low bits, as String.hashCode of similar names differs mostly in the low bits
+      hash ^= (hash >>> 20) ^ (hash >>> 12);
+      hash ^= (hash >>> 7) ^ (hash >>> 4);
+      return (hash & Integer.MAX_VALUE) % config.getPeriodMillis();
+    }
+
+    private int hashCode(final String s) {
+      return s == null ? 0 : s.hashCode();
+    }
+  },
+
+  /** The configurations sharing a period are spaced evenly across it, in the order they were given. */
+  SPREAD {
+    @Override
+    long phase(final MetricConfiguration config, final int index, final int count) {
+      return index * config.getPeriodMillis() / count;
+    }
+  };
+
+  /**
+   * Returns the phase of a configuration without an explicit one.
+   * 
+   * @param config
+   *          the configuration
+   * @param index
+   *          the position of the configuration among those without an explicit phase that share its period
+   * @param count
+   *          the number of configurations without an explicit phase that share its period
+   */
+  abstract long phase(final MetricConfiguration config, final int index, final int count);
+
+  /** The default number of phases a period is divided into. */
+  public static final int DEFAULT_SLOTS = 16;
+
+  /**
+   * Returns the phase, in milliseconds, of each of the given configurations, with the phases of those without an
+   * explicit one rounded down to one of the given number of slots per period.
+   */
+  long[] phases(final List<MetricConfiguration> configs, final int slots) {
+    final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+    for (final MetricConfiguration config : configs) {
+      if (config.getPhaseMillis() == null) {
+        final Integer count = counts.get(config.getPeriodMillis());
+        counts.put(config.getPeriodMillis(), count == null ? 1 : count + 1);
+      }
+    }
+
+    final long[] phases = new long[configs.size()];
+    final Map<Long, Integer> indexes = new HashMap<Long, Integer>();
+    for (int i = 0; i < phases.length; i++) {
+      final MetricConfiguration config = configs.get(i);
+      if (config.getPhaseMillis() != null) {
+        phases[i] = config.getPhaseMillis() % config.getPeriodMillis();
+      } else {
+        final Integer index = indexes.get(config.getPeriodMillis());
+        final int position = index == null ? 0 : index;
+        indexes.put(config.getPeriodMillis(), position + 1);
+        final long period = config.getPeriodMillis();
+        final long slot = phase(config, position, counts.get(period)) * slots / period;
+        phases[i] = slot * period / slots;
+      }
+    }
+    return phases;
+  }
+}
@@ -0,0 +1,35 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the samples sent to Asperatus and the samples suppressed because they were within a configured deadband of
+ * the last value sent.
+ */
+public final class PublishCounters {
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong suppressed = new AtomicLong();
+
+  void recordSent() {
+    sent.incrementAndGet();
+  }
+
+  void recordSuppressed() {
+    suppressed.incrementAndGet();
+  }
+
+  /** The number of samples sent to the tracker or publisher. */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /** The number of samples that were not sent because they had not changed enough. */
+  public long getSuppressedCount() {
+    return suppressed.get();
+  }
+
+  @Override
+  public String toString() {
+    return "PublishCounters[sent=" + sent.get() + ", suppressed=" + suppressed.get() + "]";
+  }
+}
@@ -0,0 +1,74 @@
+package com.bizo.asperatus.jmx;
+
+/**
+ * Accumulates the minimum, maximum, sum and count of the samples taken during a publish window, so that a metric can
+ * be sampled often but published as one statistic set per window.
+ * 
+ * Instances are not thread-safe; each one belongs to a single runnable, which never runs concurrently with itself.
+ */
+final class StatisticAccumulator {
+  /** Suffixes appended to the metric name for each statistic, in CloudWatch's terms. */
+  static final String[] STATISTIC_SUFFIXES = { ".Minimum", ".Maximum", ".Sum", ".SampleCount" };
+
+  private final long windowNanos;
+  private long windowStartNanos;
+  private double min;
+  private double max;
+  private double sum;
+  private long count = 0;
+
+  /**
+   * Creates a new accumulator.
+   * 
+   * @param windowNanos
+   *          the length of a publish window. A window is complete once a sample arrives at least this long after the
+   *          window's first sample.
+   */
+  StatisticAccumulator(final long windowNanos) {
+    this.windowNanos = windowNanos;
+  }
+
+  /**
+   * Whether a sample taken at the given time belongs to a new window, so that the current one should be published
+   * and reset first.
+   */
+  boolean windowElapsed(final long nanos) {
+    return count > 0 && nanos - windowStartNanos >= windowNanos;
+  }
+
+  /** Adds a sample to the current window. */
+  void add(final double value, final long nanos) {
+    if (count == 0) {
+      windowStartNanos = nanos;
+      min = value;
+      max = value;
+      sum = value;
+    } else {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sum += value;
+    }
+    count++;
+  }
+
+  /** Starts a new, empty window. */
+  void reset() {
+    count = 0;
+  }
+
+  double getMin() {
+    return min;
+  }
+
+  double getMax() {
+    return max;
+  }
+
+  double getSum() {
+    return sum;
+  }
+
+  long getCount() {
+    return count;
+  }
+}
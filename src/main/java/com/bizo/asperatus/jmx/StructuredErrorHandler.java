@@ -0,0 +1,23 @@
+package com.bizo.asperatus.jmx;
+
+/**
+ * An ErrorHandler that receives errors as an ErrorCode and its parameters rather than a formatted message, so that
+ * errors it discards or aggregates cost no string building.
+ */
+public interface StructuredErrorHandler extends ErrorHandler {
+
+  /**
+   * Handle an error.
+   * 
+   * @param code
+   *          the kind of error
+   * @param source
+   *          the metric name, pattern, or other source of the error, as described by the code; possibly null
+   * @param type
+   *          the class of the exception or offending value; possibly null
+   * @param cause
+   *          a possibly null throwable that caused the error
+   */
+  void handleError(ErrorCode code, String source, Class<?> type, Throwable cause);
+
+}
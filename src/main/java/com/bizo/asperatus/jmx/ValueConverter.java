@@ -0,0 +1,120 @@
+package com.bizo.asperatus.jmx;
+
+import java.util.Date;
+import java.util.Map;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.jmx.configuration.ValueConversion;
+
+/**
+ * Turns attribute values that are not necessarily Numbers into numbers, as chosen once for a metric: either set by
+ * its configuration, or inferred from the class of the first value that is not a Number, using the same types as
+ * MBeanAttributeInfo.getType would report without the extra call to fetch it.
+ * 
+ * Instances are immutable and convert to a primitive double, so converting does not allocate.
+ */
+final class ValueConverter {
+  private final ValueConversion conversion;
+  private final Map<String, Double> enumValues;
+
+  ValueConverter(final ValueConversion conversion, final Map<String, Double> enumValues) {
+    this.conversion = conversion;
+    this.enumValues = enumValues;
+  }
+
+  /** Returns the converter configured for the given metric, or null if it is to be inferred. */
+  static ValueConverter forConfig(final MetricConfiguration config) {
+    if (config.getValueConversion() == null) {
+      return null;
+    }
+    return new ValueConverter(config.getValueConversion(), config.getEnumValues());
+  }
+
+  /**
+   * Returns the converter for values like the given one, or null if there is none.
+   * 
+   * @param enumValues
+   *          the numbers enum names map to, or null; a String is taken as an enum name if this is set
+   */
+  static ValueConverter infer(final Object value, final Map<String, Double> enumValues) {
+    final ValueConversion conversion;
+    if (value instanceof Boolean) {
+      conversion = ValueConversion.BOOLEAN;
+    } else if (value instanceof Enum) {
+      conversion = ValueConversion.ENUM;
+    } else if (value instanceof String) {
+      conversion = enumValues != null ? ValueConversion.ENUM : ValueConversion.STRING;
+    } else if (value instanceof Date) {
+      conversion = ValueConversion.TIMESTAMP;
+    } else {
+      return null;
+    }
+    return new ValueConverter(conversion, enumValues);
+  }
+
+  ValueConversion getConversion() {
+    return conversion;
+  }
+
+  /** Returns the value as a number, or NaN if this converter cannot convert it. */
+  double convert(final Object value) {
+    switch (conversion) {
+    case NUMBER:
+      return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+    case BOOLEAN:
+      if (value instanceof Boolean) {
+        return ((Boolean) value).booleanValue() ? 1 : 0;
+      }
+      if (value instanceof String) {
+        final String string = ((String) value).trim();
+        if ("true".equalsIgnoreCase(string)) {
+          return 1;
+        }
+        if ("false".equalsIgnoreCase(string)) {
+          return 0;
+        }
+      }
+      return Double.NaN;
+    case STRING:
+      if (value instanceof String) {
+        try {
+          return Double.parseDouble(((String) value).trim());
+        } catch (final NumberFormatException e) {
+          return Double.NaN;
+        }
+      }
+      return Double.NaN;
+    case TIMESTAMP:
+      return epochMillis(value) / 1000.0;
+    case AGE:
+      return (System.currentTimeMillis() - epochMillis(value)) / 1000.0;
+    case ENUM:
+      if (value instanceof Enum) {
+        final Enum<?> e = (Enum<?>) value;
+        return enumValues != null ? enumValue(e.name()) : e.ordinal();
+      }
+      if (value instanceof String && enumValues != null) {
+        return enumValue((String) value);
+      }
+      return Double.NaN;
+    default:
+      throw new AssertionError(conversion);
+    }
+  }
+
+  /** Returns a Date or a Number of milliseconds as milliseconds since the epoch, or NaN. */
+  private static double epochMillis(final Object value) {
+    if (value instanceof Date) {
+      return ((Date) value).getTime();
+    }
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    return Double.NaN;
+  }
+
+  private double enumValue(final String name) {
+    final Double mapped = enumValues.get(name);
+    return mapped != null ? mapped : Double.NaN;
+  }
+}
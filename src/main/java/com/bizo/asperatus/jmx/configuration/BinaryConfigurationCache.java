@@ -0,0 +1,381 @@
+package com.bizo.asperatus.jmx.configuration;
+
+import static java.util.logging.Level.WARNING;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.bizo.asperatus.jmx.ErrorCode;
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.bizo.asperatus.jmx.LoggingErrorHandler;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Keeps parsed configurations in compact binary files, named after a SHA-1 digest of the JSON they were parsed from,
+ * so that a later start with the same JSON can skip parsing and validating it. Each string is stored once in a table
+ * that entries refer to by index, and each distinct unit and objectName is resolved once when a file is read, with
+ * the ObjectName shared by every configuration using it. Files are read through a memory mapping.
+ * 
+ * A changed JSON simply misses the cache; old files are not removed. A file that cannot be read or written is
+ * reported, and the JSON is parsed instead.
+ */
+public final class BinaryConfigurationCache {
+  private static final int MAGIC = 0x41534A43; // "ASJC"
+  private static final int VERSION = 5;
+  private static final int NULL = -1;
+
+  private static final int HAS_PHASE = 1;
+  private static final int HAS_DEADBAND = 2;
+  private static final int HAS_DEADBAND_PERCENT = 4;
+
+  private final File directory;
+  private final ErrorHandler errorHandler;
+
+  public BinaryConfigurationCache(final File directory) {
+    this(directory, new LoggingErrorHandler(BinaryConfigurationCache.class, WARNING));
+  }
+
+  /**
+   * @param directory
+   *          where to keep the cache files; created when first written to
+   * @param errorHandler
+   *          receives cache files that could not be read or written
+   */
+  public BinaryConfigurationCache(final File directory, final ErrorHandler errorHandler) {
+    this.directory = Preconditions.checkNotNull(directory);
+    this.errorHandler = Preconditions.checkNotNull(errorHandler);
+  }
+
+  /**
+   * Returns the configurations in the given UTF-8 JSON, from its cache file if there is one, otherwise by parsing it
+   * and writing the cache file.
+   * 
+   * @throws MetricConfigurationException
+   *           if the JSON had to be parsed and is invalid
+   */
+  public List<MetricConfiguration> get(final byte[] json) {
+    final HashCode digest = Hashing.sha1().hashBytes(json);
+    final File file = new File(directory, digest + ".bin");
+    if (file.isFile()) {
+      try {
+        return read(file, digest);
+      } catch (final IOException e) {
+        ErrorCode.CONFIGURATION_CACHE_FAILED.report(errorHandler, file.getPath(), e.getClass(), e);
+      }
+    }
+
+    final List<MetricConfiguration> configs =
+      new MetricConfigurationParser(new InputStreamReader(new ByteArrayInputStream(json), Charsets.UTF_8)).get();
+    try {
+      write(file, digest, configs);
+    } catch (final IOException e) {
+      ErrorCode.CONFIGURATION_CACHE_FAILED.report(errorHandler, file.getPath(), e.getClass(), e);
+    }
+    return configs;
+  }
+
+  private static List<MetricConfiguration> read(final File file, final HashCode digest) throws IOException {
+    final RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      // the mapping stays valid after the file is closed
+      return decode(in.getChannel().map(MapMode.READ_ONLY, 0, in.length()), digest);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void write(final File file, final HashCode digest, final List<MetricConfiguration> configs)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    // written aside and renamed, so that a concurrent reader never sees a partial file
+    final File temp = File.createTempFile(digest.toString(), ".tmp", directory);
+    try {
+      final OutputStream out = new FileOutputStream(temp);
+      try {
+        encode(configs, digest, out);
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(file) && !file.isFile()) {
+        throw new IOException("Could not rename " + temp + " to " + file);
+      }
+    } finally {
+      if (temp.exists()) {
+        temp.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes the configurations: a header with the digest of their JSON, the string table, and then each entry's fields
+   * in the order {@link #decode} reads them.
+   */
+  static void encode(final List<MetricConfiguration> configs, final HashCode digest, final OutputStream stream)
+      throws IOException {
+    final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+    for (final MetricConfiguration config : configs) {
+      index(strings, config.getObjectName());
+      index(strings, config.getAttribute());
+      index(strings, config.getCompositeDataKey());
+      index(strings, config.getPath());
+      index(strings, config.getCompositeDataKeys());
+      index(strings, config.getMetricName());
+      index(strings, config.getUnit() != null ? config.getUnit().name() : null);
+      index(strings, config.getComment());
+      index(strings, config.getMode().name());
+      index(strings, config.getValueConversion() != null ? config.getValueConversion().name() : null);
+      if (config.getEnumValues() != null) {
+        for (final String name : config.getEnumValues().keySet()) {
+          index(strings, name);
+        }
+      }
+      index(strings, config.getDimensions());
+      index(strings, config.getKeyDimensions());
+    }
+
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    final byte[] digestBytes = digest.asBytes();
+    out.writeInt(digestBytes.length);
+    out.write(digestBytes);
+
+    out.writeInt(strings.size());
+    for (final String string : strings.keySet()) {
+      final byte[] bytes = string.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    out.writeInt(configs.size());
+    for (final MetricConfiguration config : configs) {
+      out.writeInt(index(strings, config.getObjectName()));
+      out.writeInt(index(strings, config.getAttribute()));
+      out.writeInt(index(strings, config.getCompositeDataKey()));
+      out.writeInt(index(strings, config.getPath()));
+      writeStringMap(out, strings, config.getCompositeDataKeys());
+      out.writeInt(index(strings, config.getMetricName()));
+      out.writeInt(index(strings, config.getUnit() != null ? config.getUnit().name() : null));
+      out.writeInt(index(strings, config.getComment()));
+      out.writeInt(index(strings, config.getMode().name()));
+      out.writeInt(index(strings, config.getValueConversion() != null ? config.getValueConversion().name() : null));
+      final Map<String, Double> enumValues = config.getEnumValues();
+      out.writeInt(enumValues != null ? enumValues.size() : NULL);
+      if (enumValues != null) {
+        for (final Map.Entry<String, Double> entry : enumValues.entrySet()) {
+          out.writeInt(index(strings, entry.getKey()));
+          out.writeDouble(entry.getValue());
+        }
+      }
+      writeStringMap(out, strings, config.getDimensions());
+      writeStringMap(out, strings, config.getKeyDimensions());
+      out.writeInt(config.getFrequency());
+      out.writeLong(config.getConfiguredPeriodMillis());
+      out.writeInt(config.getHeartbeat());
+      out.writeInt(config.getPublishFrequency());
+
+      final Long phase = config.getPhaseMillis();
+      final Double deadband = config.getDeadband();
+      final Double deadbandPercent = config.getDeadbandPercent();
+      out.writeByte(
+        (phase != null ? HAS_PHASE : 0)
+          | (deadband != null ? HAS_DEADBAND : 0)
+          | (deadbandPercent != null ? HAS_DEADBAND_PERCENT : 0));
+      if (phase != null) {
+        out.writeLong(phase);
+      }
+      if (deadband != null) {
+        out.writeDouble(deadband);
+      }
+      if (deadbandPercent != null) {
+        out.writeDouble(deadbandPercent);
+      }
+    }
+    out.flush();
+  }
+
+  private static int index(final Map<String, Integer> strings, final String string) {
+    if (string == null) {
+      return NULL;
+    }
+    Integer index = strings.get(string);
+    if (index == null) {
+      index = strings.size();
+      strings.put(string, index);
+    }
+    return index;
+  }
+
+  private static void index(final Map<String, Integer> strings, final Map<String, String> map) {
+    if (map != null) {
+      for (final Map.Entry<String, String> entry : map.entrySet()) {
+        index(strings, entry.getKey());
+        index(strings, entry.getValue());
+      }
+    }
+  }
+
+  private static void writeStringMap(
+      final DataOutputStream out,
+      final Map<String, Integer> strings,
+      final Map<String, String> map) throws IOException {
+    out.writeInt(map != null ? map.size() : NULL);
+    if (map != null) {
+      for (final Map.Entry<String, String> entry : map.entrySet()) {
+        out.writeInt(index(strings, entry.getKey()));
+        out.writeInt(index(strings, entry.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Reads configurations written by {@link #encode}.
+   * 
+   * @throws IOException
+   *           if the buffer is not a cache file for the given digest, or is corrupt
+   */
+  static List<MetricConfiguration> decode(final ByteBuffer buffer, final HashCode digest) throws IOException {
+    try {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Not a configuration cache of version " + VERSION);
+      }
+      final byte[] digestBytes = new byte[buffer.getInt()];
+      buffer.get(digestBytes);
+      if (!Arrays.equals(digestBytes, digest.asBytes())) {
+        throw new IOException("Configuration cache is for different JSON");
+      }
+
+      final String[] strings = new String[buffer.getInt()];
+      for (int i = 0; i < strings.length; i++) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        strings[i] = new String(bytes, Charsets.UTF_8);
+      }
+      final Unit[] units = new Unit[strings.length];
+      final ObjectName[] jmxNames = new ObjectName[strings.length];
+
+      final int count = buffer.getInt();
+      final ImmutableList.Builder<MetricConfiguration> configs = ImmutableList.builder();
+      for (int i = 0; i < count; i++) {
+        final int objectName = buffer.getInt();
+        final MetricConfiguration.Builder builder =
+          MetricConfiguration.builder()
+            .objectName(string(strings, objectName))
+            .jmxName(jmxName(strings, jmxNames, objectName))
+            .attribute(string(strings, buffer.getInt()))
+            .compositeDataKey(string(strings, buffer.getInt()))
+            .path(string(strings, buffer.getInt()))
+            .compositeDataKeys(stringMap(strings, buffer))
+            .metricName(string(strings, buffer.getInt()))
+            .unit(unit(strings, units, buffer.getInt()))
+            .comment(string(strings, buffer.getInt()))
+            .mode(MetricMode.valueOf(strings[buffer.getInt()]))
+            .valueConversion(valueConversion(strings, buffer.getInt()))
+            .enumValues(numberMap(strings, buffer))
+            .dimensions(stringMap(strings, buffer))
+            .keyDimensions(stringMap(strings, buffer))
+            .frequency(buffer.getInt())
+            .periodMillis(buffer.getLong())
+            .heartbeat(buffer.getInt())
+            .publishFrequency(buffer.getInt());
+
+        final byte flags = buffer.get();
+        if ((flags & HAS_PHASE) != 0) {
+          builder.phaseMillis(buffer.getLong());
+        }
+        if ((flags & HAS_DEADBAND) != 0) {
+          builder.deadband(buffer.getDouble());
+        }
+        if ((flags & HAS_DEADBAND_PERCENT) != 0) {
+          builder.deadbandPercent(buffer.getDouble());
+        }
+        configs.add(builder.build());
+      }
+      return configs.build();
+    } catch (final RuntimeException e) {
+      // eg a truncated buffer or an index out of range
+      throw new IOException("Corrupt configuration cache", e);
+    }
+  }
+
+  private static String string(final String[] strings, final int index) {
+    return index != NULL ? strings[index] : null;
+  }
+
+  private static Map<String, String> stringMap(final String[] strings, final ByteBuffer buffer) {
+    final int size = buffer.getInt();
+    if (size == NULL) {
+      return null;
+    }
+    final ImmutableMap.Builder<String, String> map = ImmutableMap.builder();
+    for (int i = 0; i < size; i++) {
+      map.put(strings[buffer.getInt()], strings[buffer.getInt()]);
+    }
+    return map.build();
+  }
+
+  private static ValueConversion valueConversion(final String[] strings, final int index) {
+    return index != NULL ? ValueConversion.valueOf(strings[index]) : null;
+  }
+
+  private static Map<String, Double> numberMap(final String[] strings, final ByteBuffer buffer) {
+    final int size = buffer.getInt();
+    if (size == NULL) {
+      return null;
+    }
+    final ImmutableMap.Builder<String, Double> map = ImmutableMap.builder();
+    for (int i = 0; i < size; i++) {
+      map.put(strings[buffer.getInt()], buffer.getDouble());
+    }
+    return map.build();
+  }
+
+  private static Unit unit(final String[] strings, final Unit[] units, final int index) {
+    if (index == NULL) {
+      return null;
+    }
+    if (units[index] == null) {
+      units[index] = Unit.valueOf(strings[index]);
+    }
+    return units[index];
+  }
+
+  private static ObjectName jmxName(final String[] strings, final ObjectName[] jmxNames, final int index) {
+    if (index == NULL) {
+      return null;
+    }
+    if (jmxNames[index] == null) {
+      try {
+        jmxNames[index] = ObjectName.getInstance(strings[index]);
+      } catch (final MalformedObjectNameException e) {
+        // left for MetricConfiguration.getJmxName to report when the name is used
+        return null;
+      }
+    }
+    return jmxNames[index];
+  }
+}
@@ -5,6 +5,7 @@ import java.util.List;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 
 /**
  * This class simply supplies a static configuration loaded from the classpath. It is intended to simplify configuration
@@ -14,19 +15,34 @@ public class ClasspathConfigurationSupplier implements Supplier<List<MetricConfi
   private final List<MetricConfiguration> defaultConfiguration;
 
   public ClasspathConfigurationSupplier(final String classpathLocation) {
+    this(classpathLocation, null);
+  }
+
+  /**
+   * @param classpathLocation
+   *          the JSON resource to read
+   * @param cacheDirectory
+   *          where a BinaryConfigurationCache keeps the parsed configurations between starts, or null to parse the JSON
+   *          every time
+   */
+  public ClasspathConfigurationSupplier(final String classpathLocation, final File cacheDirectory) {
     final InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream(classpathLocation);
     if (is == null) {
       throw new IllegalArgumentException(String.format(
         "Could not find resource [%s] on the classpath.",
         classpathLocation));
     }
-    final Reader r = new BufferedReader(new InputStreamReader(is));
     try {
-      final MetricConfigurationParser parser = new MetricConfigurationParser(r);
-      defaultConfiguration = parser.get();
+      if (cacheDirectory != null) {
+        defaultConfiguration = new BinaryConfigurationCache(cacheDirectory).get(ByteStreams.toByteArray(is));
+      } else {
+        defaultConfiguration = new MetricConfigurationParser(new BufferedReader(new InputStreamReader(is))).get();
+      }
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
     } finally {
       try {
-        r.close();
+        is.close();
       } catch (final IOException e) {
         // ignore
       }
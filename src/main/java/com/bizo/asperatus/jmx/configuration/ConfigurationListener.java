@@ -0,0 +1,18 @@
+package com.bizo.asperatus.jmx.configuration;
+
+import java.util.List;
+
+/**
+ * Receives the configurations of a WatchingConfigurationSupplier whenever they change.
+ */
+public interface ConfigurationListener {
+
+  /**
+   * Called with the complete new set of configurations each time they change.
+   * 
+   * @param configurations
+   *          an immutable list of every configuration now supplied
+   */
+  void configurationChanged(List<MetricConfiguration> configurations);
+
+}
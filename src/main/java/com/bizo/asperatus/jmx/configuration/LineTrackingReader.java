@@ -0,0 +1,85 @@
+package com.bizo.asperatus.jmx.configuration;
+
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Tracks the line being read, so that a character offset reported by the JSON parser can be turned into a line and
+ * column for error messages.
+ *
+ * Only the current line is remembered, so a read returns at most the rest of one line. That keeps the parser, which
+ * reads ahead, from getting past the line it is parsing, and the offsets it reports are always on the current line.
+ */
+final class LineTrackingReader extends FilterReader {
+  /** The current line, counted from 0. */
+  private int line = 0;
+  /** The offset of the first character of the current line. */
+  private int lineStart = 0;
+  private int offset = 0;
+  /** Whether the last character read ended the line, so the next one starts another. */
+  private boolean newline = false;
+
+  LineTrackingReader(final Reader in) {
+    // the rest of a line is read one character at a time
+    super(in instanceof BufferedReader ? in : new BufferedReader(in));
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int c = super.read();
+    if (c >= 0) {
+      consumed((char) c);
+    }
+    return c;
+  }
+
+  @Override
+  public int read(final char[] buffer, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    while (n < len) {
+      final int c = super.read();
+      if (c < 0) {
+        return n > 0 ? n : -1;
+      }
+      buffer[off + n++] = (char) c;
+      consumed((char) c);
+      if (c == '\n') {
+        break;
+      }
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    throw new IOException("skip is not supported");
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void consumed(final char c) {
+    if (newline) {
+      line++;
+      lineStart = offset;
+      newline = false;
+    }
+    offset++;
+    newline = c == '\n';
+  }
+
+  /**
+   * @return "line L, column C" for the given zero-based character offset, both counted from 1, which must be on the
+   *         current line
+   */
+  String location(final int position) {
+    return "line " + (line + 1) + ", column " + (position - lineStart + 1);
+  }
+}
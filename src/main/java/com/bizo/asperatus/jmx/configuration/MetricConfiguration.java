@@ -1,11 +1,21 @@
 package com.bizo.asperatus.jmx.configuration;
 
+import java.util.Map;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
 import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 
 /**
  * A MetricConfiguration is a simple bean holding a description of a JMX metric and the corresponding Asperatus metric.
  */
 public class MetricConfiguration {
+  /** The compositeDataKey meaning every key with a numeric value, each sent as metricName.key. */
+  public static final String ALL_KEYS = "*";
+
   /** JMX Object Name, eg "java.lang:type=OperatingSystem" */
   private final String objectName;
 
@@ -15,6 +25,12 @@ public class MetricConfiguration {
   /** Composite data key for attributes that are CompositeData. Should be null if the attribute is not composite data. */
   private final String compositeDataKey;
 
+  /** Composite data keys and the metric name each is sent as, or null. */
+  private final ImmutableMap<String, String> compositeDataKeys;
+
+  /** Path to a number within the attribute value, eg memoryUsageAfterGc["G1 Old Gen"].used, or null. */
+  private final String path;
+
   /** CloudWatch metric name, eg "OpenFileDescriptors" */
   private final String metricName;
 
@@ -24,9 +40,45 @@ public class MetricConfiguration {
   /** Polling frequency, in seconds. */
   private final int frequency;
 
+  /** Polling period, in milliseconds, or 0 to poll every frequency seconds. */
+  private final long periodMillis;
+
+  /** Offset of each poll into its period, in milliseconds, or null to let the bridge choose one. */
+  private final Long phaseMillis;
+
   /** Comment documenting this configuraiton. */
   private final String comment;
 
+  /** How values are converted before being sent, eg to a rate for counters. */
+  private final MetricMode mode;
+
+  /** How values that are not Numbers are turned into numbers, or null to infer it from the first such value. */
+  private final ValueConversion valueConversion;
+
+  /** Numbers that enum names are sent as, or null. */
+  private final ImmutableMap<String, Double> enumValues;
+
+  /** Dimensions with static values, by name, sent in addition to the factory's, or null. */
+  private final ImmutableMap<String, String> dimensions;
+
+  /** Dimensions by name, and the key property of the MBean's ObjectName each takes its value from, or null. */
+  private final ImmutableMap<String, String> keyDimensions;
+
+  /** Largest change from the last value sent that is not sent, or null to send every change. */
+  private final Double deadband;
+
+  /** Largest change from the last value sent, as a percentage of it, that is not sent, or null. */
+  private final Double deadbandPercent;
+
+  /** Longest time, in seconds, that a deadband may suppress values, or 0 for no limit. */
+  private final int heartbeat;
+
+  /** How often, in seconds, to send statistics of the values polled since the last send, or 0 to send every value. */
+  private final int publishFrequency;
+
+  /** The objectName parsed, once it is first needed or when loaded from a cache. Not part of equality. */
+  private volatile ObjectName jmxName;
+
   public MetricConfiguration(
       final String objectName,
       final String attribute,
@@ -38,16 +90,76 @@ public class MetricConfiguration {
     this.objectName = objectName;
     this.attribute = attribute;
     this.compositeDataKey = compositeDataKey;
+    compositeDataKeys = null;
+    path = null;
     this.metricName = metricName;
     this.unit = unit;
     this.frequency = frequency;
     this.comment = comment;
+    periodMillis = 0;
+    phaseMillis = null;
+    mode = MetricMode.RAW;
+    valueConversion = null;
+    enumValues = null;
+    dimensions = null;
+    keyDimensions = null;
+    deadband = null;
+    deadbandPercent = null;
+    heartbeat = 0;
+    publishFrequency = 0;
+  }
+
+  private MetricConfiguration(final Builder builder) {
+    objectName = builder.objectName;
+    attribute = builder.attribute;
+    compositeDataKey = builder.compositeDataKey;
+    compositeDataKeys = builder.compositeDataKeys;
+    path = builder.path;
+    metricName = builder.metricName;
+    unit = builder.unit;
+    frequency = builder.frequency;
+    periodMillis = builder.periodMillis;
+    phaseMillis = builder.phaseMillis;
+    comment = builder.comment;
+    mode = builder.mode;
+    valueConversion = builder.valueConversion;
+    enumValues = builder.enumValues;
+    dimensions = builder.dimensions;
+    keyDimensions = builder.keyDimensions;
+    deadband = builder.deadband;
+    deadbandPercent = builder.deadbandPercent;
+    heartbeat = builder.heartbeat;
+    publishFrequency = builder.publishFrequency;
+    jmxName = builder.jmxName;
+  }
+
+  /** Returns a builder for configurations with the optional settings left at their defaults. */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Returns a builder starting from the settings of the given configuration. */
+  public static Builder builder(final MetricConfiguration config) {
+    return new Builder(config);
   }
 
   public String getObjectName() {
     return objectName;
   }
 
+  /**
+   * Returns the objectName parsed as an ObjectName. It is parsed once and remembered; configurations loaded from a
+   * BinaryConfigurationCache share one instance per distinct name.
+   */
+  public ObjectName getJmxName() throws MalformedObjectNameException {
+    ObjectName name = jmxName;
+    if (name == null) {
+      name = new ObjectName(objectName);
+      jmxName = name;
+    }
+    return name;
+  }
+
   public String getAttribute() {
     return attribute;
   }
@@ -56,6 +168,26 @@ public class MetricConfiguration {
     return compositeDataKey;
   }
 
+  /**
+   * Returns the composite data keys whose values are each sent as the metric they map to, all read together, or null.
+   */
+  public ImmutableMap<String, String> getCompositeDataKeys() {
+    return compositeDataKeys;
+  }
+
+  /**
+   * Returns whether one read of this configuration's attribute is sent as several metrics, either because it lists
+   * compositeDataKeys or because its compositeDataKey is "*", meaning every numeric key.
+   */
+  public boolean isFanOut() {
+    return compositeDataKeys != null || ALL_KEYS.equals(compositeDataKey);
+  }
+
+  /** Returns the path to a number within the attribute value, or null; see AttributePath for the syntax. */
+  public String getPath() {
+    return path;
+  }
+
   public String getMetricName() {
     return metricName;
   }
@@ -68,10 +200,67 @@ public class MetricConfiguration {
     return frequency;
   }
 
+  /** Returns the polling period in milliseconds: periodMillis if it was set, otherwise the frequency. */
+  public long getPeriodMillis() {
+    return periodMillis > 0 ? periodMillis : frequency * 1000L;
+  }
+
+  /** Returns periodMillis as it was set, ie 0 if the frequency is used. */
+  long getConfiguredPeriodMillis() {
+    return periodMillis;
+  }
+
+  public Long getPhaseMillis() {
+    return phaseMillis;
+  }
+
   public String getComment() {
     return comment;
   }
 
+  public MetricMode getMode() {
+    return mode;
+  }
+
+  /** Returns how values that are not Numbers are turned into numbers, or null if it is inferred from the values. */
+  public ValueConversion getValueConversion() {
+    return valueConversion;
+  }
+
+  /** Returns the numbers that enum names are sent as, or null to send an Enum's ordinal. */
+  public ImmutableMap<String, Double> getEnumValues() {
+    return enumValues;
+  }
+
+  /** Returns the dimensions with static values to send in addition to the factory's, by name, or null. */
+  public ImmutableMap<String, String> getDimensions() {
+    return dimensions;
+  }
+
+  /**
+   * Returns the dimensions whose values are taken from the key properties of each MBean read, eg {"Collector" :
+   * "name"} to send the name of each MBean matching java.lang:type=GarbageCollector,*, or null.
+   */
+  public ImmutableMap<String, String> getKeyDimensions() {
+    return keyDimensions;
+  }
+
+  public Double getDeadband() {
+    return deadband;
+  }
+
+  public Double getDeadbandPercent() {
+    return deadbandPercent;
+  }
+
+  public int getHeartbeat() {
+    return heartbeat;
+  }
+
+  public int getPublishFrequency() {
+    return publishFrequency;
+  }
+
   // autogenerated by Eclipse
   @Override
   public int hashCode() {
@@ -80,10 +269,23 @@ public class MetricConfiguration {
     result = prime * result + ((attribute == null) ? 0 : attribute.hashCode());
     result = prime * result + ((comment == null) ? 0 : comment.hashCode());
     result = prime * result + ((compositeDataKey == null) ? 0 : compositeDataKey.hashCode());
+    result = prime * result + ((compositeDataKeys == null) ? 0 : compositeDataKeys.hashCode());
+    result = prime * result + ((deadband == null) ? 0 : deadband.hashCode());
+    result = prime * result + ((deadbandPercent == null) ? 0 : deadbandPercent.hashCode());
+    result = prime * result + ((dimensions == null) ? 0 : dimensions.hashCode());
+    result = prime * result + ((enumValues == null) ? 0 : enumValues.hashCode());
     result = prime * result + frequency;
+    result = prime * result + heartbeat;
+    result = prime * result + ((keyDimensions == null) ? 0 : keyDimensions.hashCode());
     result = prime * result + ((metricName == null) ? 0 : metricName.hashCode());
+    result = prime * result + ((mode == null) ? 0 : mode.hashCode());
     result = prime * result + ((objectName == null) ? 0 : objectName.hashCode());
+    result = prime * result + ((path == null) ? 0 : path.hashCode());
+    result = prime * result + (int) (periodMillis ^ (periodMillis >>> 32));
+    result = prime * result + ((phaseMillis == null) ? 0 : phaseMillis.hashCode());
+    result = prime * result + publishFrequency;
     result = prime * result + ((unit == null) ? 0 : unit.hashCode());
+    result = prime * result + ((valueConversion == null) ? 0 : valueConversion.hashCode());
     return result;
   }
 
@@ -121,9 +323,54 @@ public class MetricConfiguration {
     } else if (!compositeDataKey.equals(other.compositeDataKey)) {
       return false;
     }
+    if (compositeDataKeys == null) {
+      if (other.compositeDataKeys != null) {
+        return false;
+      }
+    } else if (!compositeDataKeys.equals(other.compositeDataKeys)) {
+      return false;
+    }
+    if (deadband == null) {
+      if (other.deadband != null) {
+        return false;
+      }
+    } else if (!deadband.equals(other.deadband)) {
+      return false;
+    }
+    if (deadbandPercent == null) {
+      if (other.deadbandPercent != null) {
+        return false;
+      }
+    } else if (!deadbandPercent.equals(other.deadbandPercent)) {
+      return false;
+    }
+    if (dimensions == null) {
+      if (other.dimensions != null) {
+        return false;
+      }
+    } else if (!dimensions.equals(other.dimensions)) {
+      return false;
+    }
+    if (enumValues == null) {
+      if (other.enumValues != null) {
+        return false;
+      }
+    } else if (!enumValues.equals(other.enumValues)) {
+      return false;
+    }
     if (frequency != other.frequency) {
       return false;
     }
+    if (heartbeat != other.heartbeat) {
+      return false;
+    }
+    if (keyDimensions == null) {
+      if (other.keyDimensions != null) {
+        return false;
+      }
+    } else if (!keyDimensions.equals(other.keyDimensions)) {
+      return false;
+    }
     if (metricName == null) {
       if (other.metricName != null) {
         return false;
@@ -131,6 +378,9 @@ public class MetricConfiguration {
     } else if (!metricName.equals(other.metricName)) {
       return false;
     }
+    if (mode != other.mode) {
+      return false;
+    }
     if (objectName == null) {
       if (other.objectName != null) {
         return false;
@@ -138,10 +388,200 @@ public class MetricConfiguration {
     } else if (!objectName.equals(other.objectName)) {
       return false;
     }
+    if (path == null) {
+      if (other.path != null) {
+        return false;
+      }
+    } else if (!path.equals(other.path)) {
+      return false;
+    }
+    if (periodMillis != other.periodMillis) {
+      return false;
+    }
+    if (phaseMillis == null) {
+      if (other.phaseMillis != null) {
+        return false;
+      }
+    } else if (!phaseMillis.equals(other.phaseMillis)) {
+      return false;
+    }
+    if (publishFrequency != other.publishFrequency) {
+      return false;
+    }
     if (unit != other.unit) {
       return false;
     }
+    if (valueConversion != other.valueConversion) {
+      return false;
+    }
     return true;
   }
 
+  /**
+   * Builds MetricConfigurations. Frequency defaults to 60 seconds, mode to RAW, and periodMillis, heartbeat and
+   * publishFrequency to 0; everything else defaults to null.
+   */
+  public static final class Builder {
+    private String objectName;
+    private String attribute;
+    private String compositeDataKey;
+    private ImmutableMap<String, String> compositeDataKeys;
+    private String path;
+    private String metricName;
+    private Unit unit;
+    private int frequency = 60;
+    private long periodMillis = 0;
+    private Long phaseMillis;
+    private String comment;
+    private MetricMode mode = MetricMode.RAW;
+    private ValueConversion valueConversion;
+    private ImmutableMap<String, Double> enumValues;
+    private ImmutableMap<String, String> dimensions;
+    private ImmutableMap<String, String> keyDimensions;
+    private Double deadband;
+    private Double deadbandPercent;
+    private int heartbeat = 0;
+    private int publishFrequency = 0;
+    private ObjectName jmxName;
+
+    private Builder() {
+    }
+
+    private Builder(final MetricConfiguration config) {
+      objectName = config.objectName;
+      attribute = config.attribute;
+      compositeDataKey = config.compositeDataKey;
+      compositeDataKeys = config.compositeDataKeys;
+      path = config.path;
+      metricName = config.metricName;
+      unit = config.unit;
+      frequency = config.frequency;
+      periodMillis = config.periodMillis;
+      phaseMillis = config.phaseMillis;
+      comment = config.comment;
+      mode = config.mode;
+      valueConversion = config.valueConversion;
+      enumValues = config.enumValues;
+      dimensions = config.dimensions;
+      keyDimensions = config.keyDimensions;
+      deadband = config.deadband;
+      deadbandPercent = config.deadbandPercent;
+      heartbeat = config.heartbeat;
+      publishFrequency = config.publishFrequency;
+      jmxName = config.jmxName;
+    }
+
+    public Builder objectName(final String objectName) {
+      this.objectName = objectName;
+      return this;
+    }
+
+    public Builder attribute(final String attribute) {
+      this.attribute = attribute;
+      return this;
+    }
+
+    public Builder compositeDataKey(final String compositeDataKey) {
+      this.compositeDataKey = compositeDataKey;
+      return this;
+    }
+
+    /** Sets the composite data keys to send, each as the metric name it maps to; iteration order is kept. */
+    public Builder compositeDataKeys(final Map<String, String> compositeDataKeys) {
+      this.compositeDataKeys = compositeDataKeys != null ? ImmutableMap.copyOf(compositeDataKeys) : null;
+      return this;
+    }
+
+    public Builder path(final String path) {
+      this.path = path;
+      return this;
+    }
+
+    public Builder metricName(final String metricName) {
+      this.metricName = metricName;
+      return this;
+    }
+
+    public Builder unit(final Unit unit) {
+      this.unit = unit;
+      return this;
+    }
+
+    public Builder frequency(final int frequency) {
+      this.frequency = frequency;
+      return this;
+    }
+
+    public Builder periodMillis(final long periodMillis) {
+      this.periodMillis = periodMillis;
+      return this;
+    }
+
+    public Builder phaseMillis(final Long phaseMillis) {
+      this.phaseMillis = phaseMillis;
+      return this;
+    }
+
+    public Builder comment(final String comment) {
+      this.comment = comment;
+      return this;
+    }
+
+    public Builder mode(final MetricMode mode) {
+      this.mode = Preconditions.checkNotNull(mode);
+      return this;
+    }
+
+    public Builder valueConversion(final ValueConversion valueConversion) {
+      this.valueConversion = valueConversion;
+      return this;
+    }
+
+    public Builder enumValues(final Map<String, Double> enumValues) {
+      this.enumValues = enumValues != null ? ImmutableMap.copyOf(enumValues) : null;
+      return this;
+    }
+
+    /** Sets dimensions with static values to send in addition to the factory's; iteration order is kept. */
+    public Builder dimensions(final Map<String, String> dimensions) {
+      this.dimensions = dimensions != null ? ImmutableMap.copyOf(dimensions) : null;
+      return this;
+    }
+
+    /** Sets dimensions taking their values from the ObjectName key properties they map to; order is kept. */
+    public Builder keyDimensions(final Map<String, String> keyDimensions) {
+      this.keyDimensions = keyDimensions != null ? ImmutableMap.copyOf(keyDimensions) : null;
+      return this;
+    }
+
+    public Builder deadband(final Double deadband) {
+      this.deadband = deadband;
+      return this;
+    }
+
+    public Builder deadbandPercent(final Double deadbandPercent) {
+      this.deadbandPercent = deadbandPercent;
+      return this;
+    }
+
+    public Builder heartbeat(final int heartbeat) {
+      this.heartbeat = heartbeat;
+      return this;
+    }
+
+    public Builder publishFrequency(final int publishFrequency) {
+      this.publishFrequency = publishFrequency;
+      return this;
+    }
+
+    /** Sets an already parsed objectName; it must be the same name as objectName. */
+    Builder jmxName(final ObjectName jmxName) {
+      this.jmxName = jmxName;
+      return this;
+    }
+
+    public MetricConfiguration build() {
+      return new MetricConfiguration(this);
+    }
+  }
 }
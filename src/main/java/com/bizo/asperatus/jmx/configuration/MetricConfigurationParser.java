@@ -3,16 +3,21 @@ package com.bizo.asperatus.jmx.configuration;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import com.bizo.asperatus.jmx.AttributePath;
 import com.bizo.asperatus.model.Unit;
 import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.UnmodifiableIterator;
 
 /**
  * Reads MetricConfigurations from JSON. This parser expects a simple map with the following keys:
@@ -22,46 +27,205 @@ import com.google.common.collect.ImmutableList;
  * <li>attribute : JMX attribute name to retrieve, value should be composite or numeric</li>
  * <li>compositeDataKey : (optional) if the attribute is composite-valued, uses this data key to retrieve a numeric
  * value</li>
+ * <li>compositeDataKeys : (optional) instead of compositeDataKey, an object mapping several composite data keys to the
+ * metric name each is sent as; the attribute is read once for all of them. A compositeDataKey of "*" sends every
+ * numeric key, each as metricName.key.</li>
+ * <li>path : (optional) instead of compositeDataKey, a path to a numeric value within a composite, tabular, array or
+ * map valued attribute, eg memoryUsageAfterGc["G1 Old Gen"].used; see AttributePath</li>
  * <li>metricName : Asperatus metric name</li>
  * <li>unit : Asperatus unit of measure</li>
  * <li>frequency : how often to pull metrics from JMX to Asperatus, in seconds</li>
+ * <li>periodMillis : (optional) how often to pull metrics, in milliseconds. Overrides frequency.</li>
+ * <li>phaseMillis : (optional) how far into each period to pull metrics, in milliseconds. By default the bridge's
+ * PhaseStrategy chooses one.</li>
+ * <li>mode : (optional) "raw" to send values as read (the default), "delta" to send the increase since the previous
+ * value, or "rate" to send that increase per second</li>
+ * <li>converter : (optional) how to turn values that are not numbers into numbers: "number" to accept only numbers,
+ * "boolean", "string" for numeric strings, "timestamp" for seconds since the epoch of a Date or epoch milliseconds,
+ * "age" for seconds since then, or "enum". By default it is inferred from the first value that is not a number.</li>
+ * <li>enumValues : (optional) an object mapping enum names to the numbers they are sent as; without it an enum is
+ * sent as its ordinal</li>
+ * <li>dimensions : (optional) an object mapping dimension names to static values, sent in addition to the factory's
+ * dimensions</li>
+ * <li>keyDimensions : (optional) an object mapping dimension names to the ObjectName key property each takes its value
+ * from, eg {"Collector" : "name"}; a key property missing from an MBean's name is left out</li>
+ * <li>deadband : (optional) do not send values that differ from the last value sent by at most this much</li>
+ * <li>deadbandPercent : (optional) do not send values that differ from the last value sent by at most this percentage
+ * of it</li>
+ * <li>heartbeat : (optional) send a value at least this often, in seconds, even if it is within the deadband</li>
+ * <li>publishFrequency : (optional) instead of sending every value, send the minimum, maximum, sum and count of the
+ * values polled this often, in seconds. Must be at least the frequency, and cannot be combined with a deadband.</li>
  * </ul>
+ * 
+ * The input is parsed as a stream, so only one entry is held in memory at a time. Errors report the line and column
+ * they were found at.
  */
-public class MetricConfigurationParser implements Supplier<List<MetricConfiguration>> {
-  private final Reader reader;
+public class MetricConfigurationParser implements Supplier<List<MetricConfiguration>>, Iterable<MetricConfiguration> {
+  private final LineTrackingReader reader;
 
   public MetricConfigurationParser(final String json) {
     this(new StringReader(json)); // Note: string readers do not need to be closed, so no worries about ownership.
   }
 
   public MetricConfigurationParser(final Reader reader) {
-    this.reader = reader;
+    this.reader = new LineTrackingReader(reader);
   }
 
   @Override
   public List<MetricConfiguration> get() {
-    final ImmutableList.Builder<MetricConfiguration> builder = ImmutableList.builder();
-    final JSONParser parser = new JSONParser();
-    try {
-      final Object root = parser.parse(reader);
-      if (!(root instanceof JSONArray)) {
-        throw new MetricConfigurationException("Root object of a metric configuration must be a JSON Array");
+    return ImmutableList.copyOf(iterator());
+  }
+
+  /**
+   * Returns the configurations one at a time, parsing each entry only when it is asked for, so that they can be
+   * registered while the rest of a large input is still being read. The input can only be read once, so this may be
+   * called at most once, and not together with {@link #get()}.
+   */
+  @Override
+  public UnmodifiableIterator<MetricConfiguration> iterator() {
+    final StreamingHandler handler = new StreamingHandler();
+    return new AbstractIterator<MetricConfiguration>() {
+      @Override
+      protected MetricConfiguration computeNext() {
+        final MetricConfiguration next = handler.next();
+        return next != null ? next : endOfData();
       }
-      for (final Object item : (JSONArray) root) {
-        if (!(item instanceof JSONObject)) {
-          throw new MetricConfigurationException("Items in the root JSON array must be objects");
-        }
-        builder.add(parse((JSONObject) item));
+    };
+  }
+
+  /**
+   * Receives parser events for a JSON array of objects, building one entry at a time. An entry's values may be
+   * primitives, or objects of primitives such as compositeDataKeys. Parsing pauses after each
+   * entry and resumes on the next call to {@link #next()}.
+   */
+  private final class StreamingHandler implements ContentHandler {
+    private final JSONParser parser = new JSONParser();
+    private boolean started;
+    private boolean finished;
+    private int depth;
+    private Map<String, Object> entry;
+    private Map<String, Object> nested;
+    /** Where the current entry starts, worked out before the reader moves on from its line. */
+    private String entryLocation;
+    private String key;
+    private MetricConfiguration parsed;
+
+    /** @return the next configuration, or null at the end of the input */
+    MetricConfiguration next() {
+      if (finished) {
+        return null;
+      }
+      parsed = null;
+      try {
+        parser.parse(reader, this, started);
+        started = true;
+      } catch (final ParseException pe) {
+        throw new MetricConfigurationException("Invalid JSON at " + reader.location(pe.getPosition()), pe);
+      } catch (final IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+      return parsed;
+    }
+
+    @Override
+    public void startJSON() {
+    }
+
+    @Override
+    public void endJSON() {
+      finished = true;
+    }
+
+    @Override
+    public boolean startArray() {
+      if (depth == 0) {
+        depth++;
+        return true;
+      }
+      throw unexpectedValue();
+    }
+
+    @Override
+    public boolean endArray() {
+      depth--;
+      return true;
+    }
+
+    @Override
+    public boolean startObject() {
+      if (depth == 2) {
+        depth++;
+        // kept in order, so that eg compositeDataKeys are sent in the order they are listed
+        nested = new LinkedHashMap<String, Object>();
+        entry.put(key, nested);
+        return true;
+      }
+      if (depth != 1) {
+        throw unexpectedValue();
+      }
+      depth++;
+      entry = new HashMap<String, Object>();
+      entryLocation = reader.location(parser.getPosition());
+      return true;
+    }
+
+    @Override
+    public boolean startObjectEntry(final String name) {
+      key = name;
+      return true;
+    }
+
+    @Override
+    public boolean primitive(final Object value) {
+      if (depth == 3) {
+        nested.put(key, value);
+      } else if (depth == 2) {
+        entry.put(key, value);
+      } else {
+        throw unexpectedValue();
+      }
+      return true;
+    }
+
+    @Override
+    public boolean endObjectEntry() {
+      return true;
+    }
+
+    @Override
+    public boolean endObject() {
+      depth--;
+      if (depth == 2) {
+        nested = null;
+        return true;
+      }
+      try {
+        parsed = parse(entry);
+      } catch (final MetricConfigurationException mce) {
+        throw new MetricConfigurationException(
+          mce.getMessage() + " in the entry at " + entryLocation,
+          mce.getCause());
       }
-    } catch (final ParseException pe) {
-      throw new MetricConfigurationException(pe);
-    } catch (final IOException ioe) {
-      throw new RuntimeException(ioe);
+      entry = null;
+      return false;
+    }
+
+    private MetricConfigurationException unexpectedValue() {
+      final String message;
+      if (depth == 0) {
+        message = "Root object of a metric configuration must be a JSON Array";
+      } else if (depth == 1) {
+        message = "Items in the root JSON array must be objects";
+      } else if (depth == 2) {
+        message = "Configuration values must be strings, numbers, booleans or objects";
+      } else {
+        message = "Values of nested objects must be strings, numbers or booleans";
+      }
+      return new MetricConfigurationException(message + " at " + reader.location(parser.getPosition()));
     }
-    return builder.build();
   }
 
-  private MetricConfiguration parse(final JSONObject json) {
+  private MetricConfiguration parse(final Map<String, Object> json) {
     final String objectName = requiredString(json, "objectName");
     final String attribute = requiredString(json, "attribute");
     final String compositeDataKey;
@@ -70,6 +234,25 @@ public class MetricConfigurationParser implements Supplier<List<MetricConfigurat
     } else {
       compositeDataKey = null;
     }
+    final Map<String, String> compositeDataKeys;
+    if (json.containsKey("compositeDataKeys")) {
+      if (compositeDataKey != null) {
+        throw new MetricConfigurationException("compositeDataKeys cannot be combined with compositeDataKey");
+      }
+      compositeDataKeys = stringMap(json, "compositeDataKeys");
+    } else {
+      compositeDataKeys = null;
+    }
+    final String path;
+    if (json.containsKey("path")) {
+      if (compositeDataKey != null || compositeDataKeys != null) {
+        throw new MetricConfigurationException("path cannot be combined with compositeDataKey or compositeDataKeys");
+      }
+      path = requiredString(json, "path");
+      AttributePath.compile(path);
+    } else {
+      path = null;
+    }
     final String metricName = requiredString(json, "metricName");
     final String unitString = requiredString(json, "unit");
     final Unit unit;
@@ -89,16 +272,141 @@ public class MetricConfigurationParser implements Supplier<List<MetricConfigurat
     } else {
       frequency = 60;
     }
+    final Number periodMillis = optionalNumber(json, "periodMillis");
+    if (periodMillis != null && periodMillis.longValue() <= 0) {
+      throw new MetricConfigurationException("periodMillis must be positive for " + metricName);
+    }
+    final long period = periodMillis != null ? periodMillis.longValue() : frequency * 1000L;
+    final Number phaseMillis = optionalNumber(json, "phaseMillis");
+    if (phaseMillis != null && (phaseMillis.longValue() < 0 || phaseMillis.longValue() >= period)) {
+      throw new MetricConfigurationException("phaseMillis must be in [0, periodMillis) for " + metricName);
+    }
     final String comment;
     if (json.containsKey("comment")) {
       comment = requiredString(json, "comment");
     } else {
       comment = null;
     }
-    return new MetricConfiguration(objectName, attribute, compositeDataKey, metricName, unit, frequency, comment);
+    final MetricMode mode;
+    if (json.containsKey("mode")) {
+      final String modeString = requiredString(json, "mode");
+      try {
+        mode = MetricMode.fromValue(modeString);
+      } catch (final IllegalArgumentException e) {
+        throw new MetricConfigurationException("Invalid mode " + modeString, e);
+      }
+    } else {
+      mode = MetricMode.RAW;
+    }
+    final ValueConversion valueConversion;
+    if (json.containsKey("converter")) {
+      final String converterString = requiredString(json, "converter");
+      try {
+        valueConversion = ValueConversion.fromValue(converterString);
+      } catch (final IllegalArgumentException e) {
+        throw new MetricConfigurationException("Invalid converter " + converterString, e);
+      }
+    } else {
+      valueConversion = null;
+    }
+    final Map<String, Double> enumValues;
+    if (json.containsKey("enumValues")) {
+      if (valueConversion != null && valueConversion != ValueConversion.ENUM) {
+        throw new MetricConfigurationException("enumValues requires the enum converter for " + metricName);
+      }
+      enumValues = numberMap(json, "enumValues");
+    } else {
+      enumValues = null;
+    }
+    final Map<String, String> dimensions = json.containsKey("dimensions") ? stringMap(json, "dimensions") : null;
+    final Map<String, String> keyDimensions =
+      json.containsKey("keyDimensions") ? stringMap(json, "keyDimensions") : null;
+    if (dimensions != null && keyDimensions != null) {
+      for (final String name : keyDimensions.keySet()) {
+        if (dimensions.containsKey(name)) {
+          throw new MetricConfigurationException("Dimension " + name + " is both static and a key property for "
+            + metricName);
+        }
+      }
+    }
+    final Number deadband = optionalNumber(json, "deadband");
+    final Number deadbandPercent = optionalNumber(json, "deadbandPercent");
+    final Number heartbeat = optionalNumber(json, "heartbeat");
+    final Number publishFrequency = optionalNumber(json, "publishFrequency");
+    if (publishFrequency != null) {
+      if (publishFrequency.intValue() * 1000L < period) {
+        throw new MetricConfigurationException("publishFrequency must be at least the frequency for " + metricName);
+      }
+      if (deadband != null || deadbandPercent != null) {
+        throw new MetricConfigurationException("publishFrequency cannot be combined with a deadband for " + metricName);
+      }
+    }
+    return MetricConfiguration.builder()
+      .objectName(objectName)
+      .attribute(attribute)
+      .compositeDataKeys(compositeDataKeys)
+      .path(path)
+      .compositeDataKey(compositeDataKey)
+      .metricName(metricName)
+      .unit(unit)
+      .frequency(frequency)
+      .periodMillis(periodMillis != null ? periodMillis.longValue() : 0)
+      .phaseMillis(phaseMillis != null ? phaseMillis.longValue() : null)
+      .comment(comment)
+      .mode(mode)
+      .valueConversion(valueConversion)
+      .enumValues(enumValues)
+      .dimensions(dimensions)
+      .keyDimensions(keyDimensions)
+      .deadband(deadband != null ? deadband.doubleValue() : null)
+      .deadbandPercent(deadbandPercent != null ? deadbandPercent.doubleValue() : null)
+      .heartbeat(heartbeat != null ? heartbeat.intValue() : 0)
+      .publishFrequency(publishFrequency != null ? publishFrequency.intValue() : 0)
+      .build();
+  }
+
+  private Number optionalNumber(final Map<String, Object> json, final String key) {
+    if (!json.containsKey(key)) {
+      return null;
+    }
+    final Object obj = json.get(key);
+    if (obj instanceof Number) {
+      return (Number) obj;
+    }
+    throw new MetricConfigurationException("Configuration had a non-numeric value for " + key);
+  }
+
+  private Map<String, String> stringMap(final Map<String, Object> json, final String key) {
+    final Object obj = json.get(key);
+    if (!(obj instanceof Map) || ((Map<?, ?>) obj).isEmpty()) {
+      throw new MetricConfigurationException("Configuration had a missing or non-object value for " + key);
+    }
+    final Map<String, String> map = new LinkedHashMap<String, String>();
+    for (final Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+      if (!(e.getValue() instanceof String)) {
+        throw new MetricConfigurationException("Configuration had a non-string value for " + key + "." + e.getKey());
+      }
+      map.put((String) e.getKey(), (String) e.getValue());
+    }
+    return map;
+  }
+
+  private Map<String, Double> numberMap(final Map<String, Object> json, final String key) {
+    final Object obj = json.get(key);
+    if (!(obj instanceof Map) || ((Map<?, ?>) obj).isEmpty()) {
+      throw new MetricConfigurationException("Configuration had a missing or non-object value for " + key);
+    }
+    final Map<String, Double> map = new LinkedHashMap<String, Double>();
+    for (final Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+      if (!(e.getValue() instanceof Number)) {
+        throw new MetricConfigurationException("Configuration had a non-numeric value for " + key + "." + e.getKey());
+      }
+      map.put((String) e.getKey(), ((Number) e.getValue()).doubleValue());
+    }
+    return map;
   }
 
-  private String requiredString(final JSONObject json, final String key) {
+  private String requiredString(final Map<String, Object> json, final String key) {
     final Object obj = json.get(key);
     if (obj != null && obj instanceof String) {
       return (String) obj;
@@ -0,0 +1,41 @@
+package com.bizo.asperatus.jmx.configuration;
+
+/**
+ * How the values read from JMX are turned into the values sent to Asperatus.
+ */
+public enum MetricMode {
+  /** Send each value as read. */
+  RAW("raw"),
+
+  /** Send the increase since the previous value. Intended for monotonic counters. */
+  DELTA("delta"),
+
+  /** Send the increase since the previous value per second. Intended for monotonic counters. */
+  RATE("rate");
+
+  private final String value;
+
+  private MetricMode(final String value) {
+    this.value = value;
+  }
+
+  /** The name of this mode in JSON configurations. */
+  public String value() {
+    return value;
+  }
+
+  /**
+   * Returns the mode with the given JSON name.
+   * 
+   * @throws IllegalArgumentException
+   *           if there is no such mode
+   */
+  public static MetricMode fromValue(final String value) {
+    for (final MetricMode mode : values()) {
+      if (mode.value.equals(value)) {
+        return mode;
+      }
+    }
+    throw new IllegalArgumentException("Unknown metric mode " + value);
+  }
+}
@@ -0,0 +1,53 @@
+package com.bizo.asperatus.jmx.configuration;
+
+/**
+ * How an attribute value that is not necessarily a Number is turned into one.
+ */
+public enum ValueConversion {
+  /** Accept only Numbers. */
+  NUMBER("number"),
+
+  /** Send true as 1 and false as 0, from a Boolean or the strings "true" and "false". */
+  BOOLEAN("boolean"),
+
+  /** Parse a String holding a decimal number. */
+  STRING("string"),
+
+  /** Send a Date, or a Number of milliseconds since the epoch, as seconds since the epoch. */
+  TIMESTAMP("timestamp"),
+
+  /** Send the seconds elapsed since a Date, or a Number of milliseconds since the epoch, eg since a last success. */
+  AGE("age"),
+
+  /**
+   * Send an Enum, or a String naming one, as the number its name maps to in enumValues, or without enumValues as the
+   * Enum's ordinal.
+   */
+  ENUM("enum");
+
+  private final String value;
+
+  private ValueConversion(final String value) {
+    this.value = value;
+  }
+
+  /** The name of this conversion in JSON configurations. */
+  public String value() {
+    return value;
+  }
+
+  /**
+   * Returns the conversion with the given JSON name.
+   * 
+   * @throws IllegalArgumentException
+   *           if there is no such conversion
+   */
+  public static ValueConversion fromValue(final String value) {
+    for (final ValueConversion conversion : values()) {
+      if (conversion.value.equals(value)) {
+        return conversion;
+      }
+    }
+    throw new IllegalArgumentException("Unknown value conversion " + value);
+  }
+}
@@ -0,0 +1,212 @@
+package com.bizo.asperatus.jmx.configuration;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.logging.Level.WARNING;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.bizo.asperatus.jmx.ErrorCode;
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.bizo.asperatus.jmx.LoggingErrorHandler;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * This class supplies the configurations in a JSON file, or in every "*.json" file of a directory, and re-reads them
+ * whenever they change, so that what is collected can be changed without restarting. Each change is passed to the
+ * registered ConfigurationListeners, eg an AsperatusJmxBridge.
+ * 
+ * A burst of file events, eg from an editor saving in several steps, is debounced into a single reload once no event
+ * has arrived for the debounce interval. If a reload fails, eg because a file is malformed, the error is reported and
+ * the last good configurations are kept.
+ */
+public class WatchingConfigurationSupplier implements Supplier<List<MetricConfiguration>>, Closeable {
+  /** Default quiet time after a file event before the configurations are re-read. */
+  public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+
+  private static final AtomicInteger sequenceNumGenerator = new AtomicInteger(0);
+
+  private final Path path;
+  private final boolean directory;
+  private final long debounceMillis;
+  private final ErrorHandler errorHandler;
+  private final WatchService watchService;
+  private final List<ConfigurationListener> listeners = new CopyOnWriteArrayList<ConfigurationListener>();
+  private final Thread thread;
+  private volatile List<MetricConfiguration> configurations;
+
+  public WatchingConfigurationSupplier(final Path path) throws IOException {
+    this(path, DEFAULT_DEBOUNCE_MILLIS, new LoggingErrorHandler(WatchingConfigurationSupplier.class, WARNING));
+  }
+
+  /**
+   * Creates a new supplier, reads the configurations, and starts watching for changes.
+   * 
+   * @param path
+   *          a JSON file, or a directory of JSON files whose configurations are concatenated in file name order
+   * @param debounceMillis
+   *          how long to wait for further file events before re-reading
+   * @param errorHandler
+   *          receives reloads that were rejected and exceptions thrown by listeners
+   * @throws IOException
+   *           if the path cannot be watched or read
+   * @throws MetricConfigurationException
+   *           if the initial configurations are invalid
+   */
+  public WatchingConfigurationSupplier(final Path path, final long debounceMillis, final ErrorHandler errorHandler)
+      throws IOException {
+    this.path = path.toAbsolutePath();
+    directory = Files.isDirectory(this.path);
+    this.debounceMillis = debounceMillis;
+    this.errorHandler = Preconditions.checkNotNull(errorHandler);
+    configurations = read();
+
+    watchService = this.path.getFileSystem().newWatchService();
+    final Path watched = directory ? this.path : this.path.getParent();
+    watched.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        watch();
+      }
+    }, "asperatus-jmx-config-watcher-" + sequenceNumGenerator.incrementAndGet());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public List<MetricConfiguration> get() {
+    return configurations;
+  }
+
+  /** Adds a listener that will receive every future change. */
+  public void addListener(final ConfigurationListener listener) {
+    listeners.add(Preconditions.checkNotNull(listener));
+  }
+
+  public void removeListener(final ConfigurationListener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Stops watching for changes. */
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        boolean changed = drain(watchService.take());
+        // debounce: keep collecting events until the files have been quiet for a while
+        WatchKey next = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+        while (next != null) {
+          changed |= drain(next);
+          next = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+        }
+        if (changed) {
+          reload();
+        }
+      }
+    } catch (final ClosedWatchServiceException e) {
+      // closed
+    } catch (final InterruptedException e) {
+      // stopped
+    }
+  }
+
+  /** Consumes the events of a key, returning whether any of them concerns the configuration files. */
+  private boolean drain(final WatchKey key) {
+    boolean relevant = false;
+    for (final WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        relevant = true;
+      } else {
+        final Path name = (Path) event.context();
+        relevant |= directory ? name.toString().endsWith(".json") : name.equals(path.getFileName());
+      }
+    }
+    key.reset();
+    return relevant;
+  }
+
+  private void reload() {
+    final List<MetricConfiguration> reloaded;
+    try {
+      reloaded = read();
+    } catch (final IOException e) {
+      ErrorCode.CONFIGURATION_REJECTED.report(errorHandler, path.toString(), e.getClass(), e);
+      return;
+    } catch (final RuntimeException e) {
+      ErrorCode.CONFIGURATION_REJECTED.report(errorHandler, path.toString(), e.getClass(), e);
+      return;
+    }
+    if (reloaded.equals(configurations)) {
+      return;
+    }
+    configurations = reloaded;
+    for (final ConfigurationListener listener : listeners) {
+      try {
+        listener.configurationChanged(reloaded);
+      } catch (final RuntimeException e) {
+        ErrorCode.CONFIGURATION_LISTENER_FAILED.report(errorHandler, path.toString(), e.getClass(), e);
+      }
+    }
+  }
+
+  private List<MetricConfiguration> read() throws IOException {
+    if (!directory) {
+      return readFile(path);
+    }
+    final List<Path> files = new ArrayList<Path>();
+    final DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*.json");
+    try {
+      for (final Path file : stream) {
+        files.add(file);
+      }
+    } finally {
+      stream.close();
+    }
+    Collections.sort(files);
+    final ImmutableList.Builder<MetricConfiguration> builder = ImmutableList.builder();
+    for (final Path file : files) {
+      builder.addAll(readFile(file));
+    }
+    return builder.build();
+  }
+
+  private static List<MetricConfiguration> readFile(final Path file) throws IOException {
+    final Reader reader = Files.newBufferedReader(file, Charsets.UTF_8);
+    try {
+      return new MetricConfigurationParser(reader).get();
+    } finally {
+      reader.close();
+    }
+  }
+}
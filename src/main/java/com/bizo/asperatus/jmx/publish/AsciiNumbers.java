@@ -0,0 +1,40 @@
+package com.bizo.asperatus.jmx.publish;
+
+/**
+ * Writes numbers as ASCII text into reused byte arrays, so that sinks rendering text protocols do not allocate a
+ * String per value. Integral values are written digit by digit; others fall back to Double.toString.
+ */
+final class AsciiNumbers {
+  /** Long enough for any long or the result of Double.toString. */
+  static final int MAX_LENGTH = 32;
+
+  private AsciiNumbers() {
+  }
+
+  /**
+   * Writes the value at the start of the text array, which must hold at least MAX_LENGTH bytes, and returns its length.
+   * NaN and infinite values are written as Double.toString does.
+   */
+  static int write(final double value, final byte[] text) {
+    final long integral = (long) value;
+    if (integral != value || integral == Long.MIN_VALUE) {
+      final String string = Double.toString(value);
+      for (int i = 0; i < string.length(); i++) {
+        text[i] = (byte) string.charAt(i);
+      }
+      return string.length();
+    }
+    long remaining = Math.abs(integral);
+    int position = MAX_LENGTH;
+    do {
+      text[--position] = (byte) ('0' + remaining % 10);
+      remaining /= 10;
+    } while (remaining > 0);
+    if (integral < 0) {
+      text[--position] = '-';
+    }
+    final int length = MAX_LENGTH - position;
+    System.arraycopy(text, position, text, 0, length);
+    return length;
+  }
+}
@@ -0,0 +1,36 @@
+package com.bizo.asperatus.jmx.publish;
+
+import com.bizo.asperatus.tracker.MetricTracker;
+
+/**
+ * Delivers samples to an Asperatus MetricTracker, one call to track per sample. The tracker takes no timestamps, so
+ * each sample is tracked as of when it is delivered. Samples are held as doubles, but whole values are tracked as Longs,
+ * as a tracker was handed the attribute's own integer before samples went through a publisher.
+ */
+public class AsperatusSink implements MetricSink {
+  private final MetricTracker tracker;
+
+  public AsperatusSink(final MetricTracker tracker) {
+    this.tracker = tracker;
+  }
+
+  @Override
+  public void write(final MetricRegistry metrics, final SampleBatch batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      final MetricDescriptor metric = metrics.get(batch.getMetricId(i));
+      try {
+        tracker.track(metric.getMetricName(), box(batch.getValue(i)), metric.getUnit(), metric.getDimensions());
+      } catch (final RuntimeException e) {
+        throw new MetricSinkException(i, metric.getMetricName(), e);
+      }
+    }
+  }
+
+  /** Returns the value as a Long if it is a whole number within the range of a long, and as a Double otherwise. */
+  static Number box(final double value) {
+    if (value == Math.rint(value) && value >= -0x1p63 && value < 0x1p63) {
+      return Long.valueOf((long) value);
+    }
+    return Double.valueOf(value);
+  }
+}
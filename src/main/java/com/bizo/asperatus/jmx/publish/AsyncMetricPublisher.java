@@ -0,0 +1,373 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static java.util.logging.Level.WARNING;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.bizo.asperatus.jmx.ErrorCode;
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.bizo.asperatus.jmx.LatencyHistogram;
+import com.bizo.asperatus.jmx.LoggingErrorHandler;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.base.Preconditions;
+
+/**
+ * This publisher decouples polling from the MetricSink, by default an AsperatusSink for a MetricTracker. Polling
+ * threads only append samples to a SampleRingBuffer; a dedicated daemon thread drains the buffer in batches and hands
+ * each batch to the sink, so a slow sink can never stall polling. If the sink falls far enough behind that the buffer
+ * fills, samples are dropped or the polling threads wait, according to the buffer's OverflowPolicy.
+ * 
+ * Without a spool, a sample the sink fails to take is dropped and the rest of its batch is still written. With a
+ * SampleSpool, samples the sink fails to take are not lost: from the first failure, every sample is appended to the
+ * spool, and the spool is replayed in order, one batch per drain, once a retry succeeds. Only the values are replayed
+ * late to a MetricTracker, which has no way to take the time a sample was taken.
+ * 
+ * A released metric keeps its id until every sample published before the release has been taken from the buffer, so
+ * an id is never reused while a sample still refers to it.
+ */
+public class AsyncMetricPublisher implements MetricPublisher, Closeable {
+  /** Default number of buffered samples. */
+  public static final int DEFAULT_CAPACITY = 8192;
+
+  /** Default maximum number of samples handed to the sink per drain. */
+  public static final int DEFAULT_BATCH_SIZE = 256;
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final AtomicInteger sequenceNumGenerator = new AtomicInteger(0);
+
+  private final MetricSink sink;
+  private final MetricRegistry registry;
+  private final SampleRingBuffer buffer;
+  private final SampleBatch batch;
+  private final ErrorHandler errorHandler;
+  private final Thread thread;
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  /** Metrics released by the polling threads, to be released in the registry once their samples have been taken. */
+  private final Queue<PendingRelease> releases = new ConcurrentLinkedQueue<PendingRelease>();
+  private volatile boolean running = true;
+  private volatile LatencyHistogram pushLatency = null;
+  private volatile SampleSpool spool = null;
+  private volatile long spoolRetryNanos = 0;
+  /** The spool id of each registered metric, plus one, or 0 if it has not been spooled. Publishing thread only. */
+  private int[] spoolIds = new int[0];
+  /** The spool and compaction the spool ids are from, which are no longer valid once it compacts. */
+  private SampleSpool spoolIdsSpool = null;
+  private long spoolIdsCompaction = 0;
+  /** When to next try replaying the spool, from System.nanoTime. Publishing thread only. */
+  private long nextReplayNanos = 0;
+  private SampleBatch replayBatch = null;
+
+  /**
+   * Creates and starts a publisher with the default capacity and batch size that drops the oldest samples on overflow.
+   */
+  public AsyncMetricPublisher(final MetricTracker tracker) {
+    this(new AsperatusSink(tracker));
+  }
+
+  /**
+   * Creates and starts a publisher to the given sink, with the default capacity and batch size, that drops the oldest
+   * samples on overflow.
+   */
+  public AsyncMetricPublisher(final MetricSink sink) {
+    this(
+      sink,
+      new MetricRegistry(),
+      new SampleRingBuffer(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST),
+      DEFAULT_BATCH_SIZE,
+      new LoggingErrorHandler(AsyncMetricPublisher.class, WARNING));
+  }
+
+  /**
+   * Creates and starts a new publisher.
+   * 
+   * @param tracker
+   *          the Asperatus tracker that will receive data
+   * @param registry
+   *          assigns the ids of registered metrics
+   * @param buffer
+   *          holds samples until they are published
+   * @param batchSize
+   *          the maximum number of samples drained from the buffer at once
+   * @param errorHandler
+   *          receives exceptions thrown by the tracker
+   */
+  public AsyncMetricPublisher(
+      final MetricTracker tracker,
+      final MetricRegistry registry,
+      final SampleRingBuffer buffer,
+      final int batchSize,
+      final ErrorHandler errorHandler) {
+    this(new AsperatusSink(tracker), registry, buffer, batchSize, errorHandler);
+  }
+
+  /**
+   * Creates and starts a new publisher.
+   * 
+   * @param sink
+   *          the backend, or FanOutSink of backends, that will receive data
+   * @param registry
+   *          assigns the ids of registered metrics
+   * @param buffer
+   *          holds samples until they are published
+   * @param batchSize
+   *          the maximum number of samples drained from the buffer at once
+   * @param errorHandler
+   *          receives exceptions thrown by the sink
+   */
+  public AsyncMetricPublisher(
+      final MetricSink sink,
+      final MetricRegistry registry,
+      final SampleRingBuffer buffer,
+      final int batchSize,
+      final ErrorHandler errorHandler) {
+    Preconditions.checkArgument(batchSize > 0, "batch size must be positive");
+    this.sink = sink;
+    this.registry = registry;
+    this.buffer = buffer;
+    this.errorHandler = errorHandler;
+    batch = new SampleBatch(batchSize);
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        publishUntilClosed();
+      }
+    }, "asperatus-jmx-publisher-" + sequenceNumGenerator.incrementAndGet());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public int register(final String metricName, final Unit unit, final List<Dimension> dimensions) {
+    return registry.register(metricName, unit, dimensions);
+  }
+
+  @Override
+  public void publish(final int metricId, final double value) {
+    buffer.offer(metricId, System.currentTimeMillis(), value);
+  }
+
+  @Override
+  public void release(final int metricId) {
+    releases.add(new PendingRelease(metricId, buffer.offerPosition()));
+  }
+
+  private void publishUntilClosed() {
+    while (running) {
+      if (drain() == 0) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+    // publish whatever was buffered before closing
+    while (drain() > 0) {
+      continue;
+    }
+  }
+
+  private int drain() {
+    final SampleSpool spool = this.spool;
+    final int replayed = spool != null && !spool.isEmpty() ? replay(spool) : 0;
+    batch.clear();
+    final int drained = buffer.drainTo(batch);
+    if (spool != null && !spool.isEmpty()) {
+      // keep samples in order behind the ones still to be replayed
+      spool(spool, 0);
+    } else {
+      while (!batch.isEmpty()) {
+        final int delivered = write(registry, batch);
+        if (delivered == batch.size()) {
+          break;
+        }
+        if (spool != null) {
+          spool(spool, delivered);
+          nextReplayNanos = System.nanoTime() + spoolRetryNanos;
+          break;
+        }
+        // the sample that failed is dropped, and the rest are still written
+        batch.discard(delivered + 1);
+      }
+    }
+    releaseTaken();
+    return replayed + drained;
+  }
+
+  /** Releases the metrics whose samples published before their release have all been taken from the buffer. */
+  private void releaseTaken() {
+    final long taken = buffer.takePosition();
+    PendingRelease pending;
+    while ((pending = releases.peek()) != null && taken - pending.position >= 0) {
+      releases.poll();
+      if (registry.release(pending.metricId) && pending.metricId < spoolIds.length) {
+        // the next metric given the id has its own spool id
+        spoolIds[pending.metricId] = 0;
+      }
+    }
+  }
+
+  /** Writes samples to the sink, and returns how many of them, from the first, it took. */
+  private int write(final MetricRegistry metrics, final SampleBatch samples) {
+    final LatencyHistogram latency = pushLatency;
+    final long start = latency != null ? System.nanoTime() : 0;
+    int delivered;
+    try {
+      sink.write(metrics, samples);
+      delivered = samples.size();
+      if (latency != null) {
+        latency.record(System.nanoTime() - start);
+      }
+    } catch (final MetricSinkException e) {
+      delivered = e.getDelivered();
+      final Throwable cause = e.getCause() != null ? e.getCause() : e;
+      ErrorCode.PUBLISH_FAILED.report(errorHandler, e.getMetricName(), cause.getClass(), cause);
+    } catch (final RuntimeException e) {
+      delivered = 0;
+      ErrorCode.PUBLISH_FAILED.report(errorHandler, null, e.getClass(), e);
+    }
+    published.addAndGet(delivered);
+    if (delivered < samples.size()) {
+      failed.incrementAndGet();
+    }
+    return delivered;
+  }
+
+  /** Appends the samples of the batch from the given index to the spool. */
+  private void spool(final SampleSpool spool, final int from) {
+    if (spool != spoolIdsSpool || spool.getCompactionCount() != spoolIdsCompaction) {
+      Arrays.fill(spoolIds, 0);
+      spoolIdsSpool = spool;
+      spoolIdsCompaction = spool.getCompactionCount();
+    }
+    for (int i = from; i < batch.size(); i++) {
+      final int metricId = batch.getMetricId(i);
+      try {
+        if (metricId >= spoolIds.length) {
+          spoolIds = Arrays.copyOf(spoolIds, Math.max(metricId + 1, spoolIds.length * 2));
+        }
+        if (spoolIds[metricId] == 0) {
+          spoolIds[metricId] = spool.register(registry.get(metricId)) + 1;
+        }
+        spool.append(spoolIds[metricId] - 1, batch.getTimestamp(i), batch.getValue(i));
+      } catch (final IOException e) {
+        ErrorCode.SPOOL_FAILED.report(errorHandler, registry.get(metricId).getMetricName(), e.getClass(), e);
+      }
+    }
+  }
+
+  /**
+   * Replays one batch of spooled samples, if it is time to retry, up to the first the sink fails to take.
+   * 
+   * @return the number of samples replayed
+   */
+  private int replay(final SampleSpool spool) {
+    if (System.nanoTime() - nextReplayNanos < 0) {
+      return 0;
+    }
+    if (replayBatch == null) {
+      replayBatch = new SampleBatch(batch.capacity());
+    }
+    final int read;
+    try {
+      read = spool.readTo(replayBatch);
+    } catch (final IOException e) {
+      ErrorCode.SPOOL_FAILED.report(errorHandler, null, e.getClass(), e);
+      nextReplayNanos = System.nanoTime() + spoolRetryNanos;
+      return 0;
+    }
+    final int delivered = write(spool.getMetrics(), replayBatch);
+    try {
+      spool.commit(delivered);
+    } catch (final IOException e) {
+      ErrorCode.SPOOL_FAILED.report(errorHandler, null, e.getClass(), e);
+    }
+    if (delivered < read) {
+      nextReplayNanos = System.nanoTime() + spoolRetryNanos;
+    }
+    return delivered;
+  }
+
+  /**
+   * Stops the publishing thread after publishing any buffered samples. Samples published after closing are never
+   * handed to the sink.
+   */
+  @Override
+  public void close() {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Sets a histogram in which the time taken by each successful write of a batch to the sink is recorded, eg the push
+   * latency of a BridgeStatistics. Defaults to null, which records nothing.
+   */
+  public void setPushLatency(final LatencyHistogram pushLatency) {
+    this.pushLatency = pushLatency;
+  }
+
+  /**
+   * Sets a spool that keeps the samples the sink fails to take, to replay them once a retry succeeds, or null to
+   * drop them. Retries are at most one every retryDelay. Set it before publishing; the spool is not closed with this
+   * publisher. Defaults to null.
+   */
+  public void setSpool(final SampleSpool spool, final long retryDelay, final TimeUnit unit) {
+    spoolRetryNanos = unit.toNanos(retryDelay);
+    this.spool = spool;
+  }
+
+  /** The registry holding the metrics of this publisher. */
+  public MetricRegistry getRegistry() {
+    return registry;
+  }
+
+  /** The number of samples the sink took. */
+  public long getPublishedCount() {
+    return published.get();
+  }
+
+  /** The approximate number of samples waiting in the spool to be replayed, or 0 if there is no spool. */
+  public long getSpooledCount() {
+    final SampleSpool spool = this.spool;
+    return spool != null ? spool.size() : 0;
+  }
+
+  /** The number of writes the sink failed, each losing or spooling at least one sample. */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /** The number of samples dropped because the buffer was full. */
+  public long getDroppedCount() {
+    return buffer.getDroppedCount();
+  }
+
+  /** The approximate number of samples waiting to be published. */
+  public int getQueuedCount() {
+    return buffer.size();
+  }
+
+  /** A release of a metric, and the buffer position its samples were all offered before. */
+  private static final class PendingRelease {
+    final int metricId;
+    final long position;
+
+    PendingRelease(final int metricId, final long position) {
+      this.metricId = metricId;
+      this.position = position;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static java.util.logging.Level.WARNING;
+
+import java.util.List;
+
+import com.bizo.asperatus.jmx.ErrorCode;
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.bizo.asperatus.jmx.LoggingErrorHandler;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Delivers every batch to several sinks, so that one read feeds several backends. Each sink is handed the same batch,
+ * without copying it.
+ * 
+ * The sinks are isolated from each other: a sink that fails is reported and the batch still goes to the others, and
+ * the fan-out itself never fails. Spooling therefore applies to the fan-out as a whole, never to one of its sinks,
+ * so a backend that needs its samples spooled should have its own AsyncMetricPublisher.
+ */
+public class FanOutSink implements MetricSink {
+  private final MetricSink[] sinks;
+  private final ErrorHandler errorHandler;
+
+  public FanOutSink(final List<? extends MetricSink> sinks) {
+    this(sinks, new LoggingErrorHandler(FanOutSink.class, WARNING));
+  }
+
+  public FanOutSink(final List<? extends MetricSink> sinks, final ErrorHandler errorHandler) {
+    this.sinks = ImmutableList.copyOf(sinks).toArray(new MetricSink[0]);
+    this.errorHandler = errorHandler;
+  }
+
+  @Override
+  public void write(final MetricRegistry metrics, final SampleBatch batch) {
+    for (final MetricSink sink : sinks) {
+      try {
+        sink.write(metrics, batch);
+      } catch (final MetricSinkException e) {
+        final Throwable cause = e.getCause() != null ? e.getCause() : e;
+        ErrorCode.PUBLISH_FAILED.report(errorHandler, e.getMetricName(), cause.getClass(), cause);
+      } catch (final RuntimeException e) {
+        ErrorCode.PUBLISH_FAILED.report(errorHandler, null, e.getClass(), e);
+      }
+    }
+  }
+}
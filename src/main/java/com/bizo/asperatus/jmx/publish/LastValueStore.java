@@ -0,0 +1,167 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sink that keeps only the latest value of every metric, for consumers that scrape rather than receive pushes, eg a
+ * PrometheusExporter. Values and their timestamps are held in primitive arrays indexed by the ids of the store's own
+ * MetricRegistry, so writing a sample is two array stores and reading one never touches JMX.
+ *
+ * Batches may refer to the ids of any registry, eg a publisher's or a SampleSpool's; each such id is mapped to the
+ * store's id the first time it is seen, and again if the other registry reuses it. The store is written by the
+ * publishing thread and may be read by any number of others. A reader sees every value written before the last
+ * completed batch, and possibly some of the next; to see whole batches only, it reads the version before and after
+ * reading the values, and reads them again unless it got the same even version both times.
+ *
+ * A metric that is not written for the time to live has expired: it reads as having no value, and is then dropped
+ * from the store's registry so that the metrics of MBeans that have gone away do not pile up. A metric is also
+ * dropped once every id mapped to it has been released and reused. Age is measured from the newest sample written
+ * rather than by the clock, so a store whose samples stop arriving keeps its last values. The time to live should be
+ * a few times the longest period of the metrics written.
+ */
+public class LastValueStore implements MetricSink {
+  /** Default time a metric is kept without being written. */
+  public static final long DEFAULT_TIME_TO_LIVE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final MetricRegistry metrics = new MetricRegistry();
+  private final long timeToLiveMillis;
+  /** The store's ids of the ids of each registry written. Publishing thread only. */
+  private final Map<MetricRegistry, Mapping> mappings = new IdentityHashMap<MetricRegistry, Mapping>();
+  private volatile double[] values = new double[0];
+  /** When each value was sampled, in milliseconds since the epoch, or 0 if it has not been. */
+  private volatile long[] timestamps = new long[0];
+  /** The newest timestamp written. */
+  private volatile long newest = 0;
+  /** Incremented before and after each batch, so it is odd while a batch is being written. */
+  private volatile long version = 0;
+  /** The newest timestamp when expired metrics were last dropped. Publishing thread only. */
+  private long swept = 0;
+
+  /** Creates a store that keeps metrics for DEFAULT_TIME_TO_LIVE_MILLIS without being written. */
+  public LastValueStore() {
+    this(DEFAULT_TIME_TO_LIVE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /** Creates a store that keeps metrics for the given time without being written. */
+  public LastValueStore(final long timeToLive, final TimeUnit unit) {
+    timeToLiveMillis = unit.toMillis(timeToLive);
+  }
+
+  @Override
+  public void write(final MetricRegistry source, final SampleBatch batch) {
+    version++;
+    try {
+      writeValues(source, batch);
+    } finally {
+      version++;
+    }
+  }
+
+  private void writeValues(final MetricRegistry source, final SampleBatch batch) {
+    Mapping mapping = mappings.get(source);
+    if (mapping == null) {
+      mapping = new Mapping();
+      mappings.put(source, mapping);
+    }
+    mapping.ensureCapacity(source.size());
+    final int[] mapped = mapping.ids;
+    final MetricDescriptor[] sources = mapping.metrics;
+    double[] values = this.values;
+    long[] timestamps = this.timestamps;
+    long newest = this.newest;
+    for (int i = 0; i < batch.size(); i++) {
+      final int sourceId = batch.getMetricId(i);
+      final MetricDescriptor metric = source.get(sourceId);
+      if (sources[sourceId] != metric) {
+        // new, or the id was released and reused
+        if (sources[sourceId] != null) {
+          unmap(mapped[sourceId]);
+        }
+        sources[sourceId] = metric;
+        mapped[sourceId] = metrics.register(metric.getMetricName(), metric.getUnit(), metric.getDimensions());
+      }
+      final int id = mapped[sourceId];
+      if (id >= values.length) {
+        final int capacity = Math.max(id + 1, values.length * 2);
+        values = Arrays.copyOf(values, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        this.values = values;
+        this.timestamps = timestamps;
+      }
+      values[id] = batch.getValue(i);
+      timestamps[id] = batch.getTimestamp(i);
+      newest = Math.max(newest, timestamps[id]);
+    }
+    this.newest = newest;
+    if (newest - swept >= timeToLiveMillis) {
+      drop(newest - timeToLiveMillis);
+      swept = newest;
+    }
+  }
+
+  /** Drops the metrics last written before the given time. */
+  private void drop(final long expiry) {
+    final long[] timestamps = this.timestamps;
+    for (final Mapping mapping : mappings.values()) {
+      for (int sourceId = 0; sourceId < mapping.metrics.length; sourceId++) {
+        if (mapping.metrics[sourceId] != null && timestamps[mapping.ids[sourceId]] < expiry) {
+          mapping.metrics[sourceId] = null;
+          unmap(mapping.ids[sourceId]);
+        }
+      }
+    }
+  }
+
+  /** Releases one mapping to the given id, and clears its value once the id is free for another metric. */
+  private void unmap(final int id) {
+    if (metrics.release(id)) {
+      timestamps[id] = 0;
+    }
+  }
+
+  /** The registry of the store's metric ids. */
+  public MetricRegistry getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * The store's version, which changes with every batch written, and is odd while one is being written. Values read
+   * between two reads of the same even version are all from whole batches.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /** The latest value of the metric with the given id, or NaN if it has none or it has expired. */
+  public double getValue(final int id) {
+    final double[] values = this.values;
+    return getTimestamp(id) != 0 && id < values.length ? values[id] : Double.NaN;
+  }
+
+  /**
+   * When the latest value of the metric with the given id was sampled, in epoch milliseconds, or 0 if it has none or
+   * it has expired.
+   */
+  public long getTimestamp(final int id) {
+    final long[] timestamps = this.timestamps;
+    final long timestamp = id < timestamps.length ? timestamps[id] : 0;
+    return timestamp != 0 && newest - timestamp <= timeToLiveMillis ? timestamp : 0;
+  }
+
+  /** The store's id of each id of another registry, and the metric the other registry had for it when it was mapped. */
+  private static final class Mapping {
+    int[] ids = new int[0];
+    MetricDescriptor[] metrics = new MetricDescriptor[0];
+
+    void ensureCapacity(final int size) {
+      if (ids.length < size) {
+        final int capacity = Math.max(size, ids.length * 2);
+        ids = Arrays.copyOf(ids, capacity);
+        metrics = Arrays.copyOf(metrics, capacity);
+      }
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.util.List;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A MetricDescriptor is a simple bean holding everything Asperatus needs to know about a metric except its value.
+ */
+public class MetricDescriptor {
+  private final String metricName;
+  private final Unit unit;
+  private final List<Dimension> dimensions;
+
+  public MetricDescriptor(final String metricName, final Unit unit, final List<Dimension> dimensions) {
+    this.metricName = metricName;
+    this.unit = unit;
+    this.dimensions = ImmutableList.copyOf(dimensions);
+  }
+
+  public String getMetricName() {
+    return metricName;
+  }
+
+  public Unit getUnit() {
+    return unit;
+  }
+
+  public List<Dimension> getDimensions() {
+    return dimensions;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(metricName, unit, dimensions);
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (!(obj instanceof MetricDescriptor)) {
+      return false;
+    }
+    final MetricDescriptor other = (MetricDescriptor) obj;
+    return Objects.equal(metricName, other.metricName)
+      && unit == other.unit
+      && Objects.equal(dimensions, other.dimensions);
+  }
+
+  @Override
+  public String toString() {
+    return metricName + dimensions;
+  }
+}
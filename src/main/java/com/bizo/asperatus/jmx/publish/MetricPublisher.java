@@ -0,0 +1,31 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.util.List;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+
+/**
+ * This interface describes something that accepts samples from the polling threads and publishes them to Asperatus.
+ * Metrics are registered once and then referred to by id so that publishing a sample is cheap.
+ */
+public interface MetricPublisher {
+
+  /**
+   * Registers a metric.
+   * 
+   * @return the id to pass to publish
+   */
+  int register(final String metricName, final Unit unit, final List<Dimension> dimensions);
+
+  /**
+   * Publishes a sample of a registered metric.
+   */
+  void publish(final int metricId, final double value);
+
+  /**
+   * Releases a registration of a metric once its samples have been published, after which the id must not be used.
+   * The id may then be reused for another metric.
+   */
+  void release(final int metricId);
+}
@@ -0,0 +1,118 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Preconditions;
+
+/**
+ * Assigns dense integer ids to metrics so that samples can refer to a metric without carrying its name, unit and
+ * dimensions. Registering the same metric twice returns the same id, and the id is held until it has been released as
+ * many times as it was registered. A released id is reused by the next new metric, so anything that caches state by
+ * id should check that get still returns the metric it cached it for.
+ *
+ * Registration is synchronized, but lookups by id never lock. The table of metrics doubles when it fills, so
+ * registering n metrics copies O(n) entries in all.
+ */
+public class MetricRegistry {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Map<MetricDescriptor, Integer> ids = new HashMap<MetricDescriptor, Integer>();
+  private volatile MetricDescriptor[] descriptors = new MetricDescriptor[0];
+  // the rest is guarded by this
+  /** The number of registrations of each id not yet released. */
+  private int[] references = new int[0];
+  /** Released ids, to be reused before any new one. */
+  private int[] free = new int[0];
+  private int freeCount = 0;
+  /** One more than the highest id ever assigned. */
+  private volatile int size = 0;
+
+  /**
+   * Returns the id of the given metric, assigning a new one if it has not been registered.
+   */
+  public synchronized int register(final String metricName, final Unit unit, final List<Dimension> dimensions) {
+    final MetricDescriptor descriptor = new MetricDescriptor(metricName, unit, dimensions);
+    final Integer existing = ids.get(descriptor);
+    if (existing != null) {
+      references[existing]++;
+      return existing;
+    }
+    final int id;
+    if (freeCount > 0) {
+      id = free[--freeCount];
+    } else {
+      id = size;
+      if (id == descriptors.length) {
+        final int capacity = Math.max(INITIAL_CAPACITY, id * 2);
+        descriptors = Arrays.copyOf(descriptors, capacity);
+        references = Arrays.copyOf(references, capacity);
+      }
+      size = id + 1;
+    }
+    descriptors[id] = descriptor;
+    references[id] = 1;
+    ids.put(descriptor, id);
+    return id;
+  }
+
+  /**
+   * Releases one registration of the metric with the given id. Once every registration has been released, the id may
+   * be assigned to another metric, so it must not be used again, eg in a sample that has yet to be written.
+   *
+   * @return true if this was the last registration, and the id is now free
+   * @throws IllegalArgumentException
+   *           if the id is not registered
+   */
+  public synchronized boolean release(final int id) {
+    Preconditions.checkArgument(id >= 0 && id < size && references[id] > 0, "Metric id %s is not registered", id);
+    if (--references[id] > 0) {
+      return false;
+    }
+    ids.remove(descriptors[id]);
+    if (freeCount == free.length) {
+      free = Arrays.copyOf(free, Math.max(INITIAL_CAPACITY, freeCount * 2));
+    }
+    free[freeCount++] = id;
+    // the descriptor stays until the id is reused, so that a late lookup still finds the metric
+    return true;
+  }
+
+  /**
+   * Releases every registration of every metric, so that new metrics are given ids from 0 again, in order.
+   */
+  public synchronized void releaseAll() {
+    ids.clear();
+    Arrays.fill(references, 0);
+    if (free.length < size) {
+      free = new int[Math.max(INITIAL_CAPACITY, size)];
+    }
+    // the lowest id on top, to be reused first
+    for (int i = 0; i < size; i++) {
+      free[i] = size - 1 - i;
+    }
+    freeCount = size;
+  }
+
+  /**
+   * Returns the metric with the given id, which is the metric it was last assigned to if it has been released.
+   *
+   * @throws IndexOutOfBoundsException
+   *           if no metric has the id
+   */
+  public MetricDescriptor get(final int id) {
+    if (id >= size) {
+      throw new IndexOutOfBoundsException("No metric has id " + id);
+    }
+    return descriptors[id];
+  }
+
+  /** One more than the highest id ever assigned, ie the length of an array that can be indexed by every id. */
+  public int size() {
+    return size;
+  }
+}
@@ -0,0 +1,25 @@
+package com.bizo.asperatus.jmx.publish;
+
+/**
+ * This interface describes a backend that receives samples from an AsyncMetricPublisher, eg Asperatus through an
+ * AsperatusSink, or StatsD through a StatsdSink. Samples arrive in batches of primitive values, and refer to their
+ * metrics by the ids of a MetricRegistry, so a sink can prepare whatever it needs per metric once rather than per
+ * sample. Several sinks can be fed by one publisher with a FanOutSink.
+ * 
+ * A sink is only called from the publishing thread. It must not modify the batch, nor keep it after returning, since
+ * the same batch is handed to every sink of a FanOutSink and is then reused.
+ */
+public interface MetricSink {
+
+  /**
+   * Delivers a batch of samples, in order.
+   * 
+   * @param metrics
+   *          the registry the batch's metric ids belong to
+   * @throws MetricSinkException
+   *           if only some of the samples were delivered, to say how many
+   * @throws RuntimeException
+   *           if none of the samples were delivered
+   */
+  void write(final MetricRegistry metrics, final SampleBatch batch);
+}
@@ -0,0 +1,34 @@
+package com.bizo.asperatus.jmx.publish;
+
+/**
+ * Thrown by a MetricSink that could deliver only the first samples of a batch, so that the rest can be spooled or
+ * skipped without repeating the ones that were delivered.
+ */
+public class MetricSinkException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private final int delivered;
+  private final String metricName;
+
+  /**
+   * @param delivered
+   *          the number of samples, from the start of the batch, that were delivered
+   * @param metricName
+   *          the name of the first metric that was not delivered, or null
+   */
+  public MetricSinkException(final int delivered, final String metricName, final Throwable cause) {
+    super("Delivered " + delivered + " samples before failing on " + metricName, cause);
+    this.delivered = delivered;
+    this.metricName = metricName;
+  }
+
+  /** The number of samples, from the start of the batch, that were delivered. */
+  public int getDelivered() {
+    return delivered;
+  }
+
+  /** The name of the first metric that was not delivered, or null. */
+  public String getMetricName() {
+    return metricName;
+  }
+}
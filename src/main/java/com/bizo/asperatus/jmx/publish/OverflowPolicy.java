@@ -0,0 +1,15 @@
+package com.bizo.asperatus.jmx.publish;
+
+/**
+ * What a SampleRingBuffer does with a sample offered while it is full.
+ */
+public enum OverflowPolicy {
+  /** Discard the oldest buffered sample to make room. */
+  DROP_OLDEST,
+
+  /** Discard the offered sample. */
+  DROP_NEWEST,
+
+  /** Wait until the publisher makes room. This stalls the polling thread. */
+  BLOCK
+}
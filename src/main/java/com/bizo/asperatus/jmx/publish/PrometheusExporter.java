@@ -0,0 +1,307 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.bizo.asperatus.model.Dimension;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Ints;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the latest values of a LastValueStore over HTTP at /metrics, in the Prometheus text format, so that the
+ * metrics can be scraped rather than pushed. Every metric is a gauge; its dimensions become labels.
+ *
+ * A scrape only reads the store, so it never causes an MBean to be read. The text of each metric's name and labels is
+ * encoded once, when the metric is first seen, and responses are rendered into a single reused buffer, so a scrape
+ * allocates little beyond what the HTTP server needs. A scrape that overlaps a batch being written to the store is
+ * rendered again, a few times at most, so that it shows whole batches, and the response is only rendered again once
+ * the store has changed. Scrapes are served one at a time. Characters that are not
+ * allowed in Prometheus names are replaced with underscores, and metrics with no value yet are left out.
+ *
+ * Metrics that render the same name and labels, eg because their names only differ in characters that are replaced or
+ * they only differ by unit, make up one series, which has the value of whichever of them was sampled last.
+ */
+public class PrometheusExporter implements Closeable {
+  /** The path the metrics are served at. */
+  public static final String PATH = "/metrics";
+
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final byte[] NAN = "NaN".getBytes(Charsets.US_ASCII);
+  private static final byte[] POSITIVE_INFINITY = "+Inf".getBytes(Charsets.US_ASCII);
+  private static final byte[] NEGATIVE_INFINITY = "-Inf".getBytes(Charsets.US_ASCII);
+  /** How many times a scrape is rendered while batches keep being written, before it is served anyway. */
+  private static final int RENDER_ATTEMPTS = 3;
+
+  private final LastValueStore store;
+  private final HttpServer server;
+
+  // the rest is guarded by this
+  /** The encoded line of each of the store's metrics, by id. */
+  private Line[] lines = new Line[0];
+  /** The series of the store's metrics in order of name. */
+  private Series[] order = new Series[0];
+  private byte[] response = new byte[4096];
+  /** The store version the response was rendered at, or -1 if it may show part of a batch. */
+  private long renderedVersion = -1;
+  private int renderedLength = 0;
+  private final byte[] text = new byte[AsciiNumbers.MAX_LENGTH];
+
+  /**
+   * Starts serving the store's values at the given address; use port 0 to pick a free port.
+   */
+  public PrometheusExporter(final LastValueStore store, final InetSocketAddress address) throws IOException {
+    this.store = store;
+    server = HttpServer.create(address, 0);
+    server.createContext(PATH, new HttpHandler() {
+      @Override
+      public void handle(final HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    server.start();
+  }
+
+  /** The address the exporter is listening on. */
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  private void serve(final HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().set("Allow", "GET");
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      synchronized (this) {
+        final int length = render();
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, length);
+        final OutputStream body = exchange.getResponseBody();
+        body.write(response, 0, length);
+        body.close();
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Renders the store's values into the response buffer, unless they are unchanged since the last scrape, and returns
+   * their length.
+   */
+  synchronized int render() {
+    for (int attempt = 1;; attempt++) {
+      final long version = store.getVersion();
+      if (version == renderedVersion) {
+        return renderedLength;
+      }
+      renderedLength = renderValues();
+      final boolean whole = version % 2 == 0 && store.getVersion() == version;
+      renderedVersion = whole ? version : -1;
+      if (whole || attempt == RENDER_ATTEMPTS) {
+        return renderedLength;
+      }
+      Thread.yield();
+    }
+  }
+
+  private int renderValues() {
+    final MetricRegistry metrics = store.getMetrics();
+    if (changed(metrics)) {
+      encode(metrics);
+    }
+    int length = 0;
+    Series previous = null;
+    for (final Series series : order) {
+      int latest = -1;
+      long latestTimestamp = 0;
+      for (final int id : series.ids) {
+        final long timestamp = store.getTimestamp(id);
+        if (timestamp > latestTimestamp) {
+          latest = id;
+          latestTimestamp = timestamp;
+        }
+      }
+      if (latest < 0) {
+        continue;
+      }
+      final int textLength = format(store.getValue(latest));
+      final boolean header = previous == null || previous.type != series.type;
+      ensureCapacity(length + (header ? series.type.length : 0) + series.prefix.length + textLength + 1);
+      if (header) {
+        length = put(series.type, length);
+      }
+      length = put(series.prefix, length);
+      System.arraycopy(text, 0, response, length, textLength);
+      length += textLength;
+      response[length++] = '\n';
+      previous = series;
+    }
+    return length;
+  }
+
+  /** Writes the value into the text buffer as Prometheus expects it, and returns its length. */
+  private int format(final double value) {
+    final byte[] special = Double.isNaN(value) ? NAN
+      : value == Double.POSITIVE_INFINITY ? POSITIVE_INFINITY
+      : value == Double.NEGATIVE_INFINITY ? NEGATIVE_INFINITY
+      : null;
+    if (special == null) {
+      return AsciiNumbers.write(value, text);
+    }
+    System.arraycopy(special, 0, text, 0, special.length);
+    return special.length;
+  }
+
+  private int put(final byte[] bytes, final int at) {
+    System.arraycopy(bytes, 0, response, at, bytes.length);
+    return at + bytes.length;
+  }
+
+  private void ensureCapacity(final int capacity) {
+    if (response.length < capacity) {
+      response = Arrays.copyOf(response, Math.max(capacity, response.length * 2));
+    }
+  }
+
+  /** Whether metrics have been registered, or their ids reused, since the last scrape. */
+  private boolean changed(final MetricRegistry metrics) {
+    if (lines.length != metrics.size()) {
+      return true;
+    }
+    for (int id = 0; id < lines.length; id++) {
+      if (lines[id].metric != metrics.get(id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Encodes the lines of metrics registered since the last scrape, groups the metrics into series by their text, and
+   * orders the series by name.
+   */
+  private void encode(final MetricRegistry metrics) {
+    final int size = metrics.size();
+    final Line[] encoded = Arrays.copyOf(lines, size);
+    final Map<String, List<Integer>> ids = new LinkedHashMap<String, List<Integer>>();
+    for (int id = 0; id < size; id++) {
+      final MetricDescriptor metric = metrics.get(id);
+      if (encoded[id] == null || encoded[id].metric != metric) {
+        encoded[id] = new Line(metric);
+      }
+      List<Integer> same = ids.get(encoded[id].prefix);
+      if (same == null) {
+        same = new ArrayList<Integer>(1);
+        ids.put(encoded[id].prefix, same);
+      }
+      same.add(id);
+    }
+    final Map<String, byte[]> types = new HashMap<String, byte[]>();
+    final List<Series> series = new ArrayList<Series>(ids.size());
+    for (final List<Integer> same : ids.values()) {
+      final Line line = encoded[same.get(0)];
+      byte[] type = types.get(line.name);
+      if (type == null) {
+        type = ("# TYPE " + line.name + " gauge\n").getBytes(Charsets.UTF_8);
+        types.put(line.name, type);
+      }
+      series.add(new Series(line, type, Ints.toArray(same)));
+    }
+    // the samples of a family must be together, after its one TYPE line
+    Collections.sort(series, new Comparator<Series>() {
+      @Override
+      public int compare(final Series a, final Series b) {
+        final int byName = a.name.compareTo(b.name);
+        return byName != 0 ? byName : a.key.compareTo(b.key);
+      }
+    });
+    lines = encoded;
+    order = series.toArray(new Series[series.size()]);
+  }
+
+  /** Replaces characters not allowed in a metric name, or a label name if colons are not allowed, with underscores. */
+  static String name(final String text, final boolean colons) {
+    final StringBuilder name = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      final char c = text.charAt(i);
+      final boolean allowed = c >= 'a' && c <= 'z'
+        || c >= 'A' && c <= 'Z'
+        || c == '_'
+        || colons && c == ':'
+        || i > 0 && c >= '0' && c <= '9';
+      name.append(allowed ? c : '_');
+    }
+    return name.length() > 0 ? name.toString() : "_";
+  }
+
+  /** Escapes a label value. */
+  static String escape(final String text) {
+    return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  /** The text and bytes of a metric's line before its value. */
+  private static final class Line {
+    final MetricDescriptor metric;
+    final String name;
+    final String prefix;
+    final byte[] bytes;
+
+    Line(final MetricDescriptor metric) {
+      this.metric = metric;
+      name = name(metric.getMetricName(), true);
+      final StringBuilder prefix = new StringBuilder(name);
+      if (!metric.getDimensions().isEmpty()) {
+        prefix.append('{');
+        for (final Dimension dimension : metric.getDimensions()) {
+          if (prefix.charAt(prefix.length() - 1) != '{') {
+            prefix.append(',');
+          }
+          prefix.append(name(dimension.getName(), false));
+          prefix.append("=\"").append(escape(dimension.getValue())).append('"');
+        }
+        prefix.append('}');
+      }
+      this.prefix = prefix.append(' ').toString();
+      bytes = this.prefix.getBytes(Charsets.UTF_8);
+    }
+  }
+
+  /** The metrics rendered as one line, the bytes of the line before its value, and of its family's TYPE line. */
+  private static final class Series {
+    final String name;
+    final String key;
+    /** Shared by the series of a family, so that a change of family can be told by identity. */
+    final byte[] type;
+    final byte[] prefix;
+    final int[] ids;
+
+    Series(final Line line, final byte[] type, final int[] ids) {
+      name = line.name;
+      key = line.prefix;
+      this.type = type;
+      prefix = line.bytes;
+      this.ids = ids;
+    }
+  }
+}
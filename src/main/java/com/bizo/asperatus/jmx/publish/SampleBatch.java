@@ -0,0 +1,82 @@
+package com.bizo.asperatus.jmx.publish;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A reusable batch of samples drained from a SampleRingBuffer, held as parallel primitive arrays.
+ */
+public final class SampleBatch {
+  private final int[] metricIds;
+  private final long[] timestamps;
+  private final double[] values;
+  private int size = 0;
+
+  public SampleBatch(final int capacity) {
+    metricIds = new int[capacity];
+    timestamps = new long[capacity];
+    values = new double[capacity];
+  }
+
+  /** The id of the i-th sample's metric. */
+  public int getMetricId(final int i) {
+    return metricIds[i];
+  }
+
+  /** The time the i-th sample was taken, in milliseconds since the epoch. */
+  public long getTimestamp(final int i) {
+    return timestamps[i];
+  }
+
+  /** The value of the i-th sample. */
+  public double getValue(final int i) {
+    return values[i];
+  }
+
+  /** The number of samples in the batch. */
+  public int size() {
+    return size;
+  }
+
+  /** The maximum number of samples the batch can hold. */
+  public int capacity() {
+    return metricIds.length;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean isFull() {
+    return size == metricIds.length;
+  }
+
+  /** Empties the batch so that it can be reused. */
+  public void clear() {
+    size = 0;
+  }
+
+  /** Removes the given number of samples from the start of the batch, keeping the rest in order. */
+  public void discard(final int count) {
+    Preconditions.checkArgument(count >= 0 && count <= size, "Cannot discard %s of %s samples", count, size);
+    System.arraycopy(metricIds, count, metricIds, 0, size - count);
+    System.arraycopy(timestamps, count, timestamps, 0, size - count);
+    System.arraycopy(values, count, values, 0, size - count);
+    size -= count;
+  }
+
+  /**
+   * Appends a sample.
+   * 
+   * @throws IllegalStateException
+   *           if the batch is full
+   */
+  public void add(final int metricId, final long timestamp, final double value) {
+    if (isFull()) {
+      throw new IllegalStateException("Batch is full");
+    }
+    metricIds[size] = metricId;
+    timestamps[size] = timestamp;
+    values[size] = value;
+    size++;
+  }
+}
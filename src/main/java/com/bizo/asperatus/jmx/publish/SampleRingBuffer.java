@@ -0,0 +1,175 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A bounded, lock-free queue of samples for many polling threads and a single publisher. Samples are stored in
+ * preallocated primitive arrays, so offering and draining never allocate.
+ * 
+ * Each slot carries a sequence number that tells producers when it is free and the consumer when it has been filled
+ * (after Dmitry Vyukov's bounded queue). Consuming claims slots with a CAS on the head, which also lets producers evict
+ * the oldest sample when the queue is full and the policy is DROP_OLDEST.
+ */
+public final class SampleRingBuffer {
+  private static final long BLOCK_PARK_NANOS = 10000;
+
+  private final int mask;
+  private final int[] metricIds;
+  private final long[] timestamps;
+  private final double[] values;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final OverflowPolicy policy;
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Creates a new buffer.
+   * 
+   * @param capacity
+   *          the number of samples the buffer holds, rounded up to a power of two
+   * @param policy
+   *          what to do when a sample is offered to a full buffer
+   */
+  public SampleRingBuffer(final int capacity, final OverflowPolicy policy) {
+    Preconditions.checkArgument(capacity > 0 && capacity <= (1 << 30), "capacity must be in (0, 2^30]");
+    final int size = roundUp(capacity);
+    mask = size - 1;
+    metricIds = new int[size];
+    timestamps = new long[size];
+    values = new double[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    this.policy = Preconditions.checkNotNull(policy);
+  }
+
+  private static int roundUp(final int capacity) {
+    final int highest = Integer.highestOneBit(capacity);
+    return highest == capacity ? capacity : highest << 1;
+  }
+
+  /**
+   * Adds a sample, applying the overflow policy if the buffer is full.
+   * 
+   * @return false if the sample itself was dropped
+   */
+  public boolean offer(final int metricId, final long timestamp, final double value) {
+    while (true) {
+      final long position = tail.get();
+      final int index = (int) position & mask;
+      final long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          metricIds[index] = metricId;
+          timestamps[index] = timestamp;
+          values[index] = value;
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+      } else if (difference < 0) {
+        // the slot still holds a sample from the previous lap, so the buffer is full
+        switch (policy) {
+          case DROP_NEWEST:
+            dropped.incrementAndGet();
+            return false;
+          case DROP_OLDEST:
+            if (evict()) {
+              dropped.incrementAndGet();
+            }
+            break;
+          case BLOCK:
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            break;
+          default:
+            throw new AssertionError(policy);
+        }
+      }
+      // otherwise another producer claimed the slot first, so try the next one
+    }
+  }
+
+  /** Claims the oldest filled slot, if any. */
+  private long claim() {
+    while (true) {
+      final long position = head.get();
+      final int index = (int) position & mask;
+      final long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          return position;
+        }
+      } else if (difference < 0) {
+        return -1;
+      }
+    }
+  }
+
+  private void release(final long position) {
+    sequences.lazySet((int) position & mask, position + mask + 1);
+  }
+
+  private boolean evict() {
+    final long position = claim();
+    if (position < 0) {
+      return false;
+    }
+    release(position);
+    return true;
+  }
+
+  /**
+   * Moves as many samples as fit into the batch, oldest first.
+   * 
+   * @return the number of samples moved
+   */
+  public int drainTo(final SampleBatch batch) {
+    int drained = 0;
+    while (!batch.isFull()) {
+      final long position = claim();
+      if (position < 0) {
+        break;
+      }
+      final int index = (int) position & mask;
+      batch.add(metricIds[index], timestamps[index], values[index]);
+      release(position);
+      drained++;
+    }
+    return drained;
+  }
+
+  /** The approximate number of buffered samples. */
+  public int size() {
+    final long size = tail.get() - head.get();
+    return (int) Math.max(0, Math.min(size, mask + 1));
+  }
+
+  /** The position the next sample offered will take, which is higher than that of every sample offered so far. */
+  long offerPosition() {
+    return tail.get();
+  }
+
+  /** The position of the oldest sample not yet drained or evicted. */
+  long takePosition() {
+    return head.get();
+  }
+
+  /** The number of samples this buffer can hold. */
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /** The number of samples dropped because the buffer was full. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  public OverflowPolicy getPolicy() {
+    return policy;
+  }
+}
@@ -0,0 +1,424 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Preconditions;
+
+/**
+ * A durable, append-only spool of samples on local disk, used by an AsyncMetricPublisher to keep the samples its
+ * sink fails to take and replay them, in order, once the sink recovers.
+ *
+ * Samples are fixed-width records of a metric id, a timestamp and a value, appended to memory-mapped segment files of
+ * a fixed size. When a segment is full the spool rotates to a new one, and when there are more than maxSegments the
+ * oldest is dropped, so the spool never takes more than about maxSegments * segmentBytes of disk. A record's metric id
+ * is written last and a segment starts zeroed, so a record only counts once it is complete. How far the spool has been
+ * replayed is kept in a small offset file with a check value; a torn offset makes the spool replay from the start of
+ * its oldest segment, so a crash can repeat samples but does not lose them.
+ *
+ * Metric ids are the spool's own, assigned by register and logged with their descriptors, so samples spooled by one
+ * process are replayed with the right names, units and dimensions by the next. Once every spooled sample has been
+ * replayed, the spool is compacted: it moves to a new segment, truncates the metrics log and releases every spool id,
+ * so metrics that are no longer published do not pile up. A spool is not thread-safe; it is meant to be used by the
+ * single thread publishing samples.
+ *
+ * Segments are unmapped as soon as they have been written or replayed, where the JVM allows it, rather than when the
+ * garbage collector gets to them.
+ */
+public class SampleSpool implements Closeable {
+  /** The size of a record: the metric id, plus one so that a zeroed record is empty, the timestamp and the value. */
+  static final int RECORD_BYTES = 4 + 8 + 8;
+
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final String METRICS_FILE = "metrics.log";
+  private static final String OFFSET_FILE = "offset";
+  private static final long OFFSET_CHECK = 0x53504F4F4C4F4646L; // "SPOOLOFF"
+
+  private final File directory;
+  private final int recordsPerSegment;
+  private final int maxSegments;
+  private final MetricRegistry metrics = new MetricRegistry();
+  private DataOutputStream metricsLog;
+  /** The number of descriptors in the metrics log, which is also the next new spool id. */
+  private int logged = 0;
+  private long compactions = 0;
+  private final RandomAccessFile offsetFile;
+  private final MappedByteBuffer offset;
+
+  private long readSegment;
+  private int readIndex;
+  private long writeSegment;
+  private int writeIndex;
+  private MappedByteBuffer writeBuffer;
+  private long mappedReadSegment = -1;
+  private MappedByteBuffer readBuffer;
+  private long dropped = 0;
+
+  /**
+   * Opens the spool in the given directory, creating it if it does not exist, and recovers any samples spooled before.
+   *
+   * @param segmentBytes
+   *          the size of each segment file
+   * @param maxSegments
+   *          the most segments kept; the oldest is dropped when another is needed
+   */
+  public SampleSpool(final File directory, final int segmentBytes, final int maxSegments) throws IOException {
+    Preconditions.checkArgument(segmentBytes >= RECORD_BYTES, "A segment must hold at least one record");
+    Preconditions.checkArgument(maxSegments >= 2, "A spool needs at least two segments");
+    this.directory = directory;
+    recordsPerSegment = segmentBytes / RECORD_BYTES;
+    this.maxSegments = maxSegments;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+
+    metricsLog = openMetricsLog();
+
+    final List<Long> segments = segments();
+    if (segments.isEmpty()) {
+      segments.add(0L);
+    }
+    readSegment = segments.get(0);
+    readIndex = 0;
+    writeSegment = segments.get(segments.size() - 1);
+    writeBuffer = map(writeSegment);
+    writeIndex = 0;
+    while (writeIndex < recordsPerSegment && writeBuffer.getInt(writeIndex * RECORD_BYTES) != 0) {
+      writeIndex++;
+    }
+
+    offsetFile = new RandomAccessFile(new File(directory, OFFSET_FILE), "rw");
+    offset = offsetFile.getChannel().map(MapMode.READ_WRITE, 0, 3 * 8);
+    final long savedSegment = offset.getLong(0);
+    final long savedIndex = offset.getLong(8);
+    if (offset.getLong(16) == check(savedSegment, savedIndex)
+      && savedSegment >= readSegment
+      && savedSegment <= writeSegment
+      && savedIndex >= 0
+      && savedIndex <= (savedSegment == writeSegment ? writeIndex : recordsPerSegment)) {
+      readSegment = savedSegment;
+      readIndex = (int) savedIndex;
+    }
+    // segments before the saved offset were replayed, but not deleted before a crash
+    for (final long segment : segments) {
+      if (segment < readSegment) {
+        segmentFile(segment).delete();
+      }
+    }
+    advanceRead();
+    if (isEmpty()) {
+      compact();
+    }
+  }
+
+  /** Reads the descriptors of the metrics logged so far, and returns the log opened for appending more. */
+  private DataOutputStream openMetricsLog() throws IOException {
+    final File file = new File(directory, METRICS_FILE);
+    final RandomAccessFile log = new RandomAccessFile(file, "rw");
+    long good = 0;
+    try {
+      while (good < log.length()) {
+        final String metricName = log.readUTF();
+        final String unit = log.readUTF();
+        final int dimensionCount = log.readInt();
+        final List<Dimension> dimensions = new ArrayList<Dimension>(dimensionCount);
+        for (int i = 0; i < dimensionCount; i++) {
+          dimensions.add(new Dimension(log.readUTF(), log.readUTF()));
+        }
+        metrics.register(metricName, unit.isEmpty() ? null : Unit.valueOf(unit), dimensions);
+        logged++;
+        good = log.getFilePointer();
+      }
+    } catch (final EOFException e) {
+      // the last descriptor was cut short by a crash; its samples, if any, were never written
+      log.setLength(good);
+    } finally {
+      log.close();
+    }
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+  }
+
+  /**
+   * Starts an empty segment and metrics log, and releases every spool id. Only called once every spooled sample has
+   * been replayed, so no sample refers to the ids.
+   */
+  private void compact() throws IOException {
+    if (logged == 0 && writeIndex == 0) {
+      return;
+    }
+    final long previous = writeSegment;
+    final MappedByteBuffer next = map(previous + 1);
+    unmap(writeBuffer);
+    writeSegment = previous + 1;
+    writeBuffer = next;
+    writeIndex = 0;
+    readSegment = writeSegment;
+    readIndex = 0;
+    advanceRead();
+    // after the offset has moved on, so that even a torn offset cannot replay samples of the truncated log
+    segmentFile(previous).delete();
+    metricsLog.close();
+    final File log = new File(directory, METRICS_FILE);
+    metricsLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, false)));
+    logged = 0;
+    metrics.releaseAll();
+    compactions++;
+  }
+
+  /** Returns the sequence numbers of the segment files in the directory, in order. */
+  private List<Long> segments() {
+    final List<Long> segments = new ArrayList<Long>();
+    final String[] names = directory.list();
+    if (names != null) {
+      for (final String name : names) {
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+          } catch (final NumberFormatException e) {
+            // not one of ours
+          }
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private File segmentFile(final long segment) {
+    return new File(directory, String.format("%016d", segment) + SEGMENT_SUFFIX);
+  }
+
+  private MappedByteBuffer map(final long segment) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+    try {
+      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_BYTES);
+    } finally {
+      // the mapping stays valid once the file is closed
+      file.close();
+    }
+  }
+
+  private static long check(final long segment, final long index) {
+    return (segment * 31 + index) ^ OFFSET_CHECK;
+  }
+
+  /**
+   * Returns the spool's id for the given metric, logging its descriptor if it is new. Ids are only valid until the
+   * spool is next compacted, which getCompactionCount tells.
+   */
+  public int register(final MetricDescriptor metric) throws IOException {
+    final int id = metrics.register(metric.getMetricName(), metric.getUnit(), metric.getDimensions());
+    if (id == logged) {
+      logged++;
+      metricsLog.writeUTF(metric.getMetricName());
+      metricsLog.writeUTF(metric.getUnit() != null ? metric.getUnit().name() : "");
+      metricsLog.writeInt(metric.getDimensions().size());
+      for (final Dimension dimension : metric.getDimensions()) {
+        metricsLog.writeUTF(dimension.getName());
+        metricsLog.writeUTF(dimension.getValue());
+      }
+      // before any of its samples can be written
+      metricsLog.flush();
+    }
+    return id;
+  }
+
+  /** Returns the number of times the spool has been compacted, each time releasing every spool id. */
+  public long getCompactionCount() {
+    return compactions;
+  }
+
+  /** Returns the metric with the given spool id. */
+  public MetricDescriptor getMetric(final int id) {
+    return metrics.get(id);
+  }
+
+  /** Returns the registry of the spool's metric ids, which the metric ids of the batches read from it refer to. */
+  public MetricRegistry getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Appends a sample of a metric registered with this spool, rotating to a new segment if the current one is full.
+   */
+  public void append(final int metricId, final long timestamp, final double value) throws IOException {
+    if (writeIndex == recordsPerSegment) {
+      rotate();
+    }
+    final int position = writeIndex * RECORD_BYTES;
+    writeBuffer.putLong(position + 4, timestamp);
+    writeBuffer.putDouble(position + 12, value);
+    // written last, so that the record only counts once it is complete
+    writeBuffer.putInt(position, metricId + 1);
+    writeIndex++;
+  }
+
+  private void rotate() throws IOException {
+    writeBuffer.force();
+    final MappedByteBuffer next = map(writeSegment + 1);
+    // the full segment is mapped again if it is read
+    unmap(writeBuffer);
+    writeSegment++;
+    writeBuffer = next;
+    writeIndex = 0;
+    if (writeSegment - readSegment >= maxSegments) {
+      // drop the oldest segment, with whatever was left of it to replay
+      dropped += recordsPerSegment - readIndex;
+      readIndex = recordsPerSegment;
+    }
+    advanceRead();
+  }
+
+  /** Moves past and deletes fully replayed segments, and saves the offset. */
+  private void advanceRead() {
+    while (readIndex == recordsPerSegment && readSegment < writeSegment) {
+      if (mappedReadSegment == readSegment) {
+        unmap(readBuffer);
+        readBuffer = null;
+        mappedReadSegment = -1;
+      }
+      segmentFile(readSegment).delete();
+      readSegment++;
+      readIndex = 0;
+    }
+    offset.putLong(0, readSegment);
+    offset.putLong(8, readIndex);
+    offset.putLong(16, check(readSegment, readIndex));
+  }
+
+  /** Returns whether every spooled sample has been replayed. */
+  public boolean isEmpty() {
+    return readSegment == writeSegment && readIndex == writeIndex;
+  }
+
+  /** Returns the number of samples waiting to be replayed. */
+  public long size() {
+    if (readSegment == writeSegment) {
+      return writeIndex - readIndex;
+    }
+    return (recordsPerSegment - readIndex) + (writeSegment - readSegment - 1) * recordsPerSegment + writeIndex;
+  }
+
+  /** Returns the number of samples dropped with the oldest segment before they could be replayed. */
+  public long getDroppedCount() {
+    return dropped;
+  }
+
+  /**
+   * Fills the batch with the oldest samples not yet replayed, without consuming them; the batch's metric ids are the
+   * spool's. Call {@link #commit} once they have been replayed.
+   *
+   * @return the number of samples read
+   */
+  public int readTo(final SampleBatch batch) throws IOException {
+    batch.clear();
+    long segment = readSegment;
+    int index = readIndex;
+    while (!batch.isFull() && !(segment == writeSegment && index == writeIndex)) {
+      if (index == recordsPerSegment) {
+        segment++;
+        index = 0;
+        continue;
+      }
+      final MappedByteBuffer buffer = bufferFor(segment);
+      final int position = index * RECORD_BYTES;
+      batch.add(buffer.getInt(position) - 1, buffer.getLong(position + 4), buffer.getDouble(position + 12));
+      index++;
+    }
+    return batch.size();
+  }
+
+  private MappedByteBuffer bufferFor(final long segment) throws IOException {
+    if (segment == writeSegment) {
+      return writeBuffer;
+    }
+    if (segment != mappedReadSegment) {
+      unmap(readBuffer);
+      readBuffer = null;
+      mappedReadSegment = -1;
+      readBuffer = map(segment);
+      mappedReadSegment = segment;
+    }
+    return readBuffer;
+  }
+
+  /**
+   * Consumes the given number of the oldest samples, which have been replayed, and compacts the spool if that was all
+   * of them.
+   */
+  public void commit(final int count) throws IOException {
+    Preconditions.checkArgument(count >= 0 && count <= size(), "Cannot commit %s samples", count);
+    int remaining = count;
+    while (remaining > 0) {
+      if (readIndex == recordsPerSegment) {
+        advanceRead();
+      }
+      final int step = Math.min(remaining, (readSegment == writeSegment ? writeIndex : recordsPerSegment) - readIndex);
+      readIndex += step;
+      remaining -= step;
+    }
+    advanceRead();
+    if (count > 0 && isEmpty()) {
+      compact();
+    }
+  }
+
+  /** Writes the spooled samples and offset through to disk. */
+  public void force() {
+    writeBuffer.force();
+    offset.force();
+  }
+
+  /**
+   * Unmaps a buffer that will not be used again. Unmapping is not part of the public API before Java 9, so it is done
+   * reflectively; where it is not allowed, the mapping is left to the garbage collector.
+   */
+  private static void unmap(final MappedByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    try {
+      try {
+        final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } catch (final NoSuchMethodException e) {
+        // before Java 9, a mapped buffer has a cleaner of its own
+        final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        final Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (final Exception e) {
+      // not allowed by this JVM
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    force();
+    metricsLog.close();
+    offsetFile.close();
+  }
+}
@@ -0,0 +1,165 @@
+package com.bizo.asperatus.jmx.publish;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.bizo.asperatus.model.Dimension;
+import com.google.common.base.Charsets;
+
+/**
+ * Delivers samples to a StatsD server over UDP as gauges, packing as many lines as fit into each datagram. With tags
+ * enabled, dimensions are sent in the DogStatsD form, eg {@code HeapUsed:123|g|#host:a,env:prod}; otherwise they are
+ * left out. Since StatsD takes a signed gauge as an adjustment, a negative value is sent as a gauge of 0 followed by
+ * the value, in the same datagram.
+ *
+ * The bytes of each metric's name and tags are encoded once, the first time the metric is delivered, and datagrams
+ * are assembled in a single reused buffer, so delivering integral values allocates nothing. Characters that StatsD
+ * gives a meaning to are replaced with underscores.
+ */
+public class StatsdSink implements MetricSink, Closeable {
+  /** Default largest datagram, which fits in an Ethernet frame with IP and UDP headers. */
+  public static final int DEFAULT_MAX_DATAGRAM_BYTES = 1432;
+
+  private static final byte[] GAUGE = "|g".getBytes(Charsets.US_ASCII);
+  private static final byte[] ZERO = "0".getBytes(Charsets.US_ASCII);
+
+  private final DatagramChannel channel;
+  private final ByteBuffer datagram;
+  private final boolean tags;
+  /** The encoded prefix and suffix of each registry's metrics, by id. Publishing thread only. */
+  private final Map<MetricRegistry, Line[]> lines = new IdentityHashMap<MetricRegistry, Line[]>();
+  /** The text of the value being written. */
+  private final byte[] text = new byte[AsciiNumbers.MAX_LENGTH];
+
+  /** Creates a sink that sends tagged lines in datagrams of up to DEFAULT_MAX_DATAGRAM_BYTES. */
+  public StatsdSink(final InetSocketAddress address) throws IOException {
+    this(address, DEFAULT_MAX_DATAGRAM_BYTES, true);
+  }
+
+  /**
+   * @param maxDatagramBytes
+   *          the most bytes sent in one datagram; a line longer than this is dropped
+   * @param tags
+   *          whether to send dimensions as DogStatsD tags
+   */
+  public StatsdSink(final InetSocketAddress address, final int maxDatagramBytes, final boolean tags)
+      throws IOException {
+    channel = DatagramChannel.open();
+    channel.connect(address);
+    datagram = ByteBuffer.allocate(maxDatagramBytes);
+    this.tags = tags;
+  }
+
+  @Override
+  public void write(final MetricRegistry metrics, final SampleBatch batch) {
+    final Line[] encoded = lines(metrics);
+    datagram.clear();
+    // samples before firstPending are in datagrams already sent
+    int firstPending = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      final double value = batch.getValue(i);
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        continue;
+      }
+      final int id = batch.getMetricId(i);
+      final MetricDescriptor metric = metrics.get(id);
+      Line line = encoded[id];
+      if (line == null || line.metric != metric) {
+        // new, or the id was released and reused
+        line = new Line(metric, tags);
+        encoded[id] = line;
+      }
+      final int textLength = AsciiNumbers.write(value, text);
+      final boolean negative = text[0] == '-';
+      final int lineLength = line.prefix.length + textLength + GAUGE.length + line.suffix.length;
+      // a signed gauge adjusts the current value, so a negative one is set by zeroing it first
+      final int zeroLength = line.prefix.length + ZERO.length + GAUGE.length + line.suffix.length + 1;
+      final int length = negative ? zeroLength + lineLength : lineLength;
+      if (length > datagram.capacity()) {
+        continue;
+      }
+      if (datagram.position() > 0 && datagram.remaining() < length + 1) {
+        send(metrics, batch, firstPending);
+        firstPending = i;
+      }
+      if (datagram.position() > 0) {
+        datagram.put((byte) '\n');
+      }
+      if (negative) {
+        datagram.put(line.prefix).put(ZERO).put(GAUGE).put(line.suffix).put((byte) '\n');
+      }
+      datagram.put(line.prefix).put(text, 0, textLength);
+      datagram.put(GAUGE).put(line.suffix);
+    }
+    if (datagram.position() > 0) {
+      send(metrics, batch, firstPending);
+    }
+  }
+
+  private void send(final MetricRegistry metrics, final SampleBatch batch, final int firstPending) {
+    datagram.flip();
+    try {
+      channel.write(datagram);
+    } catch (final IOException e) {
+      throw new MetricSinkException(
+        firstPending,
+        metrics.get(batch.getMetricId(firstPending)).getMetricName(),
+        e);
+    } finally {
+      datagram.clear();
+    }
+  }
+
+  private Line[] lines(final MetricRegistry metrics) {
+    Line[] encoded = lines.get(metrics);
+    if (encoded == null || encoded.length < metrics.size()) {
+      final int capacity = Math.max(metrics.size(), encoded == null ? 0 : encoded.length * 2);
+      encoded = encoded == null ? new Line[capacity] : Arrays.copyOf(encoded, capacity);
+      lines.put(metrics, encoded);
+    }
+    return encoded;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /** The bytes of a metric's line before and after its value. */
+  private static final class Line {
+    final MetricDescriptor metric;
+    final byte[] prefix;
+    final byte[] suffix;
+
+    Line(final MetricDescriptor metric, final boolean tags) {
+      this.metric = metric;
+      prefix = (sanitize(metric.getMetricName()) + ":").getBytes(Charsets.UTF_8);
+      final StringBuilder suffix = new StringBuilder();
+      if (tags && !metric.getDimensions().isEmpty()) {
+        suffix.append("|#");
+        for (final Dimension dimension : metric.getDimensions()) {
+          if (suffix.length() > 2) {
+            suffix.append(',');
+          }
+          suffix.append(sanitize(dimension.getName())).append(':').append(sanitize(dimension.getValue()));
+        }
+      }
+      this.suffix = suffix.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static String sanitize(final String text) {
+      final StringBuilder sanitized = new StringBuilder(text.length());
+      for (int i = 0; i < text.length(); i++) {
+        final char c = text.charAt(i);
+        sanitized.append(c == ':' || c == '|' || c == '@' || c == '#' || c == ',' || c == '\n' ? '_' : c);
+      }
+      return sanitized.toString();
+    }
+  }
+}
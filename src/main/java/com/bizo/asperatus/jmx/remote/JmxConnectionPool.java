@@ -0,0 +1,186 @@
+package com.bizo.asperatus.jmx.remote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import com.bizo.asperatus.jmx.remote.ReconnectingConnector.ListenerRegistration;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * A pool of JMX connections to a single target. The pool hands out one MBeanServerConnection that spreads calls
+ * round-robin across its connectors, reconnecting each with exponential backoff when it fails. Callers may hold on to
+ * the connection indefinitely: while the target is down, calls fail with an IOException, and once it is back they
+ * succeed again without any intervention.
+ */
+public class JmxConnectionPool implements Closeable {
+  /** Default delay before the second reconnection attempt, in seconds. */
+  public static final long DEFAULT_INITIAL_BACKOFF = 1;
+
+  /** Default maximum delay between reconnection attempts, in seconds. */
+  public static final long DEFAULT_MAX_BACKOFF = 300;
+
+  private final JmxTarget target;
+  private final ReconnectingConnector[] connectors;
+  private final AtomicInteger next = new AtomicInteger();
+  private final MBeanServerConnection connection;
+
+  /**
+   * Creates a pool with a single connection and the default backoff.
+   */
+  public JmxConnectionPool(final JmxTarget target) {
+    this(target, 1, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF, TimeUnit.SECONDS, Ticker.systemTicker());
+  }
+
+  /**
+   * Creates a new pool. No connection is made until the first call.
+   * 
+   * @param target
+   *          the JVM to connect to
+   * @param size
+   *          the number of connectors to spread calls over
+   * @param initialBackoff
+   *          the delay before retrying a connection that failed again right after reconnecting
+   * @param maxBackoff
+   *          the maximum delay between reconnection attempts
+   * @param unit
+   *          the unit of initialBackoff and maxBackoff
+   * @param ticker
+   *          the time source used for backoff
+   */
+  public JmxConnectionPool(
+      final JmxTarget target,
+      final int size,
+      final long initialBackoff,
+      final long maxBackoff,
+      final TimeUnit unit,
+      final Ticker ticker) {
+    Preconditions.checkArgument(size > 0, "pool size must be positive");
+    this.target = target;
+    connectors = new ReconnectingConnector[size];
+    for (int i = 0; i < size; i++) {
+      connectors[i] = new ReconnectingConnector(target, initialBackoff, maxBackoff, unit, ticker);
+    }
+    connection =
+      (MBeanServerConnection) Proxy.newProxyInstance(
+        MBeanServerConnection.class.getClassLoader(),
+        new Class<?>[] { MBeanServerConnection.class },
+        new PooledInvocationHandler());
+  }
+
+  /** The target of this pool. */
+  public JmxTarget getTarget() {
+    return target;
+  }
+
+  /**
+   * Returns a connection to the target that reconnects as necessary. The same instance is returned on every call.
+   */
+  public MBeanServerConnection getConnection() {
+    return connection;
+  }
+
+  /** Whether at least one connector is currently connected. */
+  public boolean isConnected() {
+    for (final ReconnectingConnector connector : connectors) {
+      if (connector.isConnected()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Closes every connector. Later calls on the pooled connection will reconnect.
+   */
+  @Override
+  public void close() {
+    for (final ReconnectingConnector connector : connectors) {
+      connector.close();
+    }
+  }
+
+  private ReconnectingConnector nextConnector() {
+    return connectors[(next.getAndIncrement() & Integer.MAX_VALUE) % connectors.length];
+  }
+
+  /** Sends each call to the next connector, discarding its connection if the call fails with an IOException. */
+  private final class PooledInvocationHandler implements InvocationHandler {
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        if (method.getName().equals("equals")) {
+          return proxy == args[0];
+        } else if (method.getName().equals("hashCode")) {
+          return System.identityHashCode(proxy);
+        }
+        return method.invoke(this, args);
+      }
+      if (isListenerCall(method, "addNotificationListener")) {
+        return addListener(method, args);
+      }
+      if (isListenerCall(method, "removeNotificationListener")) {
+        return removeListener(method, args);
+      }
+      return invoke(nextConnector(), method, args);
+    }
+
+    private Object addListener(final Method method, final Object[] args) throws Throwable {
+      final ReconnectingConnector connector = nextConnector();
+      final Object result = invoke(connector, method, args);
+      connector.addListener(new ListenerRegistration(
+        (ObjectName) args[0],
+        (NotificationListener) args[1],
+        (NotificationFilter) args[2],
+        args[3]));
+      return result;
+    }
+
+    private Object removeListener(final Method method, final Object[] args) throws Throwable {
+      // listeners must be removed through the connector they were added to
+      for (final ReconnectingConnector connector : connectors) {
+        final ListenerRegistration registration = connector.findListener((ObjectName) args[0], args[1]);
+        if (registration != null) {
+          connector.removeListener(registration);
+          return connector.isConnected() ? invoke(connector, method, args) : null;
+        }
+      }
+      return invoke(nextConnector(), method, args);
+    }
+
+    private Object invoke(final ReconnectingConnector connector, final Method method, final Object[] args)
+        throws Throwable {
+      final MBeanServerConnection current = connector.get();
+      try {
+        return method.invoke(current, args);
+      } catch (final InvocationTargetException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          connector.invalidate(current, (IOException) cause);
+        }
+        throw cause;
+      }
+    }
+
+    private boolean isListenerCall(final Method method, final String name) {
+      final Class<?>[] types = method.getParameterTypes();
+      return method.getName().equals(name) && types.length > 1 && types[1] == NotificationListener.class;
+    }
+
+    @Override
+    public String toString() {
+      return "JmxConnectionPool[" + target + "]";
+    }
+  }
+}
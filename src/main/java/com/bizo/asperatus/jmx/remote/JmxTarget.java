@@ -0,0 +1,70 @@
+package com.bizo.asperatus.jmx.remote;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.management.remote.JMXServiceURL;
+
+import com.bizo.asperatus.model.Dimension;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A JmxTarget is a simple bean describing a remote JVM to be polled through a JMXConnector.
+ */
+public class JmxTarget {
+  /** The dimension identifying which target a metric came from. */
+  public static final String TARGET_DIMENSION = "Target";
+
+  /** Short name of the target, eg "app-server-1" */
+  private final String name;
+
+  /** Address of the target's JMXConnectorServer */
+  private final JMXServiceURL url;
+
+  /** Environment passed to JMXConnectorFactory.connect, eg credentials */
+  private final Map<String, ?> environment;
+
+  /** Dimensions to send to Asperatus for metrics from this target */
+  private final List<Dimension> dimensions;
+
+  /**
+   * Creates a target with no connection environment whose metrics carry a single "Target" dimension holding its name.
+   */
+  public JmxTarget(final String name, final JMXServiceURL url) {
+    this(name, url, ImmutableMap.<String, Object> of(), ImmutableList.of(new Dimension(TARGET_DIMENSION, name)));
+  }
+
+  public JmxTarget(
+      final String name,
+      final JMXServiceURL url,
+      final Map<String, ?> environment,
+      final List<Dimension> dimensions) {
+    this.name = Preconditions.checkNotNull(name);
+    this.url = Preconditions.checkNotNull(url);
+    this.environment = ImmutableMap.copyOf(environment);
+    this.dimensions = ImmutableList.copyOf(dimensions);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public JMXServiceURL getUrl() {
+    return url;
+  }
+
+  public Map<String, ?> getEnvironment() {
+    return environment;
+  }
+
+  public List<Dimension> getDimensions() {
+    return dimensions;
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + url + ")";
+  }
+}
@@ -0,0 +1,189 @@
+package com.bizo.asperatus.jmx.remote;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Holds one JMXConnector to a target, reconnecting it on demand after a failure. Reconnection attempts back off
+ * exponentially from the initial backoff up to the maximum; between attempts, requests for the connection fail fast
+ * with a TargetUnavailableException rather than waiting on a dead JVM.
+ * 
+ * Notification listeners added through this connector are re-added to every new connection, and are then sent a
+ * JMXConnectionNotification.NOTIFS_LOST, bypassing their filters, since any notifications sent while disconnected were
+ * lost.
+ */
+final class ReconnectingConnector {
+  private final JmxTarget target;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final Ticker ticker;
+  private final List<ListenerRegistration> listeners = new CopyOnWriteArrayList<ListenerRegistration>();
+
+  private JMXConnector connector;
+  private MBeanServerConnection connection;
+  private int failures = 0;
+  private long nextAttemptNanos;
+  private IOException lastFailure;
+
+  ReconnectingConnector(
+      final JmxTarget target,
+      final long initialBackoff,
+      final long maxBackoff,
+      final TimeUnit unit,
+      final Ticker ticker) {
+    this.target = target;
+    initialBackoffNanos = unit.toNanos(initialBackoff);
+    maxBackoffNanos = unit.toNanos(maxBackoff);
+    this.ticker = ticker;
+  }
+
+  /**
+   * Returns the current connection, connecting first if necessary.
+   * 
+   * @throws TargetUnavailableException
+   *           if the previous attempt failed and the backoff has not yet elapsed
+   * @throws IOException
+   *           if connecting fails
+   */
+  synchronized MBeanServerConnection get() throws IOException {
+    if (connection != null) {
+      return connection;
+    }
+    if (failures > 0 && ticker.read() - nextAttemptNanos < 0) {
+      throw new TargetUnavailableException("Target " + target + " is unavailable, waiting to reconnect", lastFailure);
+    }
+    JMXConnector newConnector = null;
+    try {
+      newConnector = JMXConnectorFactory.connect(target.getUrl(), target.getEnvironment());
+      final MBeanServerConnection newConnection = newConnector.getMBeanServerConnection();
+      final String connectionId = newConnector.getConnectionId();
+      for (final ListenerRegistration registration : listeners) {
+        registration.addTo(newConnection);
+      }
+      connector = newConnector;
+      connection = newConnection;
+      failures = 0;
+      lastFailure = null;
+      // listeners are only added to a live connection, so each of these missed what happened while disconnected
+      for (final ListenerRegistration registration : listeners) {
+        registration.notificationsLost(connectionId, target);
+      }
+      return connection;
+    } catch (final IOException e) {
+      closeQuietly(newConnector);
+      failed(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Discards the given connection after a failed call so that the next request reconnects.
+   */
+  synchronized void invalidate(final MBeanServerConnection failed, final IOException cause) {
+    if (failed == connection) {
+      closeQuietly(connector);
+      connector = null;
+      connection = null;
+      failed(cause);
+    }
+  }
+
+  private void failed(final IOException cause) {
+    // the first reconnect after a working connection is immediate, later ones back off
+    final long backoff = failures == 0 ? 0 : Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(failures - 1, 30));
+    failures++;
+    nextAttemptNanos = ticker.read() + backoff;
+    lastFailure = cause;
+  }
+
+  synchronized boolean isConnected() {
+    return connection != null;
+  }
+
+  synchronized void close() {
+    closeQuietly(connector);
+    connector = null;
+    connection = null;
+  }
+
+  void addListener(final ListenerRegistration registration) {
+    listeners.add(registration);
+  }
+
+  void removeListener(final ListenerRegistration registration) {
+    listeners.remove(registration);
+  }
+
+  ListenerRegistration findListener(final ObjectName name, final Object listener) {
+    for (final ListenerRegistration registration : listeners) {
+      if (registration.matches(name, listener)) {
+        return registration;
+      }
+    }
+    return null;
+  }
+
+  private static void closeQuietly(final JMXConnector connector) {
+    if (connector != null) {
+      try {
+        connector.close();
+      } catch (final IOException e) {
+        // the connection is being discarded anyway
+      }
+    }
+  }
+
+  /** The arguments of an addNotificationListener call, kept so that it can be repeated after reconnecting. */
+  static final class ListenerRegistration {
+    private final ObjectName name;
+    private final NotificationListener listener;
+    private final NotificationFilter filter;
+    private final Object handback;
+
+    ListenerRegistration(
+        final ObjectName name,
+        final NotificationListener listener,
+        final NotificationFilter filter,
+        final Object handback) {
+      this.name = name;
+      this.listener = listener;
+      this.filter = filter;
+      this.handback = handback;
+    }
+
+    boolean matches(final ObjectName otherName, final Object otherListener) {
+      return name.equals(otherName) && listener == otherListener;
+    }
+
+    void addTo(final MBeanServerConnection connection) throws IOException {
+      try {
+        connection.addNotificationListener(name, listener, filter, handback);
+      } catch (final InstanceNotFoundException e) {
+        // the broadcaster is not registered in this JVM any more, so there is nothing to listen to
+      }
+    }
+
+    void notificationsLost(final String connectionId, final JmxTarget target) {
+      listener.handleNotification(new JMXConnectionNotification(
+        JMXConnectionNotification.NOTIFS_LOST,
+        name,
+        connectionId,
+        0,
+        "Reconnected to " + target + "; notifications sent while disconnected were lost",
+        null), handback);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package com.bizo.asperatus.jmx.remote;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.bizo.asperatus.jmx.AsperatusJmxBridge;
+import com.bizo.asperatus.jmx.MetricRunnableFactoryImpl;
+import com.bizo.asperatus.jmx.PeriodBucketScheduler;
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.jmx.publish.AsyncMetricPublisher;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * This class polls the same configurations from many remote JVMs, so that a single collector process can replace a
+ * bridge embedded in every JVM.
+ * 
+ * Every target has its own connection pool and its own scheduler thread, so targets are polled in parallel and a slow
+ * or dead JVM only delays its own metrics. Metrics from each target carry that target's dimensions. All targets share
+ * one AsyncMetricPublisher, so a slow tracker does not delay polling either.
+ */
+public class RemoteJmxBridge {
+  private final List<TargetBridge> targets;
+  private final AsyncMetricPublisher publisher;
+
+  /**
+   * Creates a bridge polling the given targets, each through a single connection with the default backoff.
+   */
+  public RemoteJmxBridge(final MetricTracker tracker, final Collection<JmxTarget> targets) {
+    this(tracker, pools(targets));
+  }
+
+  /**
+   * Creates a bridge polling the target of each of the given pools. The pools are closed when the bridge is shut down.
+   */
+  public RemoteJmxBridge(final MetricTracker tracker, final List<JmxConnectionPool> pools) {
+    publisher = new AsyncMetricPublisher(Preconditions.checkNotNull(tracker));
+    final ImmutableList.Builder<TargetBridge> builder = ImmutableList.builder();
+    for (final JmxConnectionPool pool : pools) {
+      builder.add(new TargetBridge(tracker, publisher, pool));
+    }
+    targets = builder.build();
+  }
+
+  private static List<JmxConnectionPool> pools(final Collection<JmxTarget> targets) {
+    final ImmutableList.Builder<JmxConnectionPool> builder = ImmutableList.builder();
+    for (final JmxTarget target : targets) {
+      builder.add(new JmxConnectionPool(target));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Starts monitoring the given configurations on every target. Any previously monitored configurations will be
+   * cancelled.
+   */
+  public void monitor(final Collection<MetricConfiguration> configurations) {
+    for (final TargetBridge target : targets) {
+      target.bridge.monitor(configurations);
+    }
+  }
+
+  /** Alias for monitor(configurations). */
+  public void setConfigurations(final Collection<MetricConfiguration> configurations) {
+    monitor(configurations);
+  }
+
+  /** The connection pools of every target. */
+  public List<JmxConnectionPool> getPools() {
+    final ImmutableList.Builder<JmxConnectionPool> builder = ImmutableList.builder();
+    for (final TargetBridge target : targets) {
+      builder.add(target.pool);
+    }
+    return builder.build();
+  }
+
+  /** The publisher shared by every target. */
+  public AsyncMetricPublisher getPublisher() {
+    return publisher;
+  }
+
+  /**
+   * Stops monitoring, shuts down every target's thread and closes every connection.
+   */
+  public void shutdown() {
+    for (final TargetBridge target : targets) {
+      target.shutdown();
+    }
+    publisher.close();
+  }
+
+  /** The bridge, thread and connections dedicated to one target. */
+  private static final class TargetBridge {
+    private final JmxConnectionPool pool;
+    private final PeriodBucketScheduler scheduler;
+    private final AsperatusJmxBridge bridge;
+
+    TargetBridge(final MetricTracker tracker, final AsyncMetricPublisher publisher, final JmxConnectionPool pool) {
+      this.pool = pool;
+      final ScheduledExecutorService executor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("asperatus-jmx-" + pool.getTarget().getName() + "-%d")
+          .setDaemon(true)
+          .build());
+      scheduler = new PeriodBucketScheduler(executor);
+      final MetricRunnableFactoryImpl factory = new MetricRunnableFactoryImpl(tracker);
+      factory.setPublisher(publisher);
+      factory.setMBeanServer(pool.getConnection());
+      factory.setDimensions(pool.getTarget().getDimensions());
+      bridge = new AsperatusJmxBridge(factory, scheduler);
+    }
+
+    void shutdown() {
+      bridge.shutdown();
+      scheduler.shutdown();
+      pool.close();
+    }
+  }
+}
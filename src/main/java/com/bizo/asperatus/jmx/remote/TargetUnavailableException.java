@@ -0,0 +1,14 @@
+package com.bizo.asperatus.jmx.remote;
+
+import java.io.IOException;
+
+/**
+ * This exception is thrown in place of a remote call while a target's connection is backing off after a failure.
+ */
+public class TargetUnavailableException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public TargetUnavailableException(final String msg, final Throwable cause) {
+    super(msg, cause);
+  }
+}
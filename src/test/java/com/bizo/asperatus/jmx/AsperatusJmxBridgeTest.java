@@ -1,14 +1,21 @@
 package com.bizo.asperatus.jmx;
 
 import static com.bizo.asperatus.model.Unit.Count;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -18,6 +25,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.jmx.configuration.MetricConfigurationException;
 import com.google.common.collect.ImmutableList;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -60,10 +68,11 @@ public class AsperatusJmxBridgeTest {
     factory = mock(MetricRunnableFactory.class);
     executor = mock(ScheduledExecutorService.class);
     bridge = new AsperatusJmxBridge(factory, executor);
+    bridge.setPhaseStrategy(PhaseStrategy.NONE);
 
     for (int i = 0; i < configs.size(); i++) {
       when(factory.get(configs.get(i))).thenReturn(noops.get(i));
-      when(executor.scheduleAtFixedRate(eq(noops.get(i)), anyInt(), anyInt(), any(TimeUnit.class))).thenReturn(
+      when(executor.scheduleAtFixedRate(eq(noops.get(i)), anyLong(), anyLong(), any(TimeUnit.class))).thenReturn(
         futures.get(i));
     }
   }
@@ -74,8 +83,8 @@ public class AsperatusJmxBridgeTest {
 
     verify(factory).get(configs.get(0));
     verify(factory).get(configs.get(1));
-    verify(executor).scheduleAtFixedRate(noops.get(0), baseFreq, baseFreq, TimeUnit.SECONDS);
-    verify(executor).scheduleAtFixedRate(noops.get(1), baseFreq + 1, baseFreq + 1, TimeUnit.SECONDS);
+    verifyScheduled(noops.get(0), baseFreq);
+    verifyScheduled(noops.get(1), baseFreq + 1);
   }
 
   @Test
@@ -84,16 +93,128 @@ public class AsperatusJmxBridgeTest {
 
     verify(factory).get(configs.get(0));
     verify(factory).get(configs.get(1));
-    verify(executor).scheduleAtFixedRate(noops.get(0), baseFreq, baseFreq, TimeUnit.SECONDS);
-    verify(executor).scheduleAtFixedRate(noops.get(1), baseFreq + 1, baseFreq + 1, TimeUnit.SECONDS);
+    verifyScheduled(noops.get(0), baseFreq);
+    verifyScheduled(noops.get(1), baseFreq + 1);
 
     bridge.monitor(ImmutableList.of(configs.get(2), configs.get(3)));
 
     verify(factory).get(configs.get(2));
     verify(factory).get(configs.get(3));
-    verify(executor).scheduleAtFixedRate(noops.get(2), baseFreq + 2, baseFreq + 2, TimeUnit.SECONDS);
-    verify(executor).scheduleAtFixedRate(noops.get(3), baseFreq + 3, baseFreq + 3, TimeUnit.SECONDS);
+    verifyScheduled(noops.get(2), baseFreq + 2);
+    verifyScheduled(noops.get(3), baseFreq + 3);
     verify(futures.get(0)).cancel(anyBoolean());
     verify(futures.get(1)).cancel(anyBoolean());
   }
+
+  @Test
+  public void testIncrementalScheduling() throws Exception {
+    bridge.monitor(ImmutableList.of(configs.get(0), configs.get(1)));
+    bridge.monitor(ImmutableList.of(configs.get(1), configs.get(2), configs.get(1)));
+
+    // the unchanged configuration keeps running; only the removed and added ones are touched
+    verify(factory, times(1)).get(configs.get(1));
+    verify(futures.get(0)).cancel(anyBoolean());
+    verify(futures.get(1), never()).cancel(anyBoolean());
+    verifyScheduled(noops.get(2), baseFreq + 2);
+    verify(executor, times(3)).scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class));
+
+    bridge.shutdown();
+    verify(futures.get(1)).cancel(anyBoolean());
+    verify(futures.get(2)).cancel(anyBoolean());
+  }
+
+  @Test
+  public void testFailedMonitorChangesNothing() throws Exception {
+    bridge.monitor(ImmutableList.of(configs.get(0), configs.get(1)));
+    when(factory.get(configs.get(3))).thenThrow(new MetricConfigurationException("bad objectName"));
+
+    try {
+      bridge.monitor(ImmutableList.of(configs.get(1), configs.get(2), configs.get(3)));
+      fail("expected MetricConfigurationException");
+    } catch (final MetricConfigurationException e) {
+      // expected
+    }
+
+    // the runnable created before the failure is cancelled, and the ones running before are not
+    verify(futures.get(2)).cancel(anyBoolean());
+    verify(futures.get(0), never()).cancel(anyBoolean());
+    verify(futures.get(1), never()).cancel(anyBoolean());
+    assertEquals(2, bridge.getStatistics().getActiveFutures());
+
+    bridge.shutdown();
+    verify(futures.get(0)).cancel(anyBoolean());
+    verify(futures.get(1)).cancel(anyBoolean());
+  }
+
+  @Test
+  public void testBatchScheduling() throws Exception {
+    final BatchMetricRunnableFactory batchFactory = mock(BatchMetricRunnableFactory.class);
+    final Runnable batch = noop();
+    final MetricConfiguration sibling =
+      new MetricConfiguration(objectName(0), "otherAttribute", null, metric, Count, baseFreq, comment);
+    when(batchFactory.getBatch(any(Collection.class))).thenReturn(batch, noops.get(1));
+    bridge = new AsperatusJmxBridge(batchFactory, executor);
+    bridge.setPhaseStrategy(PhaseStrategy.NONE);
+
+    bridge.monitor(ImmutableList.of(configs.get(0), configs.get(1), sibling));
+
+    verify(batchFactory).getBatch(ImmutableList.of(configs.get(0), sibling));
+    verify(batchFactory).getBatch(ImmutableList.of(configs.get(1)));
+    verifyScheduled(batch, baseFreq);
+    verifyScheduled(noops.get(1), baseFreq + 1);
+  }
+
+  @Test
+  public void testPhases() throws Exception {
+    final MetricConfiguration explicit = fastConfig(1).phaseMillis(100L).build();
+    final MetricConfiguration first = fastConfig(2).build();
+    final MetricConfiguration second = fastConfig(3).build();
+    final Runnable explicitCommand = noop();
+    final Runnable firstCommand = noop();
+    final Runnable secondCommand = noop();
+    when(factory.get(explicit)).thenReturn(explicitCommand);
+    when(factory.get(first)).thenReturn(firstCommand);
+    when(factory.get(second)).thenReturn(secondCommand);
+    bridge.setPhaseStrategy(PhaseStrategy.SPREAD);
+
+    bridge.monitor(ImmutableList.of(configs.get(0), explicit, first, second));
+
+    verifyScheduled(noops.get(0), baseFreq);
+    verify(executor).scheduleAtFixedRate(explicitCommand, 100, 500, TimeUnit.MILLISECONDS);
+    verify(executor).scheduleAtFixedRate(firstCommand, 500, 500, TimeUnit.MILLISECONDS);
+    verify(executor).scheduleAtFixedRate(secondCommand, 250, 500, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testDefaultPhasesShareFewBuckets() throws Exception {
+    when(factory.get(any(MetricConfiguration.class))).thenReturn(noop());
+    when(executor.scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class))).thenReturn(
+      futures.get(0));
+    final PeriodBucketScheduler scheduler = new PeriodBucketScheduler(executor);
+    bridge = new AsperatusJmxBridge(factory, scheduler);
+    final List<MetricConfiguration> many = new ArrayList<MetricConfiguration>();
+    for (int i = 0; i < 1000; i++) {
+      many.add(new MetricConfiguration(objectName(i), attribute, null, metric, Count, 60, comment));
+    }
+
+    bridge.monitor(many);
+
+    final int buckets = scheduler.getStatistics().size();
+    assertTrue("Got " + buckets + " buckets", buckets > 1 && buckets <= PhaseStrategy.DEFAULT_SLOTS);
+  }
+
+  private MetricConfiguration.Builder fastConfig(final int num) {
+    return MetricConfiguration.builder()
+      .objectName(objectName(num))
+      .attribute(attribute)
+      .metricName(metric)
+      .unit(Count)
+      .periodMillis(500);
+  }
+
+  /** Verifies that the command was scheduled every freq seconds, starting after one period. */
+  private void verifyScheduled(final Runnable command, final int freq) {
+    final long millis = TimeUnit.SECONDS.toMillis(freq);
+    verify(executor).scheduleAtFixedRate(command, millis, millis, TimeUnit.MILLISECONDS);
+  }
 }
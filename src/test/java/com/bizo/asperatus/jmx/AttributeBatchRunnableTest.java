@@ -0,0 +1,114 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.collect.ImmutableList;
+
+@SuppressWarnings("unchecked")
+public class AttributeBatchRunnableTest {
+  private static final String objectName = "domain: key1 = value1, key2 = value2";
+  private static final Unit unit = Unit.Count;
+  private static final int frequency = 5;
+
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+  private MBeanServer server;
+  private MetricTracker tracker;
+  private ErrorHandler handler;
+
+  private final MetricConfiguration numericConfig =
+    new MetricConfiguration(objectName, "numeric", null, "numericMetric", unit, frequency, null);
+  private final MetricConfiguration usedConfig =
+    new MetricConfiguration(objectName, "composite", "used", "usedMetric", unit, frequency, null);
+  private final MetricConfiguration maxConfig =
+    new MetricConfiguration(objectName, "composite", "max", "maxMetric", unit, frequency, null);
+
+  private AttributeBatchRunnable batch;
+
+  @Before
+  public void setUp() throws Exception {
+    server = mock(MBeanServer.class);
+    tracker = mock(MetricTracker.class);
+    handler = mock(ErrorHandler.class);
+
+    batch =
+      new AttributeBatchRunnable(server, ImmutableList.of(
+        new MetricRunnable(numericConfig, server, tracker, dimensions, handler),
+        new MetricRunnable(usedConfig, server, tracker, dimensions, handler),
+        new MetricRunnable(maxConfig, server, tracker, dimensions, handler)));
+  }
+
+  @Test
+  public void testSharedAttributeReadOnce() throws Exception {
+    assertEquals(ImmutableList.of("numeric", "composite"), batch.getAttributes());
+  }
+
+  @Test
+  public void testSingleRead() throws Exception {
+    final CompositeData data = mock(CompositeData.class);
+    when(data.get("used")).thenReturn(10L);
+    when(data.get("max")).thenReturn(20L);
+    when(server.getAttributes(new ObjectName(objectName), new String[] { "numeric", "composite" })).thenReturn(
+      new AttributeList(ImmutableList.of(new Attribute("composite", data), new Attribute("numeric", 5))));
+
+    batch.run();
+
+    verify(server, times(1)).getAttributes(any(ObjectName.class), any(String[].class));
+    verify(server, never()).getAttribute(any(ObjectName.class), anyString());
+    verify(tracker).track("numericMetric", 5, unit, dimensions);
+    verify(tracker).track("usedMetric", 10L, unit, dimensions);
+    verify(tracker).track("maxMetric", 20L, unit, dimensions);
+    verify(handler, never()).handleError(anyString(), any(Throwable.class));
+  }
+
+  @Test
+  public void testMissingAttribute() throws Exception {
+    when(server.getAttributes(new ObjectName(objectName), new String[] { "numeric", "composite" })).thenReturn(
+      new AttributeList(ImmutableList.of(new Attribute("numeric", 5))));
+
+    batch.run();
+
+    verify(tracker).track("numericMetric", 5, unit, dimensions);
+    verify(handler, times(2)).handleError(anyString(), any(AttributeNotFoundException.class));
+  }
+
+  @Test
+  public void testMBeanException() throws Exception {
+    final InstanceNotFoundException e = new InstanceNotFoundException(objectName);
+    doThrow(e).when(server).getAttributes(any(ObjectName.class), any(String[].class));
+
+    batch.run();
+
+    verify(tracker, never()).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+    verify(handler, times(3)).handleError(anyString(), eq(e));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMixedObjectNames() throws Exception {
+    final MetricConfiguration otherConfig =
+      new MetricConfiguration("other:type=Other", "numeric", null, "otherMetric", unit, frequency, null);
+    new AttributeBatchRunnable(server, ImmutableList.of(
+      new MetricRunnable(numericConfig, server, tracker, dimensions, handler),
+      new MetricRunnable(otherConfig, server, tracker, dimensions, handler)));
+  }
+}
@@ -0,0 +1,103 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfigurationException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class AttributePathTest {
+  private CompositeData gcInfo;
+
+  /** Builds a value shaped like GcInfo, whose memoryUsageAfterGc is a Map<String, MemoryUsage> as an MXBean sees it. */
+  @Before
+  public void setUp() throws Exception {
+    final CompositeType usageType =
+      new CompositeType("MemoryUsage", "usage", new String[] { "used", "committed" }, new String[] { "used",
+        "committed" }, new OpenType<?>[] { SimpleType.LONG, SimpleType.LONG });
+    final CompositeType entryType =
+      new CompositeType("Entry", "entry", new String[] { "key", "value" }, new String[] { "key", "value" },
+        new OpenType<?>[] { SimpleType.STRING, usageType });
+    final TabularType mapType = new TabularType("Map", "map", entryType, new String[] { "key" });
+    final TabularDataSupport usageAfterGc = new TabularDataSupport(mapType);
+    for (final String pool : new String[] { "G1 Eden Space", "G1 Old Gen" }) {
+      final CompositeData usage =
+        new CompositeDataSupport(usageType, new String[] { "used", "committed" }, new Object[] {
+          (long) pool.length(),
+          1000L });
+      usageAfterGc.put(new CompositeDataSupport(entryType, new String[] { "key", "value" }, new Object[] {
+        pool,
+        usage }));
+    }
+    final CompositeType gcInfoType =
+      new CompositeType("GcInfo", "gc", new String[] { "duration", "memoryUsageAfterGc" }, new String[] {
+        "duration",
+        "memoryUsageAfterGc" }, new OpenType<?>[] { SimpleType.LONG, mapType });
+    gcInfo =
+      new CompositeDataSupport(gcInfoType, new String[] { "duration", "memoryUsageAfterGc" }, new Object[] {
+        12L,
+        usageAfterGc });
+  }
+
+  @Test
+  public void testCompositeAndTabular() throws Exception {
+    assertEquals(12L, AttributePath.compile("duration").extract(gcInfo));
+    assertEquals(10L, AttributePath.compile("memoryUsageAfterGc[\"G1 Old Gen\"].used").extract(gcInfo));
+    assertEquals(1000L, AttributePath.compile("memoryUsageAfterGc[\"G1 Eden Space\"].committed").extract(gcInfo));
+  }
+
+  @Test
+  public void testArraysListsAndMaps() throws Exception {
+    assertEquals(3L, AttributePath.compile("[2]").extract(new long[] { 1, 2, 3 }));
+    assertEquals(2, AttributePath.compile("[1]").extract(new int[] { 1, 2, 3 }));
+    assertEquals(1.5, AttributePath.compile("[0]").extract(new double[] { 1.5 }));
+    assertEquals(7, AttributePath.compile("[0].b").extract(new Object[] { ImmutableMap.of("b", 7) }));
+    assertEquals(8, AttributePath.compile("a[1]").extract(ImmutableMap.of("a", ImmutableList.of(1, 8))));
+    assertEquals(9, AttributePath.compile("[\"x.y\"]").extract(ImmutableMap.of("x.y", 9)));
+    assertEquals(4, AttributePath.compile("[\"q\\\"]\"]").extract(ImmutableMap.of("q\"]", 4)));
+    assertNull(AttributePath.compile("missing").extract(ImmutableMap.of("a", 1)));
+  }
+
+  @Test
+  public void testMismatch() throws Exception {
+    assertMismatch("[3]", new long[] { 1, 2, 3 }, ErrorCode.PATH_NOT_FOUND);
+    assertMismatch("a", 5, ErrorCode.NOT_COMPOSITE_DATA);
+    assertMismatch("memoryUsageAfterGc[\"Perm Gen\"].used", gcInfo, ErrorCode.PATH_NOT_FOUND);
+    assertMismatch("duration.used", gcInfo, ErrorCode.NOT_COMPOSITE_DATA);
+  }
+
+  @Test
+  public void testInvalidPaths() {
+    for (final String path : new String[] { "", ".a", "a..b", "a.", "a[", "a[]", "a[x]", "a[\"b\"", "a[1" }) {
+      try {
+        AttributePath.compile(path);
+        fail(path);
+      } catch (final MetricConfigurationException e) {
+        // expected
+      }
+    }
+  }
+
+  private static void assertMismatch(final String path, final Object value, final ErrorCode code) {
+    try {
+      AttributePath.compile(path).extract(value);
+      fail(path);
+    } catch (final AttributePath.Mismatch m) {
+      assertSame(code, m.getCode());
+    }
+  }
+}
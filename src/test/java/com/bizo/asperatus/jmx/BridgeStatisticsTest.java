@@ -0,0 +1,123 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.PatternMetricRunnableTest.Pool;
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.collect.ImmutableList;
+
+public class BridgeStatisticsTest {
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+  private MBeanServer server;
+  private BridgeStatistics statistics;
+
+  @Before
+  public void setUp() throws Exception {
+    server = MBeanServerFactory.newMBeanServer();
+    server.registerMBean(new Pool(4), new ObjectName("test:type=Pool,name=a"));
+    statistics = new BridgeStatistics();
+  }
+
+  @Test
+  public void testHistogram() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram(4);
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 1000);
+    }
+    histogram.record(-5);
+
+    final LatencySnapshot snapshot = histogram.snapshot();
+    assertEquals(101, snapshot.getCount());
+    assertEquals(5050000, snapshot.getTotalNanos());
+    assertEquals(100000, snapshot.getMaxNanos());
+    // percentiles are the upper bounds of power-of-two buckets
+    assertEquals(65535, snapshot.getP50Nanos());
+    assertEquals(100000, snapshot.getP99Nanos());
+    assertEquals(0, new LatencyHistogram().snapshot().getP50Nanos());
+  }
+
+  @Test
+  public void testRecordsRunnables() throws Exception {
+    final MetricRunnableFactoryImpl factory = new MetricRunnableFactoryImpl(mock(MetricTracker.class));
+    factory.setMBeanServer(server);
+    factory.setDimensions(dimensions);
+    factory.setErrorHandler(mock(ErrorHandler.class));
+    factory.setStatistics(statistics);
+
+    factory.get(new MetricConfiguration("test:type=Pool,name=a", "Size", null, "PoolSize", Unit.Count, 60, null))
+      .run();
+    factory.get(new MetricConfiguration("test:type=Pool,name=b", "Size", null, "Missing", Unit.Count, 60, null))
+      .run();
+
+    assertEquals(1, statistics.getReadLatency().getCount());
+    assertEquals(1, statistics.getReadLatencyByMetric().get("PoolSize").getCount());
+    assertEquals(0, statistics.getReadLatencyByMetric().get("Missing").getCount());
+    assertEquals(1, statistics.getPushLatency().getCount());
+    assertEquals(Long.valueOf(1), statistics.getErrorCounts().get(ErrorCode.READ_FAILED.name()));
+  }
+
+  @Test
+  public void testLatencyOfDroppedRunnablesIsRemoved() throws Exception {
+    server.registerMBean(new Pool(5), new ObjectName("test:type=Pool,name=b"));
+    final MetricRunnableFactoryImpl factory = new MetricRunnableFactoryImpl(mock(MetricTracker.class));
+    factory.setMBeanServer(server);
+    factory.setStatistics(statistics);
+    final PatternMetricRunnable runnable =
+      (PatternMetricRunnable) factory.get(new MetricConfiguration(
+        "test:type=Pool,*",
+        "Size",
+        null,
+        "PoolSize",
+        Unit.Count,
+        60,
+        null));
+
+    // still recorded by the other match
+    server.unregisterMBean(new ObjectName("test:type=Pool,name=a"));
+    assertTrue(statistics.getReadLatencyByMetric().containsKey("PoolSize"));
+
+    runnable.close();
+    assertTrue(statistics.getReadLatencyByMetric().isEmpty());
+  }
+
+  @Test
+  public void testLag() throws Exception {
+    statistics.recordLag(10, 1000);
+    statistics.recordLag(1500, 1000);
+    assertEquals(2, statistics.getSchedulingLag().getCount());
+    assertEquals(1500, statistics.getSchedulingLag().getMaxNanos());
+    assertEquals(1, statistics.getLateTicks());
+  }
+
+  @Test
+  public void testMXBean() throws Exception {
+    final ObjectName name = new ObjectName("test:type=AsperatusJmxBridge");
+    server.registerMBean(statistics, name);
+    statistics.recordRead(2000);
+    statistics.readLatency("PoolSize").record(2000);
+    statistics.setActiveFutures(3);
+
+    final CompositeData readLatency = (CompositeData) server.getAttribute(name, "ReadLatency");
+    assertEquals(1L, readLatency.get("count"));
+    assertEquals(2000L, readLatency.get("maxNanos"));
+    assertTrue(server.getAttribute(name, "ReadLatencyByMetric") instanceof TabularData);
+    assertTrue(server.getAttribute(name, "ErrorCounts") instanceof TabularData);
+    assertEquals(3, server.getAttribute(name, "ActiveFutures"));
+  }
+}
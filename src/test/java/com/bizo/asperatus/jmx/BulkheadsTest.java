@@ -0,0 +1,171 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class BulkheadsTest {
+  private FakeTicker ticker;
+  private StructuredErrorHandler errorHandler;
+  private Bulkheads bulkheads;
+
+  @Before
+  public void setUp() {
+    ticker = new FakeTicker();
+    errorHandler = mock(StructuredErrorHandler.class);
+    bulkheads = new Bulkheads(Bulkheads.Isolation.DOMAIN, 1, 1, TimeUnit.SECONDS, errorHandler, ticker);
+  }
+
+  @After
+  public void tearDown() {
+    bulkheads.close();
+  }
+
+  @Test
+  public void testHungReadIsAbandoned() throws Exception {
+    final Hang hang = new Hang();
+    final Runnable hung = bulkheads.guard(hang, "hung:type=A");
+    hung.run();
+    assertTrue(hang.started.await(5, TimeUnit.SECONDS));
+
+    // another domain is read while the first hangs
+    final Count other = new Count(1);
+    bulkheads.guard(other, "java.lang:type=Memory").run();
+    assertTrue(other.done.await(5, TimeUnit.SECONDS));
+
+    // later ticks are skipped while the read is pending
+    hung.run();
+    ticker.advance(999, TimeUnit.MILLISECONDS);
+    bulkheads.checkDeadlines();
+    verify(errorHandler, never()).handleError(
+      any(ErrorCode.class),
+      anyString(),
+      any(Class.class),
+      any(Throwable.class));
+
+    ticker.advance(1, TimeUnit.MILLISECONDS);
+    bulkheads.checkDeadlines();
+    bulkheads.checkDeadlines();
+    verify(errorHandler, times(1)).handleError(ErrorCode.READ_TIMED_OUT, "hung:type=A", null, null);
+    assertTrue(hang.interrupted.await(5, TimeUnit.SECONDS));
+    assertEquals(1, hang.runs.get());
+  }
+
+  @Test
+  public void testQueuedReadIsWithdrawn() throws Exception {
+    // ignores the interrupt, so that the bulkhead's only thread stays busy until the queued read has been checked
+    final Block block = new Block();
+    bulkheads.guard(block, "d:type=A").run();
+    assertTrue(block.started.await(5, TimeUnit.SECONDS));
+    final Count queued = new Count(1);
+    final Runnable guarded = bulkheads.guard(queued, "d:type=B");
+    guarded.run();
+
+    ticker.advance(2, TimeUnit.SECONDS);
+    bulkheads.checkDeadlines();
+    verify(errorHandler).handleError(ErrorCode.READ_TIMED_OUT, "d:type=A", null, null);
+    verify(errorHandler).handleError(ErrorCode.READ_TIMED_OUT, "d:type=B", null, null);
+    block.release.countDown();
+
+    // withdrawn rather than run late, and handed over again on the next tick
+    assertEquals(0, queued.runs.get());
+    guarded.run();
+    assertTrue(queued.done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, queued.runs.get());
+  }
+
+  @Test
+  public void testCloseClosesCommand() throws Exception {
+    final Runnable command = mock(Runnable.class, withSettings().extraInterfaces(Closeable.class));
+    final Runnable guarded = bulkheads.guard(command, "a:b=c");
+    ((Closeable) guarded).close();
+    verify((Closeable) command).close();
+
+    // no longer checked once closed
+    guarded.run();
+    ticker.advance(2, TimeUnit.SECONDS);
+    bulkheads.checkDeadlines();
+    verify(errorHandler, never()).handleError(
+      eq(ErrorCode.READ_TIMED_OUT),
+      anyString(),
+      any(Class.class),
+      any(Throwable.class));
+  }
+
+  /** Blocks until interrupted. */
+  private static final class Hang implements Runnable {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final AtomicInteger runs = new AtomicInteger();
+
+    @Override
+    public void run() {
+      runs.incrementAndGet();
+      started.countDown();
+      try {
+        new CountDownLatch(1).await();
+      } catch (final InterruptedException e) {
+        interrupted.countDown();
+      }
+    }
+  }
+
+  /** Blocks until released, even if interrupted. */
+  private static final class Block implements Runnable {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public void run() {
+      started.countDown();
+      Uninterruptibles.awaitUninterruptibly(release);
+    }
+  }
+
+  private static final class Count implements Runnable {
+    final CountDownLatch done;
+    final AtomicInteger runs = new AtomicInteger();
+
+    Count(final int count) {
+      done = new CountDownLatch(count);
+    }
+
+    @Override
+    public void run() {
+      runs.incrementAndGet();
+      done.countDown();
+    }
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(final long time, final TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerFactory;
+import javax.management.MBeanServerNotification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.bizo.asperatus.jmx.CircuitBreaker.State;
+import com.bizo.asperatus.jmx.PatternMetricRunnableTest.Pool;
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+public class CircuitBreakerTest {
+  private static final long second = TimeUnit.SECONDS.toNanos(1);
+
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+  private ObjectName name;
+  private MBeanServer server;
+  private FakeTicker ticker;
+  private CircuitBreaker breaker;
+
+  @Before
+  public void setUp() throws Exception {
+    name = new ObjectName("test:type=Pool,name=late");
+    server = MBeanServerFactory.newMBeanServer();
+    ticker = new FakeTicker();
+    breaker = new CircuitBreaker(name, server, second, 8 * second, 3, ticker);
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    final Exception failure = new AttributeNotFoundException();
+    assertTrue(breaker.allowRequest());
+    assertTrue(breaker.recordFailure(failure));
+    assertEquals(State.BACKING_OFF, breaker.getState());
+
+    assertFalse(breaker.allowRequest());
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertTrue(breaker.allowRequest());
+    // only one probe is allowed per backoff
+    assertFalse(breaker.allowRequest());
+    assertFalse(breaker.recordFailure(failure));
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertFalse(breaker.allowRequest());
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertTrue(breaker.allowRequest());
+    // the third failure in a row opens the breaker, which is reported
+    assertTrue(breaker.recordFailure(failure));
+    assertEquals(State.OPEN, breaker.getState());
+
+    ticker.advance(7, TimeUnit.SECONDS);
+    assertFalse(breaker.allowRequest());
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertTrue(breaker.allowRequest());
+    assertFalse(breaker.recordFailure(failure));
+
+    ticker.advance(8, TimeUnit.SECONDS);
+    assertTrue(breaker.allowRequest());
+    breaker.recordSuccess();
+    assertEquals(State.HEALTHY, breaker.getState());
+    assertEquals(0, breaker.getFailures());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void testRegistrationRearms() throws Exception {
+    assertTrue(breaker.recordFailure(new InstanceNotFoundException()));
+    assertFalse(breaker.recordFailure(new InstanceNotFoundException()));
+    assertFalse(breaker.allowRequest());
+
+    server.registerMBean(new Pool(4), new ObjectName("test:type=Pool,name=other"));
+    assertFalse(breaker.allowRequest());
+
+    server.registerMBean(new Pool(5), name);
+    assertEquals(State.HEALTHY, breaker.getState());
+    assertTrue(breaker.allowRequest());
+    breaker.close();
+  }
+
+  @Test
+  public void testRegistrationRemovesListener() throws Exception {
+    final MBeanServerConnection connection = mock(MBeanServerConnection.class);
+    final CircuitBreaker listening = new CircuitBreaker(name, connection, second, 8 * second, 3, ticker);
+    listening.recordFailure(new InstanceNotFoundException());
+    final ArgumentCaptor<NotificationListener> listener = ArgumentCaptor.forClass(NotificationListener.class);
+    verify(connection).addNotificationListener(
+      eq(MBeanServerDelegate.DELEGATE_NAME),
+      listener.capture(),
+      any(NotificationFilter.class),
+      isNull());
+
+    listener.getValue().handleNotification(
+      new MBeanServerNotification(MBeanServerNotification.REGISTRATION_NOTIFICATION, this, 1, name),
+      null);
+    assertEquals(State.HEALTHY, listening.getState());
+    verify(connection).removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener.getValue());
+
+    // closing after recovery does not remove it again
+    listening.close();
+    verify(connection, times(1)).removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, listener.getValue());
+  }
+
+  @Test
+  public void testFactoryRunnable() throws Exception {
+    final MetricTracker tracker = mock(MetricTracker.class);
+    final ErrorHandler handler = mock(ErrorHandler.class);
+    final MetricRunnableFactoryImpl factory = new MetricRunnableFactoryImpl(tracker);
+    factory.setMBeanServer(server);
+    factory.setDimensions(dimensions);
+    factory.setErrorHandler(handler);
+    final MetricRunnable runnable =
+      (MetricRunnable) factory.get(new MetricConfiguration(
+        name.toString(),
+        "Size",
+        null,
+        "PoolSize",
+        Unit.Count,
+        60,
+        null));
+
+    runnable.run();
+    runnable.run();
+    runnable.run();
+    verify(handler, times(1)).handleError(anyString(), any(InstanceNotFoundException.class));
+    assertEquals(State.BACKING_OFF, runnable.getCircuitBreaker().getState());
+
+    server.registerMBean(new Pool(5), name);
+    runnable.run();
+    verify(tracker).track("PoolSize", 5, Unit.Count, dimensions);
+    assertEquals(State.HEALTHY, runnable.getCircuitBreaker().getState());
+    runnable.close();
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(final long time, final TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.configuration.MetricMode;
+
+public class CounterStateTest {
+  private static final long second = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void testDelta() throws Exception {
+    final CounterState state = new CounterState(MetricMode.DELTA);
+
+    assertFalse(state.update(100, 0));
+    assertTrue(state.update(130, 10 * second));
+    assertEquals(30, state.result(), 0);
+    assertTrue(state.update(130, 20 * second));
+    assertEquals(0, state.result(), 0);
+  }
+
+  @Test
+  public void testRate() throws Exception {
+    final CounterState state = new CounterState(MetricMode.RATE);
+
+    assertFalse(state.update(100, 0));
+    assertTrue(state.update(130, 10 * second));
+    assertEquals(3, state.result(), 0.000001);
+    assertTrue(state.update(160, 10 * second + second / 2));
+    assertEquals(60, state.result(), 0.000001);
+  }
+
+  @Test
+  public void testRateWithoutElapsedTime() throws Exception {
+    final CounterState state = new CounterState(MetricMode.RATE);
+
+    assertFalse(state.update(100, second));
+    assertFalse(state.update(130, second));
+    assertTrue(state.update(140, 2 * second));
+    assertEquals(10, state.result(), 0.000001);
+  }
+
+  @Test
+  public void testReset() throws Exception {
+    final CounterState state = new CounterState(MetricMode.DELTA);
+
+    assertFalse(state.update(1000, 0));
+    assertTrue(state.update(25, second));
+    assertEquals(25, state.result(), 0);
+    assertTrue(state.update(40, 2 * second));
+    assertEquals(15, state.result(), 0);
+  }
+}
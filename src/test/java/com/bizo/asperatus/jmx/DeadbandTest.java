@@ -0,0 +1,68 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+
+public class DeadbandTest {
+  private static final long second = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void testAbsolute() throws Exception {
+    final Deadband deadband = new Deadband(2, Double.NaN, 0);
+
+    assertTrue(deadband.shouldPublish(100, 0));
+    assertFalse(deadband.shouldPublish(101, second));
+    assertFalse(deadband.shouldPublish(98, 2 * second));
+    assertTrue(deadband.shouldPublish(103, 3 * second));
+    // the change is measured from the last value published, not the last sample
+    assertFalse(deadband.shouldPublish(104, 4 * second));
+    assertFalse(deadband.shouldPublish(105, 5 * second));
+    assertTrue(deadband.shouldPublish(105.5, 6 * second));
+  }
+
+  @Test
+  public void testExactRepeats() throws Exception {
+    final Deadband deadband = new Deadband(0, Double.NaN, 0);
+
+    assertTrue(deadband.shouldPublish(7, 0));
+    assertFalse(deadband.shouldPublish(7, second));
+    assertTrue(deadband.shouldPublish(8, 2 * second));
+  }
+
+  @Test
+  public void testRelative() throws Exception {
+    final Deadband deadband = new Deadband(Double.NaN, 0.1, 0);
+
+    assertTrue(deadband.shouldPublish(1000, 0));
+    assertFalse(deadband.shouldPublish(1090, second));
+    assertFalse(deadband.shouldPublish(910, 2 * second));
+    assertTrue(deadband.shouldPublish(1200, 3 * second));
+    assertFalse(deadband.shouldPublish(1300, 4 * second));
+  }
+
+  @Test
+  public void testHeartbeat() throws Exception {
+    final Deadband deadband = new Deadband(10, Double.NaN, 60 * second);
+
+    assertTrue(deadband.shouldPublish(5, 0));
+    assertFalse(deadband.shouldPublish(5, 59 * second));
+    assertTrue(deadband.shouldPublish(5, 60 * second));
+    assertFalse(deadband.shouldPublish(5, 61 * second));
+  }
+
+  @Test
+  public void testForConfig() throws Exception {
+    final MetricConfiguration.Builder builder =
+      MetricConfiguration.builder().objectName("a:b=c").attribute("A").metricName("M");
+
+    assertNull(Deadband.forConfig(builder.build()));
+    assertTrue(Deadband.forConfig(builder.deadbandPercent(5.0).build()) != null);
+  }
+}
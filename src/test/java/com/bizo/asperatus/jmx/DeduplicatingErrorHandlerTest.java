@@ -0,0 +1,101 @@
+package com.bizo.asperatus.jmx;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class DeduplicatingErrorHandlerTest {
+  private FakeTicker ticker;
+  private StructuredErrorHandler delegate;
+  private DeduplicatingErrorHandler handler;
+
+  @Before
+  public void setUp() throws Exception {
+    ticker = new FakeTicker();
+    delegate = mock(StructuredErrorHandler.class);
+    handler = new DeduplicatingErrorHandler(delegate, 60, TimeUnit.SECONDS, ticker);
+  }
+
+  @Test
+  public void testRepeatsAreSummarized() throws Exception {
+    final Exception e = new InstanceNotFoundException();
+    for (int i = 0; i < 240; i++) {
+      handler.handleError(ErrorCode.READ_FAILED, "metric", e.getClass(), e);
+    }
+    handler.handleError(ErrorCode.READ_FAILED, "other", e.getClass(), e);
+    verify(delegate).handleError(ErrorCode.READ_FAILED, "metric", InstanceNotFoundException.class, e);
+    verify(delegate).handleError(ErrorCode.READ_FAILED, "other", InstanceNotFoundException.class, e);
+
+    ticker.advance(60, TimeUnit.SECONDS);
+    handler.handleError(ErrorCode.READ_FAILED, "metric", e.getClass(), e);
+
+    verify(delegate).handleError(
+      "READ_FAILED for metric occurred 240 times in 60s: javax.management.InstanceNotFoundException",
+      null);
+    // a new interval passes the first occurrence on again
+    verify(delegate, times(2)).handleError(ErrorCode.READ_FAILED, "metric", InstanceNotFoundException.class, e);
+    verifyNoMoreInteractions(delegate);
+  }
+
+  @Test
+  public void testDistinctErrors() throws Exception {
+    final Exception missing = new InstanceNotFoundException();
+    final Exception noAttribute = new AttributeNotFoundException();
+    handler.handleError(ErrorCode.READ_FAILED, "metric", missing.getClass(), missing);
+    handler.handleError(ErrorCode.READ_FAILED, "metric", noAttribute.getClass(), noAttribute);
+    handler.handleError(ErrorCode.NOT_A_NUMBER, "metric", String.class, null);
+    handler.handleError(ErrorCode.NOT_A_NUMBER, "metric", String.class, null);
+    handler.handleError(ErrorCode.COMMAND_FAILED, null, RuntimeException.class, null);
+
+    verify(delegate).handleError(ErrorCode.READ_FAILED, "metric", InstanceNotFoundException.class, missing);
+    verify(delegate).handleError(ErrorCode.READ_FAILED, "metric", AttributeNotFoundException.class, noAttribute);
+    verify(delegate).handleError(ErrorCode.NOT_A_NUMBER, "metric", String.class, null);
+    verify(delegate).handleError(ErrorCode.COMMAND_FAILED, null, RuntimeException.class, null);
+
+    handler.flush();
+    verify(delegate).handleError("NOT_A_NUMBER for metric occurred 2 times in 0s: java.lang.String", null);
+    verifyNoMoreInteractions(delegate);
+  }
+
+  @Test
+  public void testUnstructuredDelegate() throws Exception {
+    final ErrorHandler plain = mock(ErrorHandler.class);
+    handler = new DeduplicatingErrorHandler(plain, 60, TimeUnit.SECONDS, ticker);
+    final Exception e = new InstanceNotFoundException();
+
+    ErrorCode.READ_FAILED.report(handler, "metric", e.getClass(), e);
+    ErrorCode.READ_FAILED.report(handler, "metric", e.getClass(), e);
+
+    verify(plain).handleError("Error while getting data for metric metric", e);
+    verifyNoMoreInteractions(plain);
+
+    handler.flush();
+    verify(plain).handleError(
+      "READ_FAILED for metric occurred 2 times in 0s: javax.management.InstanceNotFoundException",
+      null);
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(final long time, final TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
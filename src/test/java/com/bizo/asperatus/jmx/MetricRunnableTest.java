@@ -1,25 +1,41 @@
 package com.bizo.asperatus.jmx;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanException;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.jmx.configuration.ValueConversion;
+import com.bizo.asperatus.jmx.publish.MetricPublisher;
 import com.bizo.asperatus.model.Dimension;
 import com.bizo.asperatus.model.Unit;
 import com.bizo.asperatus.tracker.MetricTracker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 @SuppressWarnings("unchecked")
 public class MetricRunnableTest {
@@ -89,6 +105,115 @@ public class MetricRunnableTest {
     verify(handler, never()).handleError(anyString(), any(Throwable.class));
   }
 
+  @Test
+  public void testPathMetric() throws Exception {
+    final MetricConfiguration config =
+      MetricConfiguration.builder()
+        .objectName(objectName)
+        .attribute(attribute)
+        .path("pools[\"old\"][1]")
+        .metricName(metric)
+        .unit(unit)
+        .build();
+    final MetricRunnable runnable = new MetricRunnable(config, server, tracker, dimensions, handler);
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(
+      ImmutableMap.of("pools", ImmutableMap.of("old", new long[] { 5, 6 })),
+      ImmutableMap.of("pools", ImmutableMap.of("old", new long[] { 5 })));
+
+    runnable.run();
+    runnable.run();
+
+    verify(tracker).track("metric", 6L, unit, dimensions);
+    verify(handler).handleError(ErrorCode.PATH_NOT_FOUND.format(metric, long[].class), null);
+  }
+
+  @Test
+  public void testCompositeDataKeys() throws Exception {
+    final MetricConfiguration config =
+      MetricConfiguration.builder()
+        .objectName(objectName)
+        .attribute(attribute)
+        .compositeDataKeys(ImmutableMap.of("used", "HeapUsed", "max", "HeapMax"))
+        .metricName(metric)
+        .unit(unit)
+        .build();
+    final MetricRunnable runnable = new MetricRunnable(config, server, tracker, dimensions, handler);
+    final CompositeData data = mock(CompositeData.class);
+    when(data.get("used")).thenReturn(100L);
+    when(data.get("max")).thenReturn(400L);
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(data);
+
+    runnable.run();
+
+    verify(server, times(1)).getAttribute(new ObjectName(objectName), attribute);
+    verify(tracker).track("HeapUsed", 100L, unit, dimensions);
+    verify(tracker).track("HeapMax", 400L, unit, dimensions);
+    verify(tracker, times(2)).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+    verify(handler, never()).handleError(anyString(), any(Throwable.class));
+  }
+
+  @Test
+  public void testAllCompositeDataKeys() throws Exception {
+    final MetricConfiguration config =
+      MetricConfiguration.builder()
+        .objectName(objectName)
+        .attribute(attribute)
+        .compositeDataKey(MetricConfiguration.ALL_KEYS)
+        .metricName(metric)
+        .unit(unit)
+        .build();
+    final MetricRunnable runnable = new MetricRunnable(config, server, tracker, dimensions, handler);
+    final CompositeType type =
+      new CompositeType("Usage", "usage", new String[] { "committed", "name", "used" }, new String[] {
+        "committed",
+        "name",
+        "used" }, new OpenType<?>[] { SimpleType.LONG, SimpleType.STRING, SimpleType.LONG });
+    final String[] names = new String[] { "committed", "name", "used" };
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(
+      new CompositeDataSupport(type, names, new Object[] { 200L, "heap", 100L }),
+      new CompositeDataSupport(type, names, new Object[] { 200L, "heap", 150L }));
+
+    runnable.run();
+    runnable.run();
+
+    verify(tracker, times(2)).track("metric.committed", 200L, unit, dimensions);
+    verify(tracker).track("metric.used", 100L, unit, dimensions);
+    verify(tracker).track("metric.used", 150L, unit, dimensions);
+    verify(tracker, times(4)).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+    verify(handler, never()).handleError(anyString(), any(Throwable.class));
+  }
+
+  @Test
+  public void testConvertedMetric() throws Exception {
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(true, "false", 1);
+
+    numericRunnable.run();
+    numericRunnable.run();
+    numericRunnable.run();
+
+    // the converter is inferred from the first value, and numbers are still taken as they are
+    verify(tracker).track("metric", 1.0, unit, dimensions);
+    verify(tracker).track("metric", 0.0, unit, dimensions);
+    verify(tracker).track("metric", 1, unit, dimensions);
+    verify(tracker, times(3)).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+    verify(handler, never()).handleError(anyString(), any(Throwable.class));
+  }
+
+  @Test
+  public void testEnumValues() throws Exception {
+    final MetricConfiguration config =
+      MetricConfiguration.builder(numericConfig)
+        .valueConversion(ValueConversion.ENUM)
+        .enumValues(ImmutableMap.of("RUNNING", 1.0, "FAILED", 0.0))
+        .build();
+    final MetricRunnable runnable = new MetricRunnable(config, server, tracker, dimensions, handler);
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn("FAILED");
+
+    runnable.run();
+
+    verify(tracker).track("metric", 0.0, unit, dimensions);
+  }
+
   @Test
   public void testNonnumericMetric() throws Exception {
     when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn("I am not a number!");
@@ -121,4 +246,110 @@ public class MetricRunnableTest {
     verify(tracker).track("metric", 100, unit, dimensions);
     verify(handler).handleError(anyString(), eq(e));
   }
+
+  @Test
+  public void testPublisher() throws Exception {
+    final MetricPublisher publisher = mock(MetricPublisher.class);
+    when(publisher.register(metric, unit, dimensions)).thenReturn(42);
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(100);
+    final MetricRunnable runnable =
+      new MetricRunnable(numericConfig, new ObjectName(objectName), server, publisher, dimensions, handler);
+
+    runnable.run();
+
+    verify(publisher).publish(42, 100.0);
+    verify(tracker, never()).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+  }
+
+  @Test
+  public void testCloseReleasesMetric() throws Exception {
+    final MetricPublisher publisher = mock(MetricPublisher.class);
+    when(publisher.register(metric, unit, dimensions)).thenReturn(42);
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(100);
+    final MetricRunnable runnable =
+      new MetricRunnable(numericConfig, new ObjectName(objectName), server, publisher, dimensions, handler);
+
+    runnable.close();
+    runnable.close();
+    runnable.run();
+
+    verify(publisher, times(1)).release(42);
+    verify(publisher, never()).publish(anyInt(), anyDouble());
+  }
+
+  @Test
+  public void testCloseWaitsForPublish() throws Exception {
+    final MetricPublisher publisher = mock(MetricPublisher.class);
+    when(publisher.register(metric, unit, dimensions)).thenReturn(42);
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(100);
+    final CountDownLatch publishing = new CountDownLatch(1);
+    final CountDownLatch published = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        publishing.countDown();
+        published.await();
+        return null;
+      }
+    }).when(publisher).publish(42, 100.0);
+    final MetricRunnable runnable =
+      new MetricRunnable(numericConfig, new ObjectName(objectName), server, publisher, dimensions, handler);
+    final Thread run = new Thread(runnable);
+    run.start();
+    assertTrue(publishing.await(5, TimeUnit.SECONDS));
+
+    final Thread close = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runnable.close();
+      }
+    });
+    close.start();
+    close.join(100);
+    assertTrue(close.isAlive());
+    verify(publisher, never()).release(42);
+
+    published.countDown();
+    close.join(5000);
+    run.join(5000);
+    final InOrder order = inOrder(publisher);
+    order.verify(publisher).publish(42, 100.0);
+    order.verify(publisher).release(42);
+  }
+
+  @Test
+  public void testDeadband() throws Exception {
+    final MetricConfiguration config =
+      MetricConfiguration.builder()
+        .objectName(objectName)
+        .attribute(attribute)
+        .metricName(metric)
+        .unit(unit)
+        .deadband(5.0)
+        .build();
+    final PublishCounters counters = new PublishCounters();
+    final MetricRunnable runnable =
+      new MetricRunnable(
+        config,
+        new ObjectName(objectName),
+        server,
+        tracker,
+        null,
+        dimensions,
+        handler,
+        counters,
+        null,
+        null);
+    when(server.getAttribute(new ObjectName(objectName), attribute)).thenReturn(100, 103, 110);
+
+    runnable.run();
+    runnable.run();
+    runnable.run();
+
+    verify(tracker).track("metric", 100, unit, dimensions);
+    verify(tracker).track("metric", 110, unit, dimensions);
+    verify(tracker, times(2)).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+    assertEquals(2, counters.getSentCount());
+    assertEquals(1, counters.getSuppressedCount());
+  }
 }
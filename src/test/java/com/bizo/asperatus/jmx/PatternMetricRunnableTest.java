@@ -0,0 +1,205 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerFactory;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+public class PatternMetricRunnableTest {
+  public interface PoolMBean {
+    int getSize();
+  }
+
+  public static class Pool implements PoolMBean {
+    private final int size;
+
+    public Pool(final int size) {
+      this.size = size;
+    }
+
+    @Override
+    public int getSize() {
+      return size;
+    }
+  }
+
+  private static final String pattern = "test:type=Pool,*";
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+
+  private MBeanServer server;
+  private MetricTracker tracker;
+  private PatternMetricRunnable runnable;
+
+  @Before
+  public void setUp() throws Exception {
+    server = MBeanServerFactory.newMBeanServer();
+    tracker = mock(MetricTracker.class);
+    server.registerMBean(new Pool(1), name("a"));
+    server.registerMBean(new Pool(2), name("b"));
+    server.registerMBean(new Pool(3), new ObjectName("test:type=Other,name=c"));
+
+    final MetricRunnableFactoryImpl factory = new MetricRunnableFactoryImpl(tracker);
+    factory.setMBeanServer(server);
+    factory.setDimensions(dimensions);
+    runnable =
+      (PatternMetricRunnable) factory.get(new MetricConfiguration(
+        pattern,
+        "Size",
+        null,
+        "PoolSize",
+        Unit.Count,
+        60,
+        null));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    runnable.close();
+  }
+
+  @Test
+  public void testInitialMatches() throws Exception {
+    assertEquals(2, runnable.getMatchCount());
+
+    runnable.run();
+
+    verify(tracker).track("PoolSize", 1, Unit.Count, dimensions(name("a")));
+    verify(tracker).track("PoolSize", 2, Unit.Count, dimensions(name("b")));
+  }
+
+  @Test
+  public void testRegistrationUpdatesMatches() throws Exception {
+    server.registerMBean(new Pool(4), name("d"));
+    assertEquals(3, runnable.getMatchCount());
+
+    server.unregisterMBean(name("a"));
+    server.registerMBean(new Pool(5), new ObjectName("test:type=Other,name=e"));
+    assertEquals(2, runnable.getMatchCount());
+
+    runnable.run();
+
+    verify(tracker).track("PoolSize", 2, Unit.Count, dimensions(name("b")));
+    verify(tracker).track("PoolSize", 4, Unit.Count, dimensions(name("d")));
+  }
+
+  @Test
+  public void testKeyDimensions() throws Exception {
+    final MetricRunnableFactoryImpl factory = new MetricRunnableFactoryImpl(tracker);
+    factory.setMBeanServer(server);
+    factory.setDimensions(dimensions);
+    final MetricConfiguration.Builder builder =
+      MetricConfiguration.builder()
+        .objectName(pattern)
+        .attribute("Size")
+        .unit(Unit.Count)
+        .dimensions(ImmutableMap.of("Env", "test"))
+        .keyDimensions(ImmutableMap.of("Pool", "name", "Missing", "missing"));
+    final PatternMetricRunnable keyed =
+      (PatternMetricRunnable) factory.getBatch(ImmutableList.of(
+        builder.metricName("PoolSize").build(),
+        builder.metricName("PoolSize2").build()));
+    try {
+      keyed.run();
+    } finally {
+      keyed.close();
+    }
+
+    final ArgumentCaptor<List<Dimension>> first = dimensionsCaptor();
+    final ArgumentCaptor<List<Dimension>> second = dimensionsCaptor();
+    verify(tracker).track(eq("PoolSize"), eq(1), eq(Unit.Count), first.capture());
+    verify(tracker).track(eq("PoolSize2"), eq(1), eq(Unit.Count), second.capture());
+    assertEquals(
+      ImmutableList.of(new Dimension("key", "value"), new Dimension("Env", "test"), new Dimension("Pool", "a")),
+      first.getValue());
+    // built once for the MBean and shared
+    assertSame(first.getValue(), second.getValue());
+  }
+
+  @Test
+  public void testFailedQueryIsRetried() throws Exception {
+    final MBeanServerConnection connection = mock(MBeanServerConnection.class);
+    final ObjectName pattern = new ObjectName(PatternMetricRunnableTest.pattern);
+    when(connection.queryNames(pattern, null))
+      .thenThrow(new IOException("connection lost"))
+      .thenReturn(ImmutableSet.of(name("a")));
+    final Runnable read = mock(Runnable.class);
+    final PatternMetricRunnable retried =
+      new PatternMetricRunnable(pattern, connection, new Function<ObjectName, Runnable>() {
+        @Override
+        public Runnable apply(final ObjectName name) {
+          return read;
+        }
+      }, mock(ErrorHandler.class));
+    try {
+      // not resolved, and no longer listening until it is
+      assertEquals(0, retried.getMatchCount());
+      verify(connection).removeNotificationListener(
+        eq(MBeanServerDelegate.DELEGATE_NAME),
+        any(NotificationListener.class));
+
+      retried.run();
+      assertEquals(1, retried.getMatchCount());
+      verify(read).run();
+      verify(connection, times(2)).addNotificationListener(
+        eq(MBeanServerDelegate.DELEGATE_NAME),
+        any(NotificationListener.class),
+        any(NotificationFilter.class),
+        any());
+    } finally {
+      retried.close();
+    }
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    runnable.close();
+    server.registerMBean(new Pool(4), name("d"));
+
+    assertEquals(0, runnable.getMatchCount());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ArgumentCaptor<List<Dimension>> dimensionsCaptor() {
+    return (ArgumentCaptor<List<Dimension>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(List.class);
+  }
+
+  private static ObjectName name(final String name) throws Exception {
+    return new ObjectName("test:type=Pool,name=" + name);
+  }
+
+  private List<Dimension> dimensions(final ObjectName match) {
+    return ImmutableList.<Dimension> builder()
+      .addAll(dimensions)
+      .add(new Dimension(MetricRunnableFactoryImpl.OBJECT_NAME_DIMENSION, match.getCanonicalName()))
+      .build();
+  }
+}
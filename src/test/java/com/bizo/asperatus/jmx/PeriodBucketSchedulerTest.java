@@ -0,0 +1,130 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.bizo.asperatus.jmx.PeriodBucketScheduler.BucketStatistics;
+import com.google.common.base.Ticker;
+
+@SuppressWarnings("rawtypes")
+public class PeriodBucketSchedulerTest {
+  private ScheduledExecutorService executor;
+  private ScheduledFuture bucketFuture;
+  private ErrorHandler handler;
+  private FakeTicker ticker;
+  private PeriodBucketScheduler scheduler;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    executor = mock(ScheduledExecutorService.class);
+    bucketFuture = mock(ScheduledFuture.class);
+    handler = mock(ErrorHandler.class);
+    when(executor.scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class))).thenReturn(
+      bucketFuture);
+    ticker = new FakeTicker();
+    scheduler = new PeriodBucketScheduler(executor, handler, ticker);
+  }
+
+  @Test
+  public void testOneTaskPerPeriod() throws Exception {
+    scheduler.schedule(mock(Runnable.class), 5, 5, TimeUnit.SECONDS);
+    scheduler.schedule(mock(Runnable.class), 5, 5, TimeUnit.SECONDS);
+    scheduler.schedule(mock(Runnable.class), 5000, 5000, TimeUnit.MILLISECONDS);
+    scheduler.schedule(mock(Runnable.class), 60, 60, TimeUnit.SECONDS);
+
+    verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(5000L), eq(5000L), eq(TimeUnit.MILLISECONDS));
+    verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(60000L), eq(60000L), eq(TimeUnit.MILLISECONDS));
+    verifyNoMoreInteractions(executor);
+
+    final List<BucketStatistics> stats = scheduler.getStatistics();
+    assertEquals(2, stats.size());
+    for (final BucketStatistics stat : stats) {
+      assertEquals(stat.getPeriodMillis() == 5000 ? 3 : 1, stat.getSize());
+    }
+  }
+
+  @Test
+  public void testTickRunsBucket() throws Exception {
+    final Runnable first = mock(Runnable.class);
+    final Runnable second = mock(Runnable.class);
+    final Runnable cancelled = mock(Runnable.class);
+    scheduler.schedule(first, 5, 5, TimeUnit.SECONDS);
+    scheduler.schedule(second, 5, 5, TimeUnit.SECONDS);
+    scheduler.schedule(cancelled, 5, 5, TimeUnit.SECONDS).cancel(false);
+    doThrow(new RuntimeException("DIE!")).when(first).run();
+
+    tick(5000);
+
+    verify(first).run();
+    verify(second).run();
+    verify(cancelled, never()).run();
+    verify(handler).handleError(any(String.class), any(RuntimeException.class));
+    final BucketStatistics stats = scheduler.getStatistics().get(0);
+    assertEquals(2, stats.getSize());
+    assertEquals(1, stats.getTicks());
+    assertTrue(stats.getMaxTickNanos() >= stats.getLastTickNanos());
+  }
+
+  @Test
+  public void testEmptyBucketIsCancelled() throws Exception {
+    final Future<?> first = scheduler.schedule(mock(Runnable.class), 5, 5, TimeUnit.SECONDS);
+    final Future<?> second = scheduler.schedule(mock(Runnable.class), 5, 5, TimeUnit.SECONDS);
+
+    first.cancel(false);
+    verify(bucketFuture, never()).cancel(anyBoolean());
+    second.cancel(false);
+    verify(bucketFuture).cancel(false);
+    assertTrue(scheduler.getStatistics().isEmpty());
+  }
+
+  @Test
+  public void testPhases() throws Exception {
+    scheduler.schedule(mock(Runnable.class), 1000, 5000, TimeUnit.MILLISECONDS);
+    scheduler.schedule(mock(Runnable.class), 1000, 5000, TimeUnit.MILLISECONDS);
+    scheduler.schedule(mock(Runnable.class), 2500, 5000, TimeUnit.MILLISECONDS);
+    verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(1000L), eq(5000L), eq(TimeUnit.MILLISECONDS));
+    verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(2500L), eq(5000L), eq(TimeUnit.MILLISECONDS));
+    assertEquals(2, scheduler.getStatistics().size());
+
+    // a bucket created later is still aligned to the scheduler's start, not to the time it was created
+    ticker.advance(3000, TimeUnit.MILLISECONDS);
+    scheduler.schedule(mock(Runnable.class), 250, 1000, TimeUnit.MILLISECONDS);
+    scheduler.schedule(mock(Runnable.class), 2000, 5000, TimeUnit.MILLISECONDS);
+    verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(250L), eq(1000L), eq(TimeUnit.MILLISECONDS));
+    verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(4000L), eq(5000L), eq(TimeUnit.MILLISECONDS));
+  }
+
+  private void tick(final long periodMillis) {
+    final ArgumentCaptor<Runnable> bucket = ArgumentCaptor.forClass(Runnable.class);
+    verify(executor).scheduleAtFixedRate(bucket.capture(), anyLong(), eq(periodMillis), eq(TimeUnit.MILLISECONDS));
+    bucket.getValue().run();
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(final long time, final TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StatisticAccumulatorTest {
+  private static final long second = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void testWindow() throws Exception {
+    final StatisticAccumulator accumulator = new StatisticAccumulator(10 * second);
+    assertFalse(accumulator.windowElapsed(0));
+
+    accumulator.add(5, 0);
+    accumulator.add(2, 5 * second);
+    accumulator.add(8, 9 * second);
+    assertFalse(accumulator.windowElapsed(9 * second));
+    assertTrue(accumulator.windowElapsed(10 * second));
+
+    assertEquals(2, accumulator.getMin(), 0);
+    assertEquals(8, accumulator.getMax(), 0);
+    assertEquals(15, accumulator.getSum(), 0);
+    assertEquals(3, accumulator.getCount());
+
+    // the next window starts with its first sample
+    accumulator.reset();
+    assertFalse(accumulator.windowElapsed(100 * second));
+    accumulator.add(-1, 100 * second);
+    assertEquals(-1, accumulator.getMin(), 0);
+    assertEquals(-1, accumulator.getMax(), 0);
+    assertEquals(1, accumulator.getCount());
+    assertTrue(accumulator.windowElapsed(110 * second));
+  }
+}
@@ -0,0 +1,81 @@
+package com.bizo.asperatus.jmx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.configuration.ValueConversion;
+import com.google.common.collect.ImmutableMap;
+
+public class ValueConverterTest {
+  private enum State {
+    STARTING, RUNNING, FAILED
+  }
+
+  @Test
+  public void testInfer() {
+    assertSame(ValueConversion.BOOLEAN, ValueConverter.infer(true, null).getConversion());
+    assertSame(ValueConversion.STRING, ValueConverter.infer("12", null).getConversion());
+    assertSame(ValueConversion.ENUM, ValueConverter.infer("RUNNING", ImmutableMap.of("RUNNING", 1.0)).getConversion());
+    assertSame(ValueConversion.ENUM, ValueConverter.infer(State.RUNNING, null).getConversion());
+    assertSame(ValueConversion.TIMESTAMP, ValueConverter.infer(new Date(), null).getConversion());
+    assertNull(ValueConverter.infer(new Object(), null));
+    assertNull(ValueConverter.infer(null, null));
+  }
+
+  @Test
+  public void testBoolean() {
+    final ValueConverter converter = new ValueConverter(ValueConversion.BOOLEAN, null);
+    assertEquals(1, converter.convert(Boolean.TRUE), 0);
+    assertEquals(0, converter.convert(false), 0);
+    assertEquals(1, converter.convert(" True "), 0);
+    assertTrue(Double.isNaN(converter.convert("yes")));
+  }
+
+  @Test
+  public void testString() {
+    final ValueConverter converter = new ValueConverter(ValueConversion.STRING, null);
+    assertEquals(12.5, converter.convert(" 12.5"), 0);
+    assertTrue(Double.isNaN(converter.convert("twelve")));
+    assertTrue(Double.isNaN(converter.convert(12)));
+  }
+
+  @Test
+  public void testTimestampAndAge() {
+    final ValueConverter timestamp = new ValueConverter(ValueConversion.TIMESTAMP, null);
+    assertEquals(1234.5, timestamp.convert(new Date(1234500)), 0);
+    assertEquals(1234.5, timestamp.convert(1234500L), 0);
+
+    final ValueConverter age = new ValueConverter(ValueConversion.AGE, null);
+    final long tenMinutesAgo = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10);
+    assertEquals(600, age.convert(new Date(tenMinutesAgo)), 5);
+    assertEquals(600, age.convert(tenMinutesAgo), 5);
+    assertTrue(Double.isNaN(age.convert("yesterday")));
+  }
+
+  @Test
+  public void testEnum() {
+    final ValueConverter ordinal = new ValueConverter(ValueConversion.ENUM, null);
+    assertEquals(2, ordinal.convert(State.FAILED), 0);
+    assertTrue(Double.isNaN(ordinal.convert("FAILED")));
+
+    final ValueConverter mapped =
+      new ValueConverter(ValueConversion.ENUM, ImmutableMap.of("RUNNING", 1.0, "STARTING", 0.5, "FAILED", 0.0));
+    assertEquals(0.5, mapped.convert(State.STARTING), 0);
+    assertEquals(1, mapped.convert("RUNNING"), 0);
+    assertTrue(Double.isNaN(mapped.convert("STOPPED")));
+  }
+
+  @Test
+  public void testNumber() {
+    final ValueConverter converter = new ValueConverter(ValueConversion.NUMBER, null);
+    assertEquals(3, converter.convert(3), 0);
+    assertTrue(Double.isNaN(converter.convert("3")));
+  }
+}
@@ -0,0 +1,170 @@
+package com.bizo.asperatus.jmx.configuration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.ErrorCode;
+import com.bizo.asperatus.jmx.StructuredErrorHandler;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+public class BinaryConfigurationCacheTest {
+  private static final byte[] JSON =
+    ("[{\"objectName\" : \"java.lang:type=Memory\", \"attribute\" : \"HeapMemoryUsage\","
+      + " \"compositeDataKey\" : \"used\", \"metricName\" : \"HeapUsed\", \"unit\" : \"Bytes\", \"frequency\" : 5,"
+      + " \"publishFrequency\" : 60, \"comment\" : \"h\u00e9ap\"},"
+      + " {\"objectName\" : \"java.lang:type=Memory\", \"attribute\" : \"ObjectPendingFinalizationCount\","
+      + " \"metricName\" : \"PendingFinalization\", \"unit\" : \"Count\", \"deadband\" : 2, \"heartbeat\" : 300},"
+      + " {\"objectName\" : \"java.lang:type=Threading\", \"attribute\" : \"TotalStartedThreadCount\","
+      + " \"metricName\" : \"ThreadStarts\", \"unit\" : \"Count/Second\", \"mode\" : \"rate\","
+      + " \"converter\" : \"number\","
+      + " \"periodMillis\" : 250, \"phaseMillis\" : 100, \"deadbandPercent\" : 1.5},"
+      + " {\"objectName\" : \"java.lang:type=GarbageCollector,name=G1 Old Generation\", \"attribute\" : \"LastGcInfo\","
+      + " \"path\" : \"memoryUsageAfterGc[\\\"G1 Old Gen\\\"].used\", \"metricName\" : \"OldGenUsedAfterGc\","
+      + " \"unit\" : \"Bytes\", \"dimensions\" : {\"Env\" : \"prod\"}, \"keyDimensions\" : {\"Collector\" : \"name\"}},"
+      + " {\"objectName\" : \"java.lang:type=Memory\", \"attribute\" : \"NonHeapMemoryUsage\","
+      + " \"metricName\" : \"NonHeap\", \"unit\" : \"Bytes\","
+      + " \"compositeDataKeys\" : {\"used\" : \"NonHeapUsed\", \"max\" : \"NonHeapMax\"}},"
+      + " {\"objectName\" : \"a:b=c\", \"attribute\" : \"State\", \"metricName\" : \"State\", \"unit\" : \"None\","
+      + " \"enumValues\" : {\"RUNNING\" : 1, \"FAILED\" : 0}}]").getBytes(Charsets.UTF_8);
+
+  private File directory;
+  private StructuredErrorHandler errorHandler;
+  private BinaryConfigurationCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("config-cache", "");
+    directory.delete();
+    errorHandler = mock(StructuredErrorHandler.class);
+    cache = new BinaryConfigurationCache(directory, errorHandler);
+  }
+
+  @After
+  public void tearDown() {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    final List<MetricConfiguration> parsed = new MetricConfigurationParser(new String(JSON, Charsets.UTF_8)).get();
+    final HashCode digest = Hashing.sha1().hashBytes(JSON);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryConfigurationCache.encode(parsed, digest, out);
+
+    final List<MetricConfiguration> decoded =
+      BinaryConfigurationCache.decode(ByteBuffer.wrap(out.toByteArray()), digest);
+    assertEquals(parsed, decoded);
+    assertEquals(Unit.CountSecond, decoded.get(2).getUnit());
+    assertEquals(MetricMode.RATE, decoded.get(2).getMode());
+    assertEquals(ValueConversion.NUMBER, decoded.get(2).getValueConversion());
+    assertEquals(ImmutableMap.of("RUNNING", 1.0, "FAILED", 0.0), decoded.get(5).getEnumValues());
+    assertEquals("memoryUsageAfterGc[\"G1 Old Gen\"].used", decoded.get(3).getPath());
+    assertEquals(ImmutableMap.of("Env", "prod"), decoded.get(3).getDimensions());
+    assertEquals(ImmutableMap.of("Collector", "name"), decoded.get(3).getKeyDimensions());
+    assertEquals(ImmutableMap.of("used", "NonHeapUsed", "max", "NonHeapMax"), decoded.get(4).getCompositeDataKeys());
+    // one ObjectName per distinct name
+    assertSame(decoded.get(0).getJmxName(), decoded.get(1).getJmxName());
+    assertEquals(decoded.get(2).getJmxName(), parsed.get(2).getJmxName());
+  }
+
+  @Test
+  public void testWrittenOnFirstLoad() throws Exception {
+    final List<MetricConfiguration> first = cache.get(JSON);
+    final File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    assertEquals(Hashing.sha1().hashBytes(JSON) + ".bin", files[0].getName());
+
+    final List<MetricConfiguration> second = cache.get(JSON);
+    assertEquals(first, second);
+    assertSame(second.get(0).getJmxName(), second.get(1).getJmxName());
+    verifyZeroInteractions(errorHandler);
+  }
+
+  @Test
+  public void testChangedJsonMisses() throws Exception {
+    cache.get(JSON);
+    final List<MetricConfiguration> changed =
+      cache.get("[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\"}]"
+        .getBytes(Charsets.UTF_8));
+    assertEquals("M", changed.get(0).getMetricName());
+    assertEquals(2, directory.listFiles().length);
+  }
+
+  @Test
+  public void testCorruptFileIsReplaced() throws Exception {
+    directory.mkdirs();
+    final File file = new File(directory, Hashing.sha1().hashBytes(JSON) + ".bin");
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[] { 0x41, 0x53, 0x4A, 0x43, 0, 0, 0, 1, 0 });
+    } finally {
+      out.close();
+    }
+
+    final List<MetricConfiguration> configs = cache.get(JSON);
+    assertEquals(new MetricConfigurationParser(new String(JSON, Charsets.UTF_8)).get(), configs);
+    verify(errorHandler).handleError(
+      eq(ErrorCode.CONFIGURATION_CACHE_FAILED),
+      eq(file.getPath()),
+      eq(IOException.class),
+      any(IOException.class));
+    // rewritten, so the next load hits
+    assertEquals(
+      configs,
+      BinaryConfigurationCache.decode(ByteBuffer.wrap(Files.toByteArray(file)), Hashing.sha1().hashBytes(JSON)));
+  }
+
+  @Test(expected = IOException.class)
+  public void testDigestMismatch() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryConfigurationCache.encode(ImmutableList.<MetricConfiguration> of(), Hashing.sha1().hashBytes(JSON), out);
+    BinaryConfigurationCache.decode(ByteBuffer.wrap(out.toByteArray()), Hashing.sha1().hashBytes(new byte[0]));
+  }
+
+  @Test
+  public void testClasspathSupplier() throws Exception {
+    final List<MetricConfiguration> expected =
+      new ClasspathConfigurationSupplier("com/bizo/asperatus/jmx/configuration/test-configuration.json").get();
+    final List<MetricConfiguration> first =
+      new ClasspathConfigurationSupplier("com/bizo/asperatus/jmx/configuration/test-configuration.json", directory)
+        .get();
+    final List<MetricConfiguration> second =
+      new ClasspathConfigurationSupplier("com/bizo/asperatus/jmx/configuration/test-configuration.json", directory)
+        .get();
+    assertEquals(expected, first);
+    assertEquals(expected, second);
+    assertEquals(1, directory.listFiles().length);
+    assertFalse(directory.listFiles()[0].getName().endsWith(".tmp"));
+    assertTrue(directory.listFiles()[0].length() > 0);
+  }
+}
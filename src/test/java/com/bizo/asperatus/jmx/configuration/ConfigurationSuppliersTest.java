@@ -2,16 +2,22 @@ package com.bizo.asperatus.jmx.configuration;
 
 import static com.bizo.asperatus.model.Unit.BytesSecond;
 import static com.bizo.asperatus.model.Unit.Count;
+import static com.bizo.asperatus.model.Unit.CountSecond;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.util.Iterator;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
 public class ConfigurationSuppliersTest {
 
   private static final String nonClasspathConfigLocation = "src/etc/test-resources/test-configuration.json";
@@ -39,6 +45,210 @@ public class ConfigurationSuppliersTest {
     }
   }
 
+  @Test
+  public void testParserMode() throws Exception {
+    final String json =
+      "[{\"objectName\" : \"java.lang:type=Threading\", \"attribute\" : \"TotalStartedThreadCount\","
+        + " \"metricName\" : \"ThreadStarts\", \"unit\" : \"Count/Second\", \"mode\" : \"rate\"}]";
+
+    final List<MetricConfiguration> configs = new MetricConfigurationParser(json).get();
+
+    final MetricConfiguration expected =
+      MetricConfiguration.builder()
+        .objectName("java.lang:type=Threading")
+        .attribute("TotalStartedThreadCount")
+        .metricName("ThreadStarts")
+        .unit(CountSecond)
+        .mode(MetricMode.RATE)
+        .build();
+    assertEquals(ImmutableList.of(expected), configs);
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserInvalidMode() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"mode\" : \"sideways\"}]").get();
+  }
+
+  @Test
+  public void testParserPublishFrequency() throws Exception {
+    final List<MetricConfiguration> configs =
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+          + " \"frequency\" : 5, \"publishFrequency\" : 60}]").get();
+    assertEquals(60, configs.get(0).getPublishFrequency());
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserPublishFrequencyWithDeadband() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"frequency\" : 5, \"publishFrequency\" : 60, \"deadband\" : 1}]").get();
+  }
+
+  @Test
+  public void testParserPeriod() throws Exception {
+    final MetricConfiguration config =
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+          + " \"periodMillis\" : 250, \"phaseMillis\" : 100}]").get().get(0);
+    assertEquals(250, config.getPeriodMillis());
+    assertEquals(Long.valueOf(100), config.getPhaseMillis());
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserPhaseOutsidePeriod() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"periodMillis\" : 250, \"phaseMillis\" : 250}]").get();
+  }
+
+  @Test
+  public void testParserPath() throws Exception {
+    final MetricConfiguration config =
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+          + " \"path\" : \"x[\\\"y\\\"].z\"}]").get().get(0);
+    assertEquals("x[\"y\"].z", config.getPath());
+  }
+
+  @Test
+  public void testParserCompositeDataKeys() throws Exception {
+    final MetricConfiguration config =
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"java.lang:type=Memory\", \"attribute\" : \"HeapMemoryUsage\", \"metricName\" : \"Heap\","
+          + " \"unit\" : \"Bytes\", \"compositeDataKeys\" : {\"used\" : \"HeapUsed\","
+          + " \"committed\" : \"HeapCommitted\", \"max\" : \"HeapMax\"}}]").get().get(0);
+    assertEquals(ImmutableList.of("used", "committed", "max"), config.getCompositeDataKeys().keySet().asList());
+    assertEquals("HeapCommitted", config.getCompositeDataKeys().get("committed"));
+    assertTrue(config.isFanOut());
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserNonStringCompositeDataKeys() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"compositeDataKeys\" : {\"used\" : 1}}]").get();
+  }
+
+  @Test
+  public void testParserConverter() throws Exception {
+    final MetricConfiguration config =
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"State\", \"metricName\" : \"M\", \"unit\" : \"None\","
+          + " \"converter\" : \"enum\", \"enumValues\" : {\"RUNNING\" : 1, \"DEGRADED\" : 0.5}}]").get().get(0);
+    assertEquals(ValueConversion.ENUM, config.getValueConversion());
+    assertEquals(ImmutableMap.of("RUNNING", 1.0, "DEGRADED", 0.5), config.getEnumValues());
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserEnumValuesWithOtherConverter() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"converter\" : \"boolean\", \"enumValues\" : {\"RUNNING\" : 1}}]").get();
+  }
+
+  @Test
+  public void testParserDimensions() throws Exception {
+    final MetricConfiguration config =
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"java.lang:type=GarbageCollector,*\", \"attribute\" : \"CollectionCount\","
+          + " \"metricName\" : \"GcCount\", \"unit\" : \"Count\", \"dimensions\" : {\"Env\" : \"prod\"},"
+          + " \"keyDimensions\" : {\"Collector\" : \"name\"}}]").get().get(0);
+    assertEquals(ImmutableMap.of("Env", "prod"), config.getDimensions());
+    assertEquals(ImmutableMap.of("Collector", "name"), config.getKeyDimensions());
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserDuplicateDimension() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"dimensions\" : {\"B\" : \"x\"}, \"keyDimensions\" : {\"B\" : \"b\"}}]").get();
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserInvalidPath() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"path\" : \"x[\"}]").get();
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserPathWithCompositeDataKey() throws Exception {
+    new MetricConfigurationParser(
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\","
+        + " \"path\" : \"x\", \"compositeDataKey\" : \"x\"}]").get();
+  }
+
+  @Test
+  public void testParserErrorLocation() throws Exception {
+    try {
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\"},\n"
+          + "  {\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\","
+          + " \"unit\" : \"Nope\"}]").get();
+      fail();
+    } catch (final MetricConfigurationException e) {
+      assertTrue(e.getMessage(), e.getMessage().endsWith("in the entry at line 2, column 3"));
+    }
+    try {
+      new MetricConfigurationParser("[\n{\"objectName\" : }]").get();
+      fail();
+    } catch (final MetricConfigurationException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid JSON at line 2, column 17"));
+    }
+    // far enough in that the parser has read past the entry's first line when the entry fails
+    final StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 1000; i++) {
+      json.append("{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\",");
+      json.append(" \"unit\" : \"Count\"},\n");
+    }
+    json.append(" {\"objectName\" : \"a:b=c\",\n  \"attribute\" : \"A\",\n");
+    json.append("  \"metricName\" : \"M\", \"unit\" : \"Nope\"}]");
+    try {
+      new MetricConfigurationParser(json.toString()).get();
+      fail();
+    } catch (final MetricConfigurationException e) {
+      assertTrue(e.getMessage(), e.getMessage().endsWith("in the entry at line 1001, column 2"));
+    }
+    try {
+      new MetricConfigurationParser("[1]").get();
+      fail();
+    } catch (final MetricConfigurationException e) {
+      assertEquals("Items in the root JSON array must be objects at line 1, column 2", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testParserIterator() throws Exception {
+    final Iterator<MetricConfiguration> configs =
+      new MetricConfigurationParser(
+        "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"M\", \"unit\" : \"Count\"},"
+          + " {\"objectName\" : \"a:b=c\", \"attribute\" : \"B\", \"metricName\" : \"N\", \"unit\" : \"Count\"},"
+          + " {\"objectName\" : \"a:b=c\", \"attribute\" : \"C\", \"metricName\" : \"O\", \"unit\" : \"Nope\"}]")
+        .iterator();
+    // entries are parsed as they are asked for, so the valid ones come back before the broken one is reached
+    assertEquals("M", configs.next().getMetricName());
+    assertEquals("N", configs.next().getMetricName());
+    try {
+      configs.next();
+      fail();
+    } catch (final MetricConfigurationException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid unit Nope"));
+    }
+  }
+
+  @Test(expected = MetricConfigurationException.class)
+  public void testParserRootNotArray() throws Exception {
+    new MetricConfigurationParser("{\"objectName\" : \"a:b=c\"}").get();
+  }
+
+  @Test
+  public void testParserEmptyArray() throws Exception {
+    assertTrue(new MetricConfigurationParser(" [ ] ").get().isEmpty());
+  }
+
   private static void assertConfigurations(final List<MetricConfiguration> configs) {
     assertNotNull(configs);
     assertEquals(6, configs.size());
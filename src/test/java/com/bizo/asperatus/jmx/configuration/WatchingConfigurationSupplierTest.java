@@ -0,0 +1,97 @@
+package com.bizo.asperatus.jmx.configuration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.google.common.base.Charsets;
+
+public class WatchingConfigurationSupplierTest {
+  private final BlockingQueue<List<MetricConfiguration>> changes = new LinkedBlockingQueue<List<MetricConfiguration>>();
+  private final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<Throwable>();
+  private final ErrorHandler handler = new ErrorHandler() {
+    @Override
+    public void handleError(final String message, final Throwable cause) {
+      errors.add(cause);
+    }
+  };
+  private final ConfigurationListener listener = new ConfigurationListener() {
+    @Override
+    public void configurationChanged(final List<MetricConfiguration> configurations) {
+      changes.add(configurations);
+    }
+  };
+
+  private Path dir;
+  private WatchingConfigurationSupplier supplier;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("asperatus-jmx");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (supplier != null) {
+      supplier.close();
+    }
+    for (final Path file : Files.newDirectoryStream(dir)) {
+      Files.delete(file);
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testFileReload() throws Exception {
+    final Path file = dir.resolve("metrics.json");
+    write(file, "A");
+    supplier = new WatchingConfigurationSupplier(file, 50, handler);
+    supplier.addListener(listener);
+    assertEquals("A", supplier.get().get(0).getMetricName());
+
+    write(file, "B");
+    assertEquals("B", changes.poll(10, TimeUnit.SECONDS).get(0).getMetricName());
+    assertEquals("B", supplier.get().get(0).getMetricName());
+
+    // a malformed file is rejected and the last good configuration kept
+    Files.write(file, "[{\"objectName\" : ".getBytes(Charsets.UTF_8));
+    assertNotNull(errors.poll(10, TimeUnit.SECONDS));
+    assertEquals("B", supplier.get().get(0).getMetricName());
+    assertNull(changes.poll());
+  }
+
+  @Test
+  public void testDirectory() throws Exception {
+    write(dir.resolve("b.json"), "B");
+    write(dir.resolve("ignored.txt"), "X");
+    supplier = new WatchingConfigurationSupplier(dir, 50, handler);
+    supplier.addListener(listener);
+    assertEquals(1, supplier.get().size());
+
+    write(dir.resolve("a.json"), "A");
+    final List<MetricConfiguration> changed = changes.poll(10, TimeUnit.SECONDS);
+    assertEquals(2, changed.size());
+    assertEquals("A", changed.get(0).getMetricName());
+    assertEquals("B", changed.get(1).getMetricName());
+  }
+
+  private static void write(final Path file, final String metricName) throws IOException {
+    final String json =
+      "[{\"objectName\" : \"a:b=c\", \"attribute\" : \"A\", \"metricName\" : \"" + metricName
+        + "\", \"unit\" : \"Count\"}]";
+    Files.write(file, json.getBytes(Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,45 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.collect.ImmutableList;
+
+public class AsperatusSinkTest {
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+
+  @Test
+  public void testWholeValuesAreTrackedAsLongs() throws Exception {
+    final MetricTracker tracker = mock(MetricTracker.class);
+    final MetricRegistry registry = new MetricRegistry();
+    final int metric = registry.register("metric", Unit.Count, dimensions);
+    final SampleBatch batch = new SampleBatch(2);
+    batch.add(metric, 0, 42);
+    batch.add(metric, 0, 0.5);
+
+    new AsperatusSink(tracker).write(registry, batch);
+
+    verify(tracker).track("metric", Long.valueOf(42), Unit.Count, dimensions);
+    verify(tracker).track("metric", Double.valueOf(0.5), Unit.Count, dimensions);
+  }
+
+  @Test
+  public void testBox() throws Exception {
+    assertEquals(Long.valueOf(-7), AsperatusSink.box(-7));
+    assertEquals(Long.valueOf(Long.MIN_VALUE), AsperatusSink.box(Long.MIN_VALUE));
+    // 2^63 is out of range of a long
+    assertEquals(Double.valueOf(0x1p63), AsperatusSink.box(0x1p63));
+    assertEquals(Double.valueOf(1e300), AsperatusSink.box(1e300));
+    assertEquals(Double.valueOf(Double.NaN), AsperatusSink.box(Double.NaN));
+    assertEquals(Double.valueOf(Double.POSITIVE_INFINITY), AsperatusSink.box(Double.POSITIVE_INFINITY));
+    assertEquals(Double.valueOf(2.5), AsperatusSink.box(2.5));
+  }
+}
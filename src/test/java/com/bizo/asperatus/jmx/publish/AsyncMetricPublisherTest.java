@@ -0,0 +1,262 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.collect.ImmutableList;
+
+@SuppressWarnings("unchecked")
+public class AsyncMetricPublisherTest {
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+  private MetricTracker tracker;
+  private ErrorHandler handler;
+  private AsyncMetricPublisher publisher;
+
+  @Before
+  public void setUp() throws Exception {
+    tracker = mock(MetricTracker.class);
+    handler = mock(ErrorHandler.class);
+    publisher =
+      new AsyncMetricPublisher(
+        tracker,
+        new MetricRegistry(),
+        new SampleRingBuffer(4, OverflowPolicy.DROP_NEWEST),
+        2,
+        handler);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    publisher.close();
+  }
+
+  @Test
+  public void testRegistration() throws Exception {
+    final int first = publisher.register("metric", Unit.Count, dimensions);
+    final int second = publisher.register("other", Unit.Count, dimensions);
+
+    assertEquals(first, publisher.register("metric", Unit.Count, ImmutableList.copyOf(dimensions)));
+    assertTrue(first != second);
+  }
+
+  @Test
+  public void testPublish() throws Exception {
+    final int metric = publisher.register("metric", Unit.Count, dimensions);
+    final int other = publisher.register("other", Unit.Bytes, dimensions);
+
+    publisher.publish(metric, 1);
+    publisher.publish(other, 2);
+    publisher.publish(metric, 3);
+    publisher.close();
+
+    verify(tracker).track("metric", 1L, Unit.Count, dimensions);
+    verify(tracker).track("other", 2L, Unit.Bytes, dimensions);
+    verify(tracker).track("metric", 3L, Unit.Count, dimensions);
+    assertEquals(3, publisher.getPublishedCount());
+  }
+
+  @Test
+  public void testSlowTrackerDoesNotBlockPublishing() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        release.await();
+        return null;
+      }
+    }).when(tracker).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+    final int metric = publisher.register("metric", Unit.Count, dimensions);
+
+    for (int i = 0; i < 100; i++) {
+      publisher.publish(metric, i);
+    }
+
+    assertTrue(publisher.getDroppedCount() > 0);
+    release.countDown();
+  }
+
+  @Test
+  public void testReleasedIdIsReusedOnceItsSamplesArePublished() throws Exception {
+    final CountDownLatch tracking = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        tracking.countDown();
+        release.await();
+        return null;
+      }
+    }).when(tracker).track("blocker", 0L, Unit.Count, dimensions);
+    publisher.publish(publisher.register("blocker", Unit.Count, dimensions), 0);
+    assertTrue(tracking.await(5, TimeUnit.SECONDS));
+
+    final int metric = publisher.register("metric", Unit.Count, dimensions);
+    publisher.publish(metric, 1);
+    publisher.release(metric);
+    // its sample is still buffered
+    assertTrue(publisher.register("other", Unit.Count, dimensions) != metric);
+    release.countDown();
+    publisher.close();
+
+    verify(tracker).track("metric", 1L, Unit.Count, dimensions);
+    assertEquals(metric, publisher.getRegistry().register("third", Unit.Count, dimensions));
+  }
+
+  @Test
+  public void testTrackerException() throws Exception {
+    final RuntimeException e = new RuntimeException("DIE!");
+    doThrow(e).when(tracker).track(anyString(), any(Number.class), any(Unit.class), any(List.class));
+
+    publisher.publish(publisher.register("metric", Unit.Count, dimensions), 1);
+    publisher.close();
+
+    verify(handler).handleError(anyString(), eq(e));
+    assertEquals(1, publisher.getFailedCount());
+  }
+
+  @Test
+  public void testFailedSampleIsSkipped() throws Exception {
+    final RuntimeException e = new RuntimeException("DIE!");
+    doThrow(e).when(tracker).track("bad", 1L, Unit.Count, dimensions);
+    final int bad = publisher.register("bad", Unit.Count, dimensions);
+    final int good = publisher.register("good", Unit.Count, dimensions);
+
+    publisher.publish(bad, 1);
+    publisher.publish(good, 2);
+    publisher.close();
+
+    verify(tracker).track("good", 2L, Unit.Count, dimensions);
+    assertEquals(1, publisher.getPublishedCount());
+    assertEquals(1, publisher.getFailedCount());
+  }
+
+  @Test
+  public void testSpoolReplaysWhenTrackerRecovers() throws Exception {
+    final File directory = File.createTempFile("spool", "");
+    directory.delete();
+    final SampleSpool spool = new SampleSpool(directory, 64 * SampleSpool.RECORD_BYTES, 4);
+    final FlakyTracker flaky = new FlakyTracker();
+    final AsyncMetricPublisher spooling =
+      new AsyncMetricPublisher(
+        flaky,
+        new MetricRegistry(),
+        new SampleRingBuffer(16, OverflowPolicy.BLOCK),
+        4,
+        handler);
+    try {
+      spooling.setSpool(spool, 10, TimeUnit.MILLISECONDS);
+      final int metric = spooling.register("metric", Unit.Count, dimensions);
+      for (int i = 0; i < 5; i++) {
+        spooling.publish(metric, i);
+      }
+      waitFor(spooling, 5);
+      assertTrue(flaky.tracked.isEmpty());
+
+      flaky.healthy = true;
+      spooling.publish(metric, 5);
+      waitFor(spooling, 0);
+      spooling.close();
+      assertEquals(ImmutableList.of(0.0, 1.0, 2.0, 3.0, 4.0, 5.0), flaky.tracked);
+    } finally {
+      spooling.close();
+      spool.close();
+      for (final File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  @Test
+  public void testSpoolIdsAreRenewedAfterCompaction() throws Exception {
+    final File directory = File.createTempFile("spool", "");
+    directory.delete();
+    final SampleSpool spool = new SampleSpool(directory, 64 * SampleSpool.RECORD_BYTES, 4);
+    final FlakyTracker flaky = new FlakyTracker();
+    final AsyncMetricPublisher spooling =
+      new AsyncMetricPublisher(
+        flaky,
+        new MetricRegistry(),
+        new SampleRingBuffer(16, OverflowPolicy.BLOCK),
+        4,
+        handler);
+    try {
+      spooling.setSpool(spool, 10, TimeUnit.MILLISECONDS);
+      final int metric = spooling.register("metric", Unit.Count, dimensions);
+      spooling.publish(metric, 0);
+      waitFor(spooling, 1);
+      flaky.healthy = true;
+      spooling.publish(metric, 1);
+      waitFor(spooling, 0);
+      assertEquals(1, spool.getCompactionCount());
+
+      // the compaction released the spool id "metric" had, so "other" is given it
+      flaky.healthy = false;
+      final int other = spooling.register("other", Unit.Count, dimensions);
+      spooling.publish(other, 2);
+      spooling.publish(metric, 3);
+      waitFor(spooling, 2);
+      flaky.healthy = true;
+      spooling.publish(metric, 4);
+      waitFor(spooling, 0);
+      spooling.close();
+      assertEquals(ImmutableList.of(0.0, 1.0, 2.0, 3.0, 4.0), flaky.tracked);
+      assertEquals(ImmutableList.of("metric", "metric", "other", "metric", "metric"), flaky.names);
+    } finally {
+      spooling.close();
+      spool.close();
+      for (final File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+  }
+
+  private static void waitFor(final AsyncMetricPublisher publisher, final long spooled) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (publisher.getSpooledCount() != spooled || publisher.getQueuedCount() > 0) {
+      assertTrue("spooled " + publisher.getSpooledCount(), System.currentTimeMillis() < deadline);
+      Thread.sleep(5);
+    }
+  }
+
+  /** A tracker that fails until it is made healthy, and records the values it takes. */
+  private static final class FlakyTracker implements MetricTracker {
+    volatile boolean healthy = false;
+    final List<Double> tracked = new CopyOnWriteArrayList<Double>();
+    final List<String> names = new CopyOnWriteArrayList<String>();
+
+    @Override
+    public void track(final String metricName, final Number value, final Unit unit) {
+      track(metricName, value, unit, ImmutableList.<Dimension> of());
+    }
+
+    @Override
+    public void track(final String metricName, final Number value, final Unit unit, final List<Dimension> dimensions) {
+      if (!healthy) {
+        throw new IllegalStateException("unavailable");
+      }
+      tracked.add(value.doubleValue());
+      names.add(metricName);
+    }
+  }
+}
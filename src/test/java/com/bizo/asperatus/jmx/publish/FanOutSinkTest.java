@@ -0,0 +1,49 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.collect.ImmutableList;
+
+public class FanOutSinkTest {
+  @Test
+  public void testEverySinkGetsTheSameBatch() throws Exception {
+    final MetricSink failing = mock(MetricSink.class);
+    final MetricSink working = mock(MetricSink.class);
+    final ErrorHandler handler = mock(ErrorHandler.class);
+    final RuntimeException e = new RuntimeException("down");
+    final MetricRegistry registry = new MetricRegistry();
+    final SampleBatch batch = new SampleBatch(1);
+    batch.add(registry.register("metric", Unit.Count, ImmutableList.<Dimension> of()), 0, 1);
+    doThrow(e).when(failing).write(registry, batch);
+
+    new FanOutSink(ImmutableList.of(failing, working), handler).write(registry, batch);
+
+    verify(failing).write(registry, batch);
+    verify(working).write(registry, batch);
+    verify(handler).handleError(anyString(), eq(e));
+  }
+
+  @Test
+  public void testPartialFailureIsReportedWithItsCause() throws Exception {
+    final MetricSink failing = mock(MetricSink.class);
+    final ErrorHandler handler = mock(ErrorHandler.class);
+    final RuntimeException e = new RuntimeException("down");
+    doThrow(new MetricSinkException(1, "metric", e))
+      .when(failing)
+      .write(any(MetricRegistry.class), any(SampleBatch.class));
+
+    new FanOutSink(ImmutableList.of(failing), handler).write(new MetricRegistry(), new SampleBatch(1));
+
+    verify(handler).handleError(anyString(), eq(e));
+  }
+}
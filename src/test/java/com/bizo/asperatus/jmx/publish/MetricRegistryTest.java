@@ -0,0 +1,52 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.collect.ImmutableList;
+
+public class MetricRegistryTest {
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+  private final MetricRegistry registry = new MetricRegistry();
+
+  @Test
+  public void testIdsAreDense() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, registry.register("metric" + i, Unit.Count, dimensions));
+    }
+    assertEquals(1000, registry.size());
+    assertEquals("metric999", registry.get(999).getMetricName());
+  }
+
+  @Test
+  public void testReleasedIdIsReused() throws Exception {
+    final int first = registry.register("first", Unit.Count, dimensions);
+    final int second = registry.register("second", Unit.Count, dimensions);
+    assertEquals(first, registry.register("first", Unit.Count, dimensions));
+
+    // registered twice, so held until released twice
+    assertFalse(registry.release(first));
+    assertEquals(first, registry.register("first", Unit.Count, dimensions));
+    assertFalse(registry.release(first));
+    assertTrue(registry.release(first));
+
+    assertEquals(first, registry.register("third", Unit.Count, dimensions));
+    assertEquals("third", registry.get(first).getMetricName());
+    assertEquals(2, registry.size());
+    assertTrue(first != registry.register("first", Unit.Count, dimensions));
+    assertEquals(second, registry.register("second", Unit.Count, dimensions));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReleaseOfUnregisteredId() throws Exception {
+    registry.release(registry.register("metric", Unit.Count, dimensions));
+    registry.release(0);
+  }
+}
@@ -0,0 +1,191 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+public class PrometheusExporterTest {
+  private final List<Dimension> dimensions =
+    ImmutableList.of(new Dimension("host", "a"), new Dimension("path", "C:\\"));
+  private LastValueStore store;
+  private PrometheusExporter exporter;
+  private MetricRegistry registry;
+  private SampleBatch batch;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new LastValueStore();
+    exporter = new PrometheusExporter(store, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    registry = new MetricRegistry();
+    batch = new SampleBatch(8);
+  }
+
+  @After
+  public void tearDown() {
+    exporter.close();
+  }
+
+  @Test
+  public void testServesLatestValues() throws Exception {
+    final int used = registry.register("Heap.Used", Unit.Bytes, dimensions);
+    final int load = registry.register("Load", Unit.None, ImmutableList.<Dimension> of());
+    final int idle = registry.register("Idle", Unit.None, ImmutableList.<Dimension> of());
+    final int other = registry.register("Heap.Used", Unit.Bytes, ImmutableList.of(new Dimension("host", "b")));
+    batch.add(used, 1, 100);
+    batch.add(load, 1, 0.5);
+    batch.add(other, 1, Double.POSITIVE_INFINITY);
+    batch.add(used, 2, 123);
+    store.write(registry, batch);
+
+    assertEquals(
+      "# TYPE Heap_Used gauge\n"
+        + "Heap_Used{host=\"a\",path=\"C:\\\\\"} 123\n"
+        + "Heap_Used{host=\"b\"} +Inf\n"
+        + "# TYPE Load gauge\n"
+        + "Load 0.5\n",
+      scrape());
+    assertEquals(2, store.getTimestamp(store.getMetrics().register("Heap.Used", Unit.Bytes, dimensions)));
+
+    // metrics first seen after the last scrape are added to it
+    batch.clear();
+    batch.add(idle, 3, 7);
+    store.write(registry, batch);
+    assertTrue(scrape().startsWith("# TYPE Heap_Used gauge\n"));
+    assertTrue(scrape().contains("# TYPE Idle gauge\nIdle 7\n# TYPE Load gauge\n"));
+  }
+
+  @Test
+  public void testTranslatesIdsOfEachRegistry() throws Exception {
+    final MetricRegistry spooled = new MetricRegistry();
+    spooled.register("Other", Unit.Count, ImmutableList.<Dimension> of());
+    final int load = spooled.register("Load", Unit.None, ImmutableList.<Dimension> of());
+    batch.add(load, 1, 1);
+    store.write(spooled, batch);
+
+    batch.clear();
+    batch.add(registry.register("Load", Unit.None, ImmutableList.<Dimension> of()), 2, 2);
+    store.write(registry, batch);
+
+    assertEquals(1, store.getMetrics().size());
+    assertEquals(2, store.getValue(0), 0);
+    assertEquals("# TYPE Load gauge\nLoad 2\n", scrape());
+  }
+
+  @Test
+  public void testMetricsWithTheSameTextAreOneSeries() throws Exception {
+    final int used = registry.register("Heap.Used", Unit.Bytes, dimensions);
+    final int sanitized = registry.register("Heap_Used", Unit.Bytes, dimensions);
+    final int counted = registry.register("Heap.Used", Unit.Count, dimensions);
+    batch.add(used, 1, 100);
+    batch.add(sanitized, 3, 300);
+    batch.add(counted, 2, 200);
+    store.write(registry, batch);
+
+    assertEquals("# TYPE Heap_Used gauge\nHeap_Used{host=\"a\",path=\"C:\\\\\"} 300\n", scrape());
+  }
+
+  @Test
+  public void testExpiredMetricsAreDropped() throws Exception {
+    exporter.close();
+    store = new LastValueStore(10, TimeUnit.MILLISECONDS);
+    exporter = new PrometheusExporter(store, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    final int load = registry.register("Load", Unit.None, ImmutableList.<Dimension> of());
+    final int idle = registry.register("Idle", Unit.None, ImmutableList.<Dimension> of());
+    batch.add(load, 1000, 1);
+    batch.add(idle, 1000, 2);
+    store.write(registry, batch);
+    batch.clear();
+    batch.add(load, 1005, 3);
+    store.write(registry, batch);
+    assertEquals("# TYPE Idle gauge\nIdle 2\n# TYPE Load gauge\nLoad 3\n", scrape());
+
+    batch.clear();
+    batch.add(load, 1020, 4);
+    store.write(registry, batch);
+    assertEquals("# TYPE Load gauge\nLoad 4\n", scrape());
+
+    // its id was freed, and is reused for the next metric
+    batch.clear();
+    batch.add(registry.register("Other", Unit.None, ImmutableList.<Dimension> of()), 1021, 5);
+    store.write(registry, batch);
+    assertEquals(2, store.getMetrics().size());
+    assertEquals("# TYPE Load gauge\nLoad 4\n# TYPE Other gauge\nOther 5\n", scrape());
+
+    // and an expired metric that is written again comes back
+    batch.clear();
+    batch.add(idle, 1022, 6);
+    store.write(registry, batch);
+    assertTrue(scrape().startsWith("# TYPE Idle gauge\nIdle 6\n"));
+  }
+
+  @Test
+  public void testRendersWholeBatchesOnlyOnceChanged() throws Exception {
+    final int load = registry.register("Load", Unit.None, ImmutableList.<Dimension> of());
+    final AtomicInteger reads = new AtomicInteger();
+    exporter.close();
+    store = new LastValueStore() {
+      @Override
+      public double getValue(final int id) {
+        if (reads.incrementAndGet() == 1) {
+          // a batch written while the scrape is being rendered
+          final SampleBatch next = new SampleBatch(1);
+          next.add(load, 2, 2);
+          write(registry, next);
+        }
+        return super.getValue(id);
+      }
+    };
+    exporter = new PrometheusExporter(store, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+    batch.add(load, 1, 1);
+    store.write(registry, batch);
+
+    assertEquals("# TYPE Load gauge\nLoad 2\n", scrape());
+    assertEquals(2, reads.get());
+    // nothing was written since, so the response is served again as it is
+    assertEquals("# TYPE Load gauge\nLoad 2\n", scrape());
+    assertEquals(2, reads.get());
+  }
+
+  @Test
+  public void testRejectsOtherMethods() throws Exception {
+    final HttpURLConnection connection = connect();
+    connection.setRequestMethod("DELETE");
+    assertEquals(405, connection.getResponseCode());
+  }
+
+  private HttpURLConnection connect() throws Exception {
+    final InetSocketAddress address = exporter.getAddress();
+    final URL url = new URL("http", "127.0.0.1", address.getPort(), PrometheusExporter.PATH);
+    return (HttpURLConnection) url.openConnection();
+  }
+
+  private String scrape() throws Exception {
+    final HttpURLConnection connection = connect();
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(PrometheusExporter.CONTENT_TYPE, connection.getContentType());
+    final InputStream body = connection.getInputStream();
+    try {
+      return new String(ByteStreams.toByteArray(body), Charsets.UTF_8);
+    } finally {
+      body.close();
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class SampleRingBufferTest {
+
+  @Test
+  public void testCapacityRoundsUp() throws Exception {
+    assertEquals(1, new SampleRingBuffer(1, OverflowPolicy.DROP_NEWEST).capacity());
+    assertEquals(8, new SampleRingBuffer(5, OverflowPolicy.DROP_NEWEST).capacity());
+    assertEquals(8, new SampleRingBuffer(8, OverflowPolicy.DROP_NEWEST).capacity());
+  }
+
+  @Test
+  public void testFifoAcrossWraparound() throws Exception {
+    final SampleRingBuffer buffer = new SampleRingBuffer(4, OverflowPolicy.DROP_NEWEST);
+    final SampleBatch batch = new SampleBatch(3);
+    for (int lap = 0; lap < 5; lap++) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(buffer.offer(i, lap, lap * 10 + i));
+      }
+      batch.clear();
+      assertEquals(3, buffer.drainTo(batch));
+      for (int i = 0; i < 3; i++) {
+        assertEquals(i, batch.getMetricId(i));
+        assertEquals(lap, batch.getTimestamp(i));
+        assertEquals(lap * 10 + i, batch.getValue(i), 0);
+      }
+    }
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void testDropNewest() throws Exception {
+    final SampleRingBuffer buffer = fill(OverflowPolicy.DROP_NEWEST);
+
+    assertFalse(buffer.offer(4, 0, 4));
+
+    assertEquals(1, buffer.getDroppedCount());
+    assertValues(buffer, 0, 1, 2, 3);
+  }
+
+  @Test
+  public void testDropOldest() throws Exception {
+    final SampleRingBuffer buffer = fill(OverflowPolicy.DROP_OLDEST);
+
+    assertTrue(buffer.offer(4, 0, 4));
+    assertTrue(buffer.offer(5, 0, 5));
+
+    assertEquals(2, buffer.getDroppedCount());
+    assertValues(buffer, 2, 3, 4, 5);
+  }
+
+  @Test
+  public void testBlockWaitsForRoom() throws Exception {
+    final SampleRingBuffer buffer = fill(OverflowPolicy.BLOCK);
+    final CountDownLatch offered = new CountDownLatch(1);
+    final Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        buffer.offer(4, 0, 4);
+        offered.countDown();
+      }
+    });
+    producer.start();
+
+    Thread.sleep(50);
+    assertEquals(1, offered.getCount());
+
+    final SampleBatch batch = new SampleBatch(1);
+    buffer.drainTo(batch);
+    producer.join(5000);
+    assertEquals(0, offered.getCount());
+    assertEquals(0, buffer.getDroppedCount());
+    assertValues(buffer, 1, 2, 3, 4);
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    final int producers = 4;
+    final int perProducer = 100000;
+    final SampleRingBuffer buffer = new SampleRingBuffer(1024, OverflowPolicy.BLOCK);
+    final Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int id = p;
+      threads[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perProducer; i++) {
+            buffer.offer(id, 0, i);
+          }
+        }
+      });
+      threads[p].start();
+    }
+
+    final double[] last = new double[] { -1, -1, -1, -1 };
+    final SampleBatch batch = new SampleBatch(64);
+    int received = 0;
+    while (received < producers * perProducer) {
+      batch.clear();
+      buffer.drainTo(batch);
+      for (int i = 0; i < batch.size(); i++) {
+        // samples from one producer arrive in order and none are lost
+        assertEquals(last[batch.getMetricId(i)] + 1, batch.getValue(i), 0);
+        last[batch.getMetricId(i)] = batch.getValue(i);
+      }
+      received += batch.size();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(0, buffer.size());
+  }
+
+  private static SampleRingBuffer fill(final OverflowPolicy policy) {
+    final SampleRingBuffer buffer = new SampleRingBuffer(4, policy);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(i, 0, i));
+    }
+    return buffer;
+  }
+
+  private static void assertValues(final SampleRingBuffer buffer, final double... expected) {
+    final SampleBatch batch = new SampleBatch(expected.length + 1);
+    assertEquals(expected.length, buffer.drainTo(batch));
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], batch.getValue(i), 0);
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.collect.ImmutableList;
+
+public class SampleSpoolTest {
+  private static final int SEGMENT_BYTES = 4 * SampleSpool.RECORD_BYTES;
+
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("key", "value"));
+  private File directory;
+  private SampleSpool spool;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = File.createTempFile("spool", "");
+    directory.delete();
+    spool = new SampleSpool(directory, SEGMENT_BYTES, 3);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    spool.close();
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testReplayInOrderAcrossSegments() throws Exception {
+    final int metric = spool.register(new MetricDescriptor("metric", Unit.Count, dimensions));
+    for (int i = 0; i < 10; i++) {
+      spool.append(metric, 1000 + i, i);
+    }
+    assertEquals(10, spool.size());
+
+    final SampleBatch batch = new SampleBatch(6);
+    assertEquals(6, spool.readTo(batch));
+    // reading does not consume
+    assertEquals(10, spool.size());
+    spool.commit(3);
+    assertEquals(7, spool.size());
+
+    assertEquals(6, spool.readTo(batch));
+    for (int i = 0; i < 6; i++) {
+      assertEquals(metric, batch.getMetricId(i));
+      assertEquals(1003 + i, batch.getTimestamp(i));
+      assertEquals(3 + i, batch.getValue(i), 0);
+    }
+    spool.commit(6);
+    assertEquals(1, spool.readTo(batch));
+    spool.commit(1);
+    assertTrue(spool.isEmpty());
+    // replayed segments are deleted
+    assertEquals(1, segmentCount());
+  }
+
+  @Test
+  public void testRecoversAfterCrash() throws Exception {
+    final int metric = spool.register(new MetricDescriptor("metric", Unit.Bytes, dimensions));
+    final int other = spool.register(new MetricDescriptor("other", Unit.Count, ImmutableList.<Dimension> of()));
+    for (int i = 0; i < 6; i++) {
+      spool.append(i % 2 == 0 ? metric : other, i, i);
+    }
+    spool.commit(2);
+
+    // opened again without being closed
+    final SampleSpool recovered = new SampleSpool(directory, SEGMENT_BYTES, 3);
+    try {
+      assertEquals(4, recovered.size());
+      final SampleBatch batch = new SampleBatch(10);
+      assertEquals(4, recovered.readTo(batch));
+      assertEquals(2, batch.getValue(0), 0);
+      assertEquals(new MetricDescriptor("metric", Unit.Bytes, dimensions), recovered.getMetric(batch.getMetricId(0)));
+      assertEquals(
+        new MetricDescriptor("other", Unit.Count, ImmutableList.<Dimension> of()),
+        recovered.getMetric(batch.getMetricId(1)));
+      // registering again keeps the logged id
+      assertEquals(metric, recovered.register(new MetricDescriptor("metric", Unit.Bytes, dimensions)));
+
+      // appends continue after the recovered samples
+      recovered.append(metric, 6, 6);
+      assertEquals(5, recovered.readTo(batch));
+      assertEquals(6, batch.getValue(4), 0);
+    } finally {
+      recovered.close();
+    }
+  }
+
+  @Test
+  public void testTornOffsetReplaysFromOldestSegment() throws Exception {
+    final int metric = spool.register(new MetricDescriptor("metric", Unit.Count, dimensions));
+    for (int i = 0; i < 3; i++) {
+      spool.append(metric, i, i);
+    }
+    spool.commit(2);
+    spool.force();
+    final RandomAccessFile offset = new RandomAccessFile(new File(directory, "offset"), "rw");
+    try {
+      offset.seek(8);
+      offset.writeLong(1);
+    } finally {
+      offset.close();
+    }
+
+    final SampleSpool recovered = new SampleSpool(directory, SEGMENT_BYTES, 3);
+    try {
+      assertEquals(3, recovered.size());
+    } finally {
+      recovered.close();
+    }
+  }
+
+  @Test
+  public void testOldestSegmentIsDropped() throws Exception {
+    final int metric = spool.register(new MetricDescriptor("metric", Unit.Count, dimensions));
+    for (int i = 0; i < 13; i++) {
+      spool.append(metric, i, i);
+    }
+    // 4 records per segment and at most 3 segments, so the first segment made way for the fourth
+    assertEquals(4, spool.getDroppedCount());
+    assertEquals(9, spool.size());
+    assertEquals(3, segmentCount());
+
+    final SampleBatch batch = new SampleBatch(1);
+    spool.readTo(batch);
+    assertEquals(4, batch.getValue(0), 0);
+    assertFalse(spool.isEmpty());
+  }
+
+  @Test
+  public void testCompactsOnceReplayed() throws Exception {
+    final int metric = spool.register(new MetricDescriptor("metric", Unit.Count, dimensions));
+    spool.register(new MetricDescriptor("other", Unit.Count, dimensions));
+    for (int i = 0; i < 6; i++) {
+      spool.append(metric, i, i);
+    }
+    spool.commit(5);
+    assertEquals(0, spool.getCompactionCount());
+    spool.commit(1);
+
+    assertEquals(1, spool.getCompactionCount());
+    assertEquals(0, new File(directory, "metrics.log").length());
+    assertEquals(1, segmentCount());
+    // every spool id was released, so a new metric starts again from 0
+    final int next = spool.register(new MetricDescriptor("next", Unit.Bytes, dimensions));
+    assertEquals(0, next);
+    spool.append(next, 7, 7);
+
+    final SampleSpool recovered = new SampleSpool(directory, SEGMENT_BYTES, 3);
+    try {
+      final SampleBatch batch = new SampleBatch(10);
+      assertEquals(1, recovered.readTo(batch));
+      assertEquals(7, batch.getTimestamp(0));
+      assertEquals(new MetricDescriptor("next", Unit.Bytes, dimensions), recovered.getMetric(batch.getMetricId(0)));
+    } finally {
+      recovered.close();
+    }
+  }
+
+  private int segmentCount() {
+    int count = 0;
+    for (final String name : directory.list()) {
+      if (name.endsWith(".spool")) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,120 @@
+package com.bizo.asperatus.jmx.publish;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+public class StatsdSinkTest {
+  private final List<Dimension> dimensions = ImmutableList.of(new Dimension("host", "a"), new Dimension("env", "x:y"));
+  private DatagramSocket server;
+  private MetricRegistry registry;
+  private SampleBatch batch;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+    server.setSoTimeout(5000);
+    registry = new MetricRegistry();
+    batch = new SampleBatch(8);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void testPacksSamplesIntoOneDatagram() throws Exception {
+    final StatsdSink sink = new StatsdSink(address());
+    try {
+      final int heap = registry.register("HeapUsed", Unit.Bytes, dimensions);
+      final int load = registry.register("Load|Average", Unit.None, ImmutableList.<Dimension> of());
+      batch.add(heap, 0, 123);
+      batch.add(load, 0, 0.5);
+      batch.add(load, 0, Double.NaN);
+      sink.write(registry, batch);
+
+      assertEquals("HeapUsed:123|g|#host:a,env:x_y\nLoad_Average:0.5|g", receive());
+    } finally {
+      sink.close();
+    }
+  }
+
+  @Test
+  public void testNegativeGaugeIsSetFromZero() throws Exception {
+    final StatsdSink sink = new StatsdSink(address(), 64, true);
+    try {
+      final int heap = registry.register("HeapUsed", Unit.Bytes, dimensions);
+      final int load = registry.register("Load", Unit.None, ImmutableList.<Dimension> of());
+      batch.add(load, 0, 1);
+      batch.add(load, 0, -5);
+      batch.add(heap, 0, -0.5);
+      sink.write(registry, batch);
+
+      // the zero and the value are never split across datagrams
+      assertEquals("Load:1|g\nLoad:0|g\nLoad:-5|g", receive());
+      assertEquals("HeapUsed:0|g|#host:a,env:x_y\nHeapUsed:-0.5|g|#host:a,env:x_y", receive());
+    } finally {
+      sink.close();
+    }
+  }
+
+  @Test
+  public void testSplitsDatagrams() throws Exception {
+    final StatsdSink sink = new StatsdSink(address(), 24, false);
+    try {
+      final int metric = registry.register("Count", Unit.Count, dimensions);
+      for (int i = 0; i < 5; i++) {
+        batch.add(metric, 0, i);
+      }
+      sink.write(registry, batch);
+
+      assertEquals("Count:0|g\nCount:1|g", receive());
+      assertEquals("Count:2|g\nCount:3|g", receive());
+      assertEquals("Count:4|g", receive());
+    } finally {
+      sink.close();
+    }
+  }
+
+  @Test
+  public void testReusedIdIsEncodedAgain() throws Exception {
+    final StatsdSink sink = new StatsdSink(address(), 64, false);
+    try {
+      final int load = registry.register("Load", Unit.None, ImmutableList.<Dimension> of());
+      batch.add(load, 0, 1);
+      sink.write(registry, batch);
+      assertEquals("Load:1|g", receive());
+
+      registry.release(load);
+      assertEquals(load, registry.register("Heap", Unit.Bytes, dimensions));
+      sink.write(registry, batch);
+      assertEquals("Heap:1|g", receive());
+    } finally {
+      sink.close();
+    }
+  }
+
+  private InetSocketAddress address() {
+    return new InetSocketAddress(server.getLocalAddress(), server.getLocalPort());
+  }
+
+  private String receive() throws Exception {
+    final DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+    server.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), Charsets.UTF_8);
+  }
+}
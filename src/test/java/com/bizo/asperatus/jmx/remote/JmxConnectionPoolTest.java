@@ -0,0 +1,213 @@
+package com.bizo.asperatus.jmx.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.bizo.asperatus.jmx.ErrorHandler;
+import com.bizo.asperatus.jmx.PatternMetricRunnable;
+import com.bizo.asperatus.jmx.configuration.MetricConfiguration;
+import com.bizo.asperatus.model.Dimension;
+import com.bizo.asperatus.model.Unit;
+import com.bizo.asperatus.tracker.MetricTracker;
+import com.google.common.base.Function;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+
+public class JmxConnectionPoolTest {
+  public interface PoolMBean {
+    int getSize();
+  }
+
+  public static class Pool implements PoolMBean {
+    private final int size;
+
+    public Pool(final int size) {
+      this.size = size;
+    }
+
+    @Override
+    public int getSize() {
+      return size;
+    }
+  }
+
+  private static int registryPort;
+
+  private final ObjectName poolName;
+  private MBeanServer server;
+  private JMXServiceURL url;
+  private JMXConnectorServer connectorServer;
+  private FakeTicker ticker;
+  private JmxConnectionPool pool;
+
+  public JmxConnectionPoolTest() throws Exception {
+    poolName = new ObjectName("test:type=Pool");
+  }
+
+  @BeforeClass
+  public static void startRegistry() throws Exception {
+    final ServerSocket socket = new ServerSocket(0);
+    registryPort = socket.getLocalPort();
+    socket.close();
+    LocateRegistry.createRegistry(registryPort);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    server = MBeanServerFactory.newMBeanServer();
+    server.registerMBean(new Pool(7), poolName);
+    url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + registryPort + "/target");
+    startServer();
+    ticker = new FakeTicker();
+    pool = new JmxConnectionPool(new JmxTarget("target", url), 2, 1, 60, TimeUnit.SECONDS, ticker);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.close();
+    if (connectorServer.isActive()) {
+      connectorServer.stop();
+    }
+  }
+
+  private void startServer() throws IOException {
+    connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(url, null, server);
+    connectorServer.start();
+  }
+
+  @Test
+  public void testPooledCalls() throws Exception {
+    final MBeanServerConnection connection = pool.getConnection();
+    assertFalse(pool.isConnected());
+
+    assertEquals(7, connection.getAttribute(poolName, "Size"));
+    assertEquals(7, connection.getAttribute(poolName, "Size"));
+
+    assertTrue(pool.isConnected());
+    assertTrue(connection.isRegistered(poolName));
+  }
+
+  @Test
+  public void testReconnectWithBackoff() throws Exception {
+    pool = new JmxConnectionPool(new JmxTarget("target", url), 1, 1, 60, TimeUnit.SECONDS, ticker);
+    final MBeanServerConnection connection = pool.getConnection();
+    assertEquals(7, connection.getAttribute(poolName, "Size"));
+
+    connectorServer.stop();
+    assertCallFails(connection, IOException.class); // the call on the dead connection
+    assertCallFails(connection, IOException.class); // the immediate reconnection attempt
+    assertCallFails(connection, TargetUnavailableException.class);
+
+    startServer();
+    assertCallFails(connection, TargetUnavailableException.class);
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(7, connection.getAttribute(poolName, "Size"));
+  }
+
+  @Test
+  public void testPatternIsQueriedAfterReconnect() throws Exception {
+    pool = new JmxConnectionPool(new JmxTarget("target", url), 1, 1, 60, TimeUnit.SECONDS, ticker);
+    final MBeanServerConnection connection = pool.getConnection();
+    final Runnable read = mock(Runnable.class);
+    final PatternMetricRunnable runnable =
+      new PatternMetricRunnable(new ObjectName("test:*"), connection, new Function<ObjectName, Runnable>() {
+        @Override
+        public Runnable apply(final ObjectName name) {
+          return read;
+        }
+      }, mock(ErrorHandler.class));
+    try {
+      assertEquals(1, runnable.getMatchCount());
+
+      // changed while disconnected, so no notification reaches the runnable
+      connectorServer.stop();
+      final ObjectName added = new ObjectName("test:type=Pool,name=added");
+      server.registerMBean(new Pool(8), added);
+      server.unregisterMBean(poolName);
+      final ObjectName other = new ObjectName("test:type=Pool,name=other");
+      server.registerMBean(new Pool(9), other);
+      assertCallFails(connection, IOException.class);
+      startServer();
+      assertTrue(connection.isRegistered(added));
+
+      runnable.run();
+      assertEquals(2, runnable.getMatchCount());
+    } finally {
+      runnable.close();
+    }
+  }
+
+  @Test
+  public void testRemoteBridge() throws Exception {
+    final MetricTracker tracker = mock(MetricTracker.class);
+    final JmxTarget deadTarget =
+      new JmxTarget("dead", new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:" + registryPort + "/dead"));
+    final RemoteJmxBridge bridge =
+      new RemoteJmxBridge(tracker, ImmutableList.of(deadTarget, new JmxTarget("target", url)));
+    try {
+      bridge.monitor(ImmutableList.of(new MetricConfiguration(
+        "test:type=Pool",
+        "Size",
+        null,
+        "PoolSize",
+        Unit.Count,
+        1,
+        null)));
+
+      final List<Dimension> dimensions = ImmutableList.of(new Dimension(JmxTarget.TARGET_DIMENSION, "target"));
+      verify(tracker, timeout(5000)).track("PoolSize", 7L, Unit.Count, dimensions);
+    } finally {
+      bridge.shutdown();
+    }
+  }
+
+  private void assertCallFails(final MBeanServerConnection connection, final Class<? extends IOException> expected)
+      throws Exception {
+    try {
+      connection.getAttribute(poolName, "Size");
+      fail("Expected " + expected.getSimpleName());
+    } catch (final IOException e) {
+      assertTrue("Unexpected " + e, expected.isInstance(e));
+      if (expected == IOException.class) {
+        assertFalse(e instanceof TargetUnavailableException);
+      }
+    }
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos = 0;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    void advance(final long time, final TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}